@@ -17,6 +17,11 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.jena.graph.Triple;
+
 /**
  * An {@link Applyer} object will run the {@link StageElement} {@code next} over
  * all the extensions of the Domain {@code domain} which are derived from
@@ -34,6 +39,24 @@ public abstract class Applyer {
      */
     public abstract void applyToTriples(Domain domain, Matcher matcher, StageElement next);
 
+    /**
+     * Answers the triples that {@link #applyToTriples} would match against
+     * the {@link Domain}, for pulled evaluation and for the build side of a
+     * hash join.
+     * @param domain the {@link Domain}.
+     * @return the {@link Iterator} over the candidate {@link Triple}s.
+     */
+    public abstract Iterator<Triple> find(Domain domain);
+
+    /**
+     * Finish any work held back by this {@link Applyer}, such as lookups
+     * gathered into a batch, running {@code next} for their matches. The
+     * stage calls this once its input is exhausted; by default there is
+     * nothing to do.
+     */
+    public void flush() {
+    }
+
     /**
      * An {@link Applyer} that never calls its {@code next}
      * {@link StageElement}.
@@ -42,5 +65,10 @@ public abstract class Applyer {
         @Override
         public void applyToTriples(final Domain domain, final Matcher matcher, final StageElement next) {
         }
+
+        @Override
+        public Iterator<Triple> find(final Domain domain) {
+            return Collections.<Triple>emptyIterator();
+        }
     };
 }
\ No newline at end of file
@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.rya.jena.legacy.graph.query.BufferPipe.BoundedBufferPutException;
+import org.apache.rya.jena.legacy.graph.query.BufferPipe.BoundedBufferTakeException;
+import org.apache.rya.jena.legacy.graph.query.BufferPipe.Finished;
+import org.apache.rya.jena.legacy.graph.query.BufferPipe.PipeCancelledException;
+
+/**
+ * A pipe between query threads that hands over domains in chunks rather than
+ * one at a time, so producer and consumer meet on the queue once per chunk.
+ * <p>
+ * The producer collects domains into a chunk and hands the chunk over when it
+ * is full, or straight away if the consumer has nothing left to read. If the
+ * producer stalls with a part-filled chunk (waiting on its own input, say),
+ * a consumer that has found nothing to read for {@link #IDLE_MILLIS} takes
+ * the part-filled chunk itself, so matches already made are not held back.
+ * The chunk size adapts to the consumer: it doubles (up to a maximum) whenever
+ * the producer finds the queue full, and halves whenever a chunk is handed
+ * over early because the consumer is waiting. A pipe has a single producer
+ * thread.
+ */
+public class BatchedBufferPipe implements Pipe {
+    /**
+     * The default largest number of domains handed over at once.
+     */
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 256;
+
+    /**
+     * How long a consumer waits for a chunk before it takes the producer's
+     * part-filled chunk.
+     */
+    static final long IDLE_MILLIS = 10;
+
+    private static final int QUEUE_CAPACITY = 5;
+    private static final Finished FINISHED = new Finished();
+
+    private final BlockingQueue<Object[]> buffer = new ArrayBlockingQueue<Object[]>(QUEUE_CAPACITY);
+    private final int maxChunkSize;
+
+    // Producer side, guarded by the lock; a waiting consumer may take the
+    // part-filled chunk under it. Chunks are only queued under the lock, so
+    // they keep their order.
+    private final ReentrantLock lock = new ReentrantLock();
+    private Object[] chunk;
+    private int chunkLength = 0;
+    private int chunkSize = 1;
+
+    // Consumer side.
+    private boolean open = true;
+    private Object[] current = null;
+    private int currentIndex = 0;
+    private Object pending = null;
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new instance of {@link BatchedBufferPipe}.
+     */
+    public BatchedBufferPipe() {
+        this(DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a new instance of {@link BatchedBufferPipe}.
+     * @param maxChunkSize the largest number of domains handed over at once.
+     */
+    public BatchedBufferPipe(final int maxChunkSize) {
+        this.maxChunkSize = Math.max(1, maxChunkSize);
+        this.chunk = new Object[this.maxChunkSize];
+    }
+
+    /**
+     * @return the current chunk size; for diagnostics.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public void put(final Domain d) {
+        if (cancelled) {
+            throw new PipeCancelledException();
+        }
+        lock.lock();
+        try {
+            chunk[chunkLength++] = d;
+            if (chunkLength >= chunkSize) {
+                flush();
+            } else if (buffer.isEmpty()) {
+                // The consumer is waiting; hand over early and batch less.
+                chunkSize = Math.max(1, chunkSize / 2);
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        putLast(FINISHED);
+    }
+
+    @Override
+    public void close(final Exception e) {
+        putLast(new Finished(e));
+    }
+
+    private void putLast(final Finished end) {
+        if (cancelled) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (chunkLength == chunk.length) {
+                flush();
+            }
+            chunk[chunkLength++] = end;
+            flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hand the current chunk to the consumer, growing the chunk size if the
+     * consumer has fallen behind. Called with the lock held.
+     */
+    private void flush() {
+        if (chunkLength == 0) {
+            return;
+        }
+        final Object[] out = detach();
+        if (!buffer.offer(out)) {
+            chunkSize = Math.min(maxChunkSize, chunkSize * 2);
+            try {
+                buffer.put(out);
+            } catch (final Exception e) {
+                throw new BoundedBufferPutException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the current chunk, emptied out of the producer's array. Called
+     * with the lock held.
+     */
+    private Object[] detach() {
+        final Object[] out = new Object[chunkLength];
+        System.arraycopy(chunk, 0, out, 0, chunkLength);
+        for (int i = 0; i < chunkLength; i += 1) {
+            chunk[i] = null;
+        }
+        chunkLength = 0;
+        return out;
+    }
+
+    /**
+     * @return the next chunk if one is queued, otherwise the producer's
+     * part-filled chunk, or {@code null} if there is neither or the producer
+     * holds the lock (it is then handing a chunk over anyway).
+     */
+    private Object[] takePartChunk() {
+        if (!lock.tryLock()) {
+            return null;
+        }
+        try {
+            final Object[] queued = buffer.poll();
+            if (queued != null || chunkLength == 0) {
+                return queued;
+            }
+            // The consumer is waiting; batch less.
+            chunkSize = Math.max(1, chunkSize / 2);
+            return detach();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next object handed over by the producer, waiting for a
+     * chunk if the current one is used up.
+     */
+    private Object fetch() {
+        if (current == null || currentIndex == current.length) {
+            try {
+                Object[] next = buffer.poll();
+                while (next == null) {
+                    next = buffer.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        next = takePartChunk();
+                    }
+                }
+                current = next;
+            } catch (final Exception e) {
+                throw new BoundedBufferTakeException(e);
+            }
+            currentIndex = 0;
+        }
+        final Object result = current[currentIndex];
+        current[currentIndex++] = null;
+        return result;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        buffer.clear();
+        // Wake a consumer waiting for something to take.
+        buffer.offer(new Object[] {FINISHED});
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (cancelled) {
+            open = false;
+            pending = null;
+        }
+        if (open) {
+            if (pending == null) {
+                pending = fetch();
+                if (pending instanceof Finished) {
+                    final Finished end = (Finished) pending;
+                    final RuntimeException cause = end.getCause();
+                    if (cause == null) {
+                        open = false;
+                    } else {
+                        PatternStageBase.log.debug("BatchedBufferPipe has recieved and rethrown an exception", cause);
+                        throw cause;
+                    }
+                }
+                return open;
+            } else {
+                return true;
+            }
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public Domain get() {
+        if (hasNext() == false) {
+            throw new NoSuchElementException();
+        }
+        if (!(pending instanceof Domain)) {
+            throw new RuntimeException(pending.getClass().toString());
+        }
+        try {
+            return (Domain) pending;
+        } finally {
+            pending = null;
+        }
+    }
+}
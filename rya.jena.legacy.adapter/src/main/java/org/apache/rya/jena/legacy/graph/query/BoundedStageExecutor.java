@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jena.JenaRuntime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The default {@link StageExecutor}: a thread pool with a bounded number of
+ * named daemon threads, an optional bounded queue and a
+ * {@link RejectionPolicy} for work that does not fit.
+ * <p>
+ * <b>Queuing pipelined stages can deadlock.</b> A running stage blocks until
+ * the stage before it delivers, so if that earlier stage is sitting in the
+ * queue behind a pool full of waiting stages, nothing moves. The default
+ * queue capacity is therefore zero: work either gets a thread at once or is
+ * handed to the rejection policy. Only configure a queue if the pool is much
+ * larger than the number of stages of all concurrently running queries.
+ * <p>
+ * The defaults may be set with the system properties
+ * {@code jena.legacy.query.stage.maxthreads} (256),
+ * {@code jena.legacy.query.stage.queuecapacity} (0) and
+ * {@code jena.legacy.query.stage.rejection} ({@code ABORT}).
+ */
+public class BoundedStageExecutor implements StageExecutor {
+    private static final Logger log = LoggerFactory.getLogger(BoundedStageExecutor.class);
+
+    /**
+     * What to do with work that finds every thread busy and the queue full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Close the stage's sink with a {@link RejectedExecutionException}, so
+         * the query fails instead of starting another thread. The pipes the
+         * stage reads from are cancelled too, so the earlier stages already
+         * running stop rather than wait for a reader that never comes.
+         */
+        ABORT,
+        /**
+         * Run the work on a new thread outside the pool. The pool size then
+         * limits the threads kept around rather than the threads in use.
+         */
+        SPAWN
+    }
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final ThreadPoolExecutor pool;
+    private final RejectionPolicy rejectionPolicy;
+    private final String namePrefix;
+    private final AtomicInteger spawnCount = new AtomicInteger();
+    private final ConcurrentHashMap<String, StageMetrics> metrics = new ConcurrentHashMap<String, StageMetrics>();
+
+    /**
+     * Creates a new instance of {@link BoundedStageExecutor} configured from
+     * the system properties.
+     */
+    public BoundedStageExecutor() {
+        this(Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.query.stage.maxthreads", "256")),
+            Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.query.stage.queuecapacity", "0")),
+            RejectionPolicy.valueOf(JenaRuntime.getSystemProperty("jena.legacy.query.stage.rejection", RejectionPolicy.ABORT.name()).trim().toUpperCase()));
+    }
+
+    /**
+     * Creates a new instance of {@link BoundedStageExecutor}.
+     * @param maxThreads the largest number of pooled threads.
+     * @param queueCapacity the number of pieces of work that may wait for a
+     * thread; see the class comment before making this non-zero.
+     * @param rejectionPolicy the {@link RejectionPolicy} for work that does
+     * not fit.
+     */
+    public BoundedStageExecutor(final int maxThreads, final int queueCapacity, final RejectionPolicy rejectionPolicy) {
+        final int poolNumber = POOL_COUNT.incrementAndGet();
+        this.namePrefix = "QueryStage-" + poolNumber + "-";
+        this.rejectionPolicy = rejectionPolicy == null ? RejectionPolicy.ABORT : rejectionPolicy;
+        final BlockingQueue<Runnable> queue = queueCapacity > 0 ? new LinkedBlockingQueue<Runnable>(queueCapacity) : new SynchronousQueue<Runnable>();
+        final int max = Math.max(1, maxThreads);
+        // With a queue, the pool only grows past the core size once the queue
+        // is full, so every thread is a core thread that may time out.
+        this.pool = new ThreadPoolExecutor(max, max, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(final Stage stage, final Pipe sink, final Runnable work) {
+        final StageMetrics stageMetrics = metricsFor(stage);
+        final Runnable measured = measured(stageMetrics, work);
+        try {
+            pool.execute(measured);
+        } catch (final RejectedExecutionException e) {
+            stageMetrics.rejected.incrementAndGet();
+            if (rejectionPolicy == RejectionPolicy.SPAWN) {
+                stageMetrics.spawned.incrementAndGet();
+                final Thread thread = new Thread(measured, namePrefix + "spawned-" + spawnCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                log.debug("rejected work of " + stage + "; " + pool.getActiveCount() + " threads busy");
+                stage.cancelSources();
+                sink.close(e);
+            }
+        }
+    }
+
+    /**
+     * Run optional work on a pooled thread if one is free. Rejected work is
+     * counted but, whatever the {@link RejectionPolicy}, neither spawned nor
+     * aborted: the stage runs it itself.
+     */
+    @Override
+    public boolean tryExecute(final Stage stage, final Runnable work) {
+        final StageMetrics stageMetrics = metricsFor(stage);
+        try {
+            pool.execute(measured(stageMetrics, work));
+            return true;
+        } catch (final RejectedExecutionException e) {
+            stageMetrics.rejected.incrementAndGet();
+            log.debug("left optional work of " + stage + " to the stage; " + pool.getActiveCount() + " threads busy");
+            return false;
+        }
+    }
+
+    /**
+     * @return {@code work}, counted as submitted, wrapped to keep
+     * {@code stageMetrics} up to date while it runs.
+     */
+    private static Runnable measured(final StageMetrics stageMetrics, final Runnable work) {
+        stageMetrics.submitted.incrementAndGet();
+        return new Runnable() {
+            @Override
+            public void run() {
+                stageMetrics.active.incrementAndGet();
+                final long start = System.nanoTime();
+                try {
+                    work.run();
+                } finally {
+                    stageMetrics.busyNanos.addAndGet(System.nanoTime() - start);
+                    stageMetrics.active.decrementAndGet();
+                    stageMetrics.completed.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    private StageMetrics metricsFor(final Stage stage) {
+        final String name = stage.getClass().getSimpleName();
+        StageMetrics stageMetrics = metrics.get(name);
+        if (stageMetrics == null) {
+            final StageMetrics created = new StageMetrics();
+            final StageMetrics existing = metrics.putIfAbsent(name, created);
+            stageMetrics = existing == null ? created : existing;
+        }
+        return stageMetrics;
+    }
+
+    /**
+     * @return the metrics for each kind of stage run by this executor, keyed
+     * by the simple class name of the stage.
+     */
+    public Map<String, StageMetrics> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * @return the number of pooled threads currently running work.
+     */
+    public int getActiveThreads() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * @return the number of pooled threads, busy or idle.
+     */
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    /**
+     * @return the number of pieces of work waiting for a thread.
+     */
+    public int getQueueSize() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Stop accepting work and let the pooled threads finish.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Counters for one kind of stage.
+     */
+    public static class StageMetrics {
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong spawned = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        /**
+         * @return the number of pieces of work handed to the executor.
+         */
+        public long getSubmitted() {
+            return submitted.get();
+        }
+
+        /**
+         * @return the number of pieces of work that found no pooled thread.
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * @return the number of rejected pieces of work run on a spawned
+         * thread.
+         */
+        public long getSpawned() {
+            return spawned.get();
+        }
+
+        /**
+         * @return the number of pieces of work that have finished.
+         */
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        /**
+         * @return the number of pieces of work running now.
+         */
+        public int getActive() {
+            return active.get();
+        }
+
+        /**
+         * @return the total time spent running work, in nanoseconds.
+         */
+        public long getBusyNanos() {
+            return busyNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + getSubmitted() + " rejected=" + getRejected() + " spawned=" + getSpawned()
+                + " completed=" + getCompleted() + " active=" + getActive() + " busyMillis=" + getBusyNanos() / 1000000;
+        }
+    }
+}
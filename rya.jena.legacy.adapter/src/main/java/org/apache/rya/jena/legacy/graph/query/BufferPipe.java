@@ -21,6 +21,7 @@ import java.util.NoSuchElementException;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
+import org.apache.jena.JenaRuntime;
 import org.apache.jena.shared.JenaException;
 import org.apache.rya.jena.legacy.shared.QueryStageException;
 
@@ -31,6 +32,7 @@ public class BufferPipe implements Pipe {
     private boolean open = true;
     private final BlockingQueue<Object> buffer = new ArrayBlockingQueue<Object>(5);
     private Object pending = null;
+    private volatile boolean cancelled = false;
 
     /**
      * Object placed into pipe to indicate that it should close.
@@ -62,12 +64,27 @@ public class BufferPipe implements Pipe {
 
     private static final Finished FINISHED = new Finished();
 
+    /**
+     * Whether {@link #create()} answers batched pipes; set by the system
+     * property {@code jena.legacy.query.batchedpipes} ("yes" by default).
+     */
+    public static boolean batchedPipes = JenaRuntime.getSystemProperty("jena.legacy.query.batchedpipes", "yes").equals("yes");
+
     /**
      * Creates a new instance of {@link BufferPipe}.
      */
     public BufferPipe() {
     }
 
+    /**
+     * @return a new pipe for handing domains between query threads: a
+     * {@link BatchedBufferPipe} if {@link #batchedPipes} is set, otherwise a
+     * {@link BufferPipe}.
+     */
+    public static Pipe create() {
+        return batchedPipes ? new BatchedBufferPipe() : new BufferPipe();
+    }
+
     /**
      * Get something from the pipe; take care of BoundedBuffer's checked
      * exceptions.
@@ -87,6 +104,12 @@ public class BufferPipe implements Pipe {
      * @param object the {@link Object} to put into the pipe.
      */
     private void putAny(final Object object) {
+        if (cancelled) {
+            if (object instanceof Finished) {
+                return;
+            }
+            throw new PipeCancelledException();
+        }
         try {
             buffer.put(object);
             return;
@@ -110,8 +133,20 @@ public class BufferPipe implements Pipe {
         putAny(new Finished(e));
     }
 
+    @Override
+    public void cancel() {
+        cancelled = true;
+        buffer.clear();
+        // Wake a consumer waiting for something to take.
+        buffer.offer(FINISHED);
+    }
+
     @Override
     public boolean hasNext() {
+        if (cancelled) {
+            open = false;
+            pending = null;
+        }
         if (open) {
             if (pending == null) {
                 pending = fetch();
@@ -164,6 +199,20 @@ public class BufferPipe implements Pipe {
         }
     }
 
+    /**
+     * Exception to throw if something is put into a cancelled pipe.
+     */
+    public static class PipeCancelledException extends JenaException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates a new instance of {@link PipeCancelledException}.
+         */
+        PipeCancelledException() {
+            super("the pipe has been cancelled");
+        }
+    }
+
     /**
      * Exception to throw if a {@code put} throws an exception.
      */
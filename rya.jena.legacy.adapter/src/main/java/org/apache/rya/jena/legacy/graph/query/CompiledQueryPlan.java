@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+
+/**
+ * A CompiledQueryPlan is a query that has been planned once: its patterns
+ * sorted, classified and split into stages, its constraints planted as
+ * guards and prepared. Each execution copies the planned stages with fresh
+ * runtime state and runs them, so a query executed many times pays for its
+ * planning only once. Executions may run concurrently.
+ * <p>
+ * A plan may have parameters: variables whose values are supplied anew for
+ * each execution, and which the patterns treat as already bound.
+ */
+public class CompiledQueryPlan implements BindingQueryPlan {
+    private final List<Stage> stages;
+    private final int variableCount;
+    private final int[] parameterIndexes;
+    private final ExecutionMode executionMode;
+
+    /**
+     * Creates a new instance of {@link CompiledQueryPlan}.
+     * @param stages the planned {@link Stage}s, unconnected; they are only
+     * ever copied.
+     * @param variableCount the width of the domains.
+     * @param parameterIndexes the domain index of each parameter.
+     * @param executionMode the {@link ExecutionMode} the stages are run in.
+     */
+    CompiledQueryPlan(final List<Stage> stages, final int variableCount, final int[] parameterIndexes, final ExecutionMode executionMode) {
+        this.stages = Collections.unmodifiableList(new ArrayList<Stage>(stages));
+        this.variableCount = variableCount;
+        this.parameterIndexes = parameterIndexes;
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * @return the width of the domains this plan answers.
+     */
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    /**
+     * @return the number of parameters each execution must supply.
+     */
+    public int getParameterCount() {
+        return parameterIndexes.length;
+    }
+
+    /**
+     * Executes a plan that has no parameters.
+     * @throws IllegalArgumentException if the plan has parameters.
+     */
+    @Override
+    public ExtendedIterator<Domain> executeBindings() {
+        return executeBindings(new Node[0]);
+    }
+
+    /**
+     * Executes the plan.
+     * @param parameters the value of each parameter, in the order they were
+     * given when the plan was compiled. (none {@code null})
+     * @return the {@link ExtendedIterator} over the {@link Domain}s.
+     * @throws IllegalArgumentException if there are not as many parameters
+     * as the plan has, or one is {@code null}.
+     */
+    public ExtendedIterator<Domain> executeBindings(final Node... parameters) {
+        return executeBindings(new ArrayList<Stage>(), parameters);
+    }
+
+    /**
+     * Executes the plan.
+     * @param outStages the {@link List} the stages of this execution are
+     * added to.
+     * @param parameters the value of each parameter, in the order they were
+     * given when the plan was compiled. (none {@code null})
+     * @return the {@link ExtendedIterator} over the {@link Domain}s.
+     * @throws IllegalArgumentException if there are not as many parameters
+     * as the plan has, or one is {@code null}.
+     */
+    public ExtendedIterator<Domain> executeBindings(final List<Stage> outStages, final Node[] parameters) {
+        if (parameters.length != parameterIndexes.length) {
+            throw new IllegalArgumentException("expected " + parameterIndexes.length + " parameters but got " + parameters.length);
+        }
+        for (int i = 0; i < parameters.length; i += 1) {
+            // The stages were planned with the parameters bound, so they
+            // can not match a parameter left unbound.
+            if (parameters[i] == null) {
+                throw new IllegalArgumentException("parameter " + i + " is null");
+            }
+        }
+        Stage current = new InitialStage(variableCount, parameterIndexes, parameters.clone());
+        for (final Stage stage : stages) {
+            final Stage copy = stage.copy();
+            outStages.add(copy);
+            current = copy.connectFrom(current);
+        }
+        return executionMode == ExecutionMode.PULL ? pull(current) : filter(current);
+    }
+
+    private static ExtendedIterator<Domain> pull(final Stage allStages) {
+        return new NiceIterator<Domain>() {
+            private ExtendedIterator<Domain> complete;
+
+            private void ensureIterator() {
+                if (complete == null) {
+                    complete = allStages.pull();
+                }
+            }
+
+            @Override
+            public void close() {
+                if (complete == null) {
+                    allStages.close();
+                } else {
+                    complete.close();
+                }
+            }
+
+            @Override
+            public Domain next() {
+                ensureIterator();
+                return complete.next();
+            }
+
+            @Override
+            public boolean hasNext() {
+                ensureIterator();
+                return complete.hasNext();
+            }
+        };
+    }
+
+    private static ExtendedIterator<Domain> filter(final Stage allStages) {
+        return new NiceIterator<Domain>() {
+            private Pipe complete;
+
+            private void ensurePipe() {
+                if (complete == null) {
+                    complete = allStages.deliver(BufferPipe.create());
+                }
+            }
+
+            @Override
+            public void close() {
+                allStages.close();
+                if (complete != null) {
+                    complete.cancel();
+                }
+            }
+
+            @Override
+            public Domain next() {
+                ensurePipe();
+                return complete.get();
+            }
+
+            @Override
+            public boolean hasNext() {
+                ensurePipe();
+                return complete.hasNext();
+            }
+        };
+    }
+}
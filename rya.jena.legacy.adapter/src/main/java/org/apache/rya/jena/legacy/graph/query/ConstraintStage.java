@@ -17,6 +17,9 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
+import java.util.function.Predicate;
+
+import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.log4j.Logger;
 
 /**
@@ -29,7 +32,8 @@ public class ConstraintStage extends Stage {
     private static final Logger log = Logger.getLogger(ConstraintStage.class);
 
     /**
-     * The set of prepared Valuators representing the constraint.
+     * The set of prepared Valuators representing the constraint; exceptions
+     * during evaluation count as {@code false}.
      */
     protected ValuatorSet prepared;
 
@@ -41,23 +45,7 @@ public class ConstraintStage extends Stage {
      * @param constraint the {@link ExpressionSet} of constraints.
      */
     public ConstraintStage(final Mapping map, final ExpressionSet constraint) {
-        this.prepared = constraint.prepare(map);
-    }
-
-    /**
-     * Evaluate the prepared constraints with the values given by the domain.
-     * @param domain the {@link Domain}.
-     * @param valuatorSet the {@link ValuatorSet}.
-     * @return {@code true} if the constraint evaluates to {@code true}, and
-     * {@code false} if it evaluates to {@code false} or throws an exception.
-     */
-    private static boolean evalConstraint(final Domain domain, final ValuatorSet valuatorSet) {
-        try {
-            return valuatorSet.evalBool(domain);
-        } catch (final Exception e) {
-            log.error("Encountered an exception while evaluating the constaint.", e);
-            return false;
-        }
+        this.prepared = new LenientValuatorSet(constraint.prepare(map));
     }
 
     /**
@@ -66,20 +54,39 @@ public class ConstraintStage extends Stage {
      */
     @Override
     public Pipe deliver(final Pipe pipe) {
-        final Pipe mine = previous.deliver(new BufferPipe());
-        final Thread thread = new Thread("a ConstraintStage") {
+        final Pipe mine = cancelledOnClose(previous.deliver(BufferPipe.create()));
+        getExecutor().execute(this, pipe, new Runnable() {
             @Override
             public void run() {
-                while (mine.hasNext()) {
-                    final Domain domain = mine.get();
-                    if (evalConstraint(domain, prepared)) {
-                        pipe.put(domain);
+                try {
+                    while (stillOpen && mine.hasNext()) {
+                        final Domain domain = mine.get();
+                        if (prepared.evalBool(domain)) {
+                            pipe.put(domain);
+                        }
                     }
+                } catch (final Exception e) {
+                    log.debug("ConstraintStage has caught and forwarded an exception", e);
+                    pipe.close(e);
+                    return;
                 }
                 pipe.close();
             }
-        };
-        thread.start();
+        });
         return pipe;
     }
+
+    /**
+     * The pulled version of {@link #deliver}: keep only the domains from the
+     * previous stage that satisfy the predicate.
+     */
+    @Override
+    public ExtendedIterator<Domain> pull() {
+        return previous.pull().filterKeep(new Predicate<Domain>() {
+            @Override
+            public boolean test(final Domain domain) {
+                return prepared.evalBool(domain);
+            }
+        });
+    }
 }
\ No newline at end of file
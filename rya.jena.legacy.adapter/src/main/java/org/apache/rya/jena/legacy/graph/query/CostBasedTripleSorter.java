@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphStatisticsHandler;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.vocabulary.RDF;
+
+/**
+ * A TripleSorter that orders the patterns of a stage by their estimated
+ * cost, cheapest first, taking into account the variables bound by the
+ * patterns already placed and by whatever runs before the stage.
+ * <p>
+ * Patterns are placed greedily. At each step the candidates are the
+ * remaining patterns that share a variable with the variables already bound
+ * (or all remaining patterns, if none does), so that a cross product is only
+ * chosen when it can not be avoided. Among the candidates the one with the
+ * smallest estimated number of matches is placed next; ties keep the written
+ * order.
+ * <p>
+ * Estimates come from the graph's {@link GraphStatisticsHandler} when it has
+ * one, with already-bound variables treated as wildcards and then discounted
+ * by fixed selectivities. Without statistics, or when the handler can not
+ * answer, fixed weights by pattern shape are used.
+ */
+public class CostBasedTripleSorter implements TripleSorter {
+    /**
+     * Estimated matches for a fully unconstrained pattern, when there are no
+     * statistics.
+     */
+    protected static final double FULL_SCAN = 1e6;
+
+    /**
+     * Discount for a subject bound by an earlier pattern.
+     */
+    protected static final double BOUND_SUBJECT_SELECTIVITY = 1e-4;
+
+    /**
+     * Discount for an object bound by an earlier pattern.
+     */
+    protected static final double BOUND_OBJECT_SELECTIVITY = 1e-3;
+
+    /**
+     * Discount for a predicate bound by an earlier pattern.
+     */
+    protected static final double BOUND_PREDICATE_SELECTIVITY = 1e-1;
+
+    private final Graph graph;
+
+    /**
+     * Creates a new instance of {@link CostBasedTripleSorter} that uses
+     * structural heuristics only, unless given a graph through
+     * {@link #sort(Graph, Triple[])}.
+     */
+    public CostBasedTripleSorter() {
+        this(null);
+    }
+
+    /**
+     * Creates a new instance of {@link CostBasedTripleSorter}.
+     * @param graph the {@link Graph} whose statistics are consulted; may be
+     * {@code null}.
+     */
+    public CostBasedTripleSorter(final Graph graph) {
+        this.graph = graph;
+    }
+
+    @Override
+    public Triple[] sort(final Triple[] triples) {
+        return sort(graph, triples);
+    }
+
+    @Override
+    public Triple[] sort(final Graph g, final Triple[] triples) {
+        return sort(g, triples, Collections.<Node>emptySet());
+    }
+
+    @Override
+    public Triple[] sort(final Graph g, final Triple[] triples, final Set<Node> boundBefore) {
+        if (triples.length < 2) {
+            return triples;
+        }
+        final GraphStatisticsHandler stats = statisticsOf(g);
+        final Map<Triple, Long> statCache = new HashMap<Triple, Long>();
+        final Triple[] result = new Triple[triples.length];
+        final boolean[] placed = new boolean[triples.length];
+        final Set<Node> bound = new HashSet<Node>(boundBefore);
+        for (int n = 0; n < triples.length; n += 1) {
+            final boolean anyConnected = !bound.isEmpty() && hasConnected(triples, placed, bound);
+            int best = -1;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < triples.length; i += 1) {
+                if (placed[i] || anyConnected && !isConnected(triples[i], bound)) {
+                    continue;
+                }
+                final double cost = estimate(triples[i], bound, stats, statCache);
+                if (cost < bestCost) {
+                    best = i;
+                    bestCost = cost;
+                }
+            }
+            placed[best] = true;
+            result[n] = triples[best];
+            addVariables(bound, triples[best]);
+        }
+        return result;
+    }
+
+    private static GraphStatisticsHandler statisticsOf(final Graph g) {
+        if (g == null) {
+            return null;
+        }
+        try {
+            return g.getStatisticsHandler();
+        } catch (final UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Estimate the number of matches of {@code t}, given that the variables
+     * in {@code bound} already have values.
+     * @param t the {@link Triple} pattern.
+     * @param bound the variables already bound.
+     * @param stats the {@link GraphStatisticsHandler}, or {@code null}.
+     * @param statCache statistics already fetched during this sort.
+     * @return the estimated number of matches.
+     */
+    protected double estimate(final Triple t, final Set<Node> bound, final GraphStatisticsHandler stats, final Map<Triple, Long> statCache) {
+        final Node s = t.getSubject();
+        final Node p = t.getPredicate();
+        final Node o = t.getObject();
+        if (stats != null) {
+            final Triple key = Triple.create(concreteOrAny(s), concreteOrAny(p), concreteOrAny(o));
+            Long count = statCache.get(key);
+            if (count == null) {
+                count = Long.valueOf(statistic(stats, key));
+                statCache.put(key, count);
+            }
+            if (count.longValue() >= 0) {
+                double estimate = count.longValue();
+                if (isBoundVariable(s, bound)) {
+                    estimate *= BOUND_SUBJECT_SELECTIVITY;
+                }
+                if (isBoundVariable(p, bound)) {
+                    estimate *= BOUND_PREDICATE_SELECTIVITY;
+                }
+                if (isBoundVariable(o, bound)) {
+                    estimate *= BOUND_OBJECT_SELECTIVITY;
+                }
+                // A pattern with a value for every position matches at most once.
+                return isFixed(s, bound) && isFixed(p, bound) && isFixed(o, bound) ? Math.min(estimate, 1) : estimate;
+            }
+        }
+        return shapeWeight(isFixed(s, bound), isFixed(p, bound), isFixed(o, bound), p);
+    }
+
+    /**
+     * Ask {@code stats} for the matches of {@code key}. Handlers that only
+     * count single positions (such as the in-memory graph's) answer -1 for a
+     * key with several concrete positions; it is then bounded by the
+     * smallest count of its concrete positions taken singly.
+     * @param stats the {@link GraphStatisticsHandler}.
+     * @param key the pattern, with {@link Node#ANY} for its variables.
+     * @return the estimated number of matches, or -1 if there is none.
+     */
+    static long statistic(final GraphStatisticsHandler stats, final Triple key) {
+        final long count = statistic(stats, key.getSubject(), key.getPredicate(), key.getObject());
+        if (count >= 0) {
+            return count;
+        }
+        long least = -1;
+        if (key.getSubject().isConcrete()) {
+            least = smaller(least, statistic(stats, key.getSubject(), Node.ANY, Node.ANY));
+        }
+        if (key.getPredicate().isConcrete()) {
+            least = smaller(least, statistic(stats, Node.ANY, key.getPredicate(), Node.ANY));
+        }
+        if (key.getObject().isConcrete()) {
+            least = smaller(least, statistic(stats, Node.ANY, Node.ANY, key.getObject()));
+        }
+        return least;
+    }
+
+    private static long statistic(final GraphStatisticsHandler stats, final Node s, final Node p, final Node o) {
+        try {
+            return stats.getStatistic(s, p, o);
+        } catch (final RuntimeException e) {
+            PatternStageBase.log.debug("statistics handler could not estimate " + Triple.create(s, p, o), e);
+            return -1;
+        }
+    }
+
+    private static long smaller(final long a, final long b) {
+        return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+    }
+
+    /**
+     * Fixed weights by which positions of a pattern have values, used when
+     * there are no statistics. A subject is taken to be the most selective
+     * position and a predicate the least; {@code rdf:type} with an unbound
+     * subject is taken to be broad.
+     */
+    protected static double shapeWeight(final boolean s, final boolean p, final boolean o, final Node predicate) {
+        if (s && p && o) {
+            return 1;
+        }
+        if (s && o) {
+            return 2;
+        }
+        if (s && p) {
+            return 3;
+        }
+        if (s) {
+            return 10;
+        }
+        if (p && o) {
+            return RDF.type.asNode().equals(predicate) ? 1000 : 50;
+        }
+        if (o) {
+            return 100;
+        }
+        if (p) {
+            return 10000;
+        }
+        return FULL_SCAN;
+    }
+
+    private static Node concreteOrAny(final Node n) {
+        return n.isConcrete() ? n : Node.ANY;
+    }
+
+    private static boolean isFixed(final Node n, final Set<Node> bound) {
+        return n.isConcrete() || bound.contains(n);
+    }
+
+    private static boolean isBoundVariable(final Node n, final Set<Node> bound) {
+        return n.isVariable() && bound.contains(n);
+    }
+
+    private static boolean isConnected(final Triple t, final Set<Node> bound) {
+        return bound.contains(t.getSubject()) || bound.contains(t.getPredicate()) || bound.contains(t.getObject());
+    }
+
+    private static boolean hasConnected(final Triple[] triples, final boolean[] placed, final Set<Node> bound) {
+        for (int i = 0; i < triples.length; i += 1) {
+            if (!placed[i] && isConnected(triples[i], bound)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addVariables(final Set<Node> bound, final Triple t) {
+        addIfVariable(bound, t.getSubject());
+        addIfVariable(bound, t.getPredicate());
+        addIfVariable(bound, t.getObject());
+    }
+
+    private static void addIfVariable(final Set<Node> bound, final Node n) {
+        if (n.isVariable()) {
+            bound.add(n);
+        }
+    }
+}
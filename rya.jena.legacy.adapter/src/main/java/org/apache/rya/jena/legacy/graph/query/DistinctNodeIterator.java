@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.shared.JenaException;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An iterator over the distinct nodes of another iterator, delivered as they
+ * are first seen. The nodes already delivered are remembered in memory up to
+ * {@link SimpleQueryHandler#maxDistinctNodes}; past that, unseen nodes are
+ * written to partition files by hash and each partition is made distinct on
+ * its own once the source is exhausted, so the memory held stays near the
+ * limit however many distinct nodes there are.
+ */
+final class DistinctNodeIterator extends NiceIterator<Node> {
+    private static final Logger log = LoggerFactory.getLogger(DistinctNodeIterator.class);
+
+    /**
+     * Partitions are split again, with a different hash, at most this deep;
+     * below it a partition is held in memory whatever its size.
+     */
+    private static final int MAX_DEPTH = 3;
+
+    private final ExtendedIterator<Node> source;
+    private final int depth;
+    private Set<Node> seen = new HashSet<Node>();
+    private File[] files = null;
+    private DataOutputStream[] out = null;
+    private int nextPartition = 0;
+    private DistinctNodeIterator partition = null;
+    private Node next = null;
+    private boolean closed = false;
+
+    /**
+     * @param source the nodes, duplicates and all.
+     */
+    DistinctNodeIterator(final ExtendedIterator<Node> source) {
+        this(source, 0);
+    }
+
+    private DistinctNodeIterator(final ExtendedIterator<Node> source, final int depth) {
+        this.source = source;
+        this.depth = depth;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            next = advance();
+            if (next == null) {
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Node next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("DistinctNodeIterator");
+        }
+        final Node result = next;
+        next = null;
+        return result;
+    }
+
+    private Node advance() {
+        while (seen != null && source.hasNext()) {
+            final Node n = source.next();
+            if (seen.contains(n)) {
+                continue;
+            }
+            if (files == null && (seen.size() < SimpleQueryHandler.maxDistinctNodes || depth >= MAX_DEPTH)) {
+                seen.add(n);
+                return n;
+            }
+            spill(n);
+        }
+        // Spilled nodes were all checked against the nodes delivered so far,
+        // and the partitions are disjoint, so each can be read on its own.
+        seen = null;
+        while (files != null) {
+            if (partition != null && partition.hasNext()) {
+                return partition.next();
+            }
+            if (nextPartition >= files.length) {
+                delete();
+                files = null;
+                return null;
+            }
+            partition = new DistinctNodeIterator(new PartitionIterator(files[nextPartition++]), depth + 1);
+        }
+        return null;
+    }
+
+    private void spill(final Node n) {
+        if (files == null) {
+            log.debug("DistinctNodeIterator passed " + seen.size() + " nodes; spilling to disk");
+            final int partitions = Math.max(2, HashJoinStage.spillPartitions);
+            files = new File[partitions];
+            out = new DataOutputStream[partitions];
+            try {
+                for (int i = 0; i < partitions; i += 1) {
+                    files[i] = File.createTempFile("distinct-", ".bin");
+                    files[i].deleteOnExit();
+                    out[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i])));
+                }
+            } catch (final IOException e) {
+                delete();
+                throw new JenaException("could not create distinct spill files", e);
+            }
+        }
+        try {
+            NodeCodec.write(out[partitionOf(n, files.length)], n);
+        } catch (final IOException e) {
+            delete();
+            throw new JenaException("could not spill distinct node", e);
+        }
+    }
+
+    /**
+     * Each depth mixes the hash differently, so that a partition read back
+     * is spread over the partitions of the next depth.
+     */
+    private int partitionOf(final Node n, final int partitions) {
+        int h = n.hashCode() * (0x9E3779B9 + 2 * depth);
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % partitions;
+    }
+
+    private void closeOutputs() {
+        if (out != null) {
+            for (final DataOutputStream o : out) {
+                if (o != null) {
+                    try {
+                        o.close();
+                    } catch (final IOException e) {
+                        log.debug("could not close distinct spill file", e);
+                    }
+                }
+            }
+            out = null;
+        }
+    }
+
+    private void delete() {
+        closeOutputs();
+        if (files != null) {
+            for (final File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            next = null;
+            seen = null;
+            source.close();
+            if (partition != null) {
+                partition.close();
+            }
+            delete();
+            files = null;
+        }
+    }
+
+    /**
+     * The nodes of one partition file, read back lazily.
+     */
+    private final class PartitionIterator extends NiceIterator<Node> {
+        private final File file;
+        private DataInputStream in = null;
+        private Node next = null;
+        private boolean done = false;
+
+        PartitionIterator(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    if (in == null) {
+                        closeOutputs();
+                        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                    }
+                    next = NodeCodec.read(in);
+                } catch (final EOFException e) {
+                    close();
+                } catch (final IOException e) {
+                    close();
+                    throw new JenaException("could not read distinct spill file", e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("PartitionIterator");
+            }
+            final Node result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            if (!done) {
+                done = true;
+                next = null;
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (final IOException e) {
+                        log.debug("could not close distinct spill file", e);
+                    }
+                }
+                file.delete();
+            }
+        }
+    }
+}
@@ -27,6 +27,11 @@ import org.apache.jena.graph.Node;
  * interface so that casual users don't have to worry about its special
  * features - for them, it is immutable (they only ever get to see Domains
  * that have emerged from the query process).
+ * <p>
+ * The values are held as Nodes, not as dictionary-encoded ints. Matchers,
+ * valuators and query nodes are extension points that take Nodes, so codes
+ * would be decoded again at each of them, and with compressed references an
+ * array of int codes is no smaller than the array of Nodes it replaces.
  */
 public final class Domain extends AbstractList<Node> implements IndexValues {
     /**
@@ -90,6 +95,17 @@ public final class Domain extends AbstractList<Node> implements IndexValues {
         return new Domain(this.value);
     }
 
+    /**
+     * Copies the first {@code width} slots of the {@link Domain}.
+     * @param width the number of leading slots to copy.
+     * @return the copied {@link Domain}, {@code width} slots wide.
+     */
+    public Domain copy(final int width) {
+        final Domain result = new Domain(width);
+        System.arraycopy(value, 0, result.value, 0, width);
+        return result;
+    }
+
     @Override
     public boolean equals(final Object object) {
         return object instanceof Domain && Arrays.equals(this.value, ((Domain) object).value) || super.equals(object);
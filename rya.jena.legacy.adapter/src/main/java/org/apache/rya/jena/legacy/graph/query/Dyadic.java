@@ -94,7 +94,7 @@ public abstract class Dyadic extends Application {
         return new Valuator() {
             @Override
             public boolean evalBool(final IndexValues iv) {
-                return ((Boolean) evalObject(iv)).booleanValue();
+                return Dyadic.this.evalBool(lValuator.evalObject(iv), rValuator.evalObject(iv));
             }
 
             @Override
@@ -116,11 +116,21 @@ public abstract class Dyadic extends Application {
      * @return the ANDed {@link Expression}.
      */
     public static Expression and(final Expression l, final Expression r) {
-        return new Dyadic(l, ExpressionFunctionURIs.AND, r) {
-            @Override
-            public boolean evalBool(final Object x, final Object y) {
-                return ((Boolean) x).booleanValue() && ((Boolean) y).booleanValue();
-            }
-        };
+        return new And(l, r);
+    }
+
+    /**
+     * The conjunction built by {@link Dyadic#and}; {@link ExpressionCompiler}
+     * compiles it to a short-circuit {@code &&}.
+     */
+    static final class And extends Dyadic {
+        And(final Expression l, final Expression r) {
+            super(l, ExpressionFunctionURIs.AND, r);
+        }
+
+        @Override
+        public boolean evalBool(final Object x, final Object y) {
+            return ((Boolean) x).booleanValue() && ((Boolean) y).booleanValue();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import org.apache.jena.JenaRuntime;
+
+/**
+ * How the stages of a query are run.
+ */
+public enum ExecutionMode {
+    /**
+     * Every stage runs on its own thread and hands its bindings to the next
+     * stage through a {@link Pipe}. Good for queries with large intermediate
+     * results over slow graphs, where the stages overlap their work.
+     */
+    PIPELINED,
+    /**
+     * The stages are nested iterators pulled on the caller's thread. No
+     * threads are started and no bindings are handed between threads, which
+     * suits queries with small intermediate results.
+     */
+    PULL;
+
+    /**
+     * The mode used when a query does not set one; taken from the system
+     * property {@code jena.legacy.query.executionmode}, {@link #PIPELINED}
+     * if unset.
+     */
+    public static final ExecutionMode DEFAULT = valueOf(JenaRuntime.getSystemProperty("jena.legacy.query.executionmode", PIPELINED.name()).trim().toUpperCase());
+}
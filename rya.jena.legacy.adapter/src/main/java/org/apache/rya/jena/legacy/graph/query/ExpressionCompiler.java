@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ExpressionCompiler prepares Expressions into Valuators that are cheap to
+ * run on every intermediate binding, and estimates what each one costs so
+ * that a {@link ValuatorSet} can run the cheap ones first.
+ * <p>
+ * A {@link Dyadic} that does not override {@link Dyadic#prepare} is compiled
+ * into a Valuator that calls its {@code evalBool(Object, Object)} directly,
+ * and an {@link Dyadic#and} of two expressions into a short-circuit
+ * {@code &&} of its compiled operands, so that no Boolean is boxed on the way.
+ * A {@link Expression.Fixed} constant answers a precomputed {@code boolean}.
+ * Any other Expression is prepared as it asks to be.
+ */
+public final class ExpressionCompiler {
+    /**
+     * The cost of a string-matching function of {@link Rewrite}, over the
+     * cost of its operands.
+     */
+    private static final int STRING_MATCH_COST = 8;
+
+    /**
+     * Whether a Dyadic class keeps the built-in {@link Dyadic#prepare}.
+     */
+    private static final ConcurrentHashMap<Class<?>, Boolean> standardPrepare = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    private ExpressionCompiler() {
+    }
+
+    /**
+     * @param e the {@link Expression} to compile.
+     * @param vi the {@link VariableIndexes} to compile it against.
+     * @return a {@link Valuator} evaluating {@code e}.
+     */
+    public static Valuator compile(final Expression e, final VariableIndexes vi) {
+        if (e instanceof Dyadic.And) {
+            return new AndValuator(compile(e.getArg(0), vi), compile(e.getArg(1), vi));
+        }
+        if (e instanceof Dyadic && hasStandardPrepare(e.getClass())) {
+            return new DyadicValuator((Dyadic) e, compile(e.getArg(0), vi), compile(e.getArg(1), vi));
+        }
+        if (e instanceof Expression.Fixed && e.getClass() == Expression.Fixed.class) {
+            return new ConstantValuator(e.getValue());
+        }
+        return e.prepare(vi);
+    }
+
+    /**
+     * Adds the compiled Valuator of each Expression in {@code expressions}
+     * to {@code result}, with its estimated cost.
+     * @param expressions the {@link ExpressionSet}.
+     * @param vi the {@link VariableIndexes}.
+     * @param result the {@link ValuatorSet} to add to.
+     * @return {@code result}.
+     */
+    public static ValuatorSet compile(final ExpressionSet expressions, final VariableIndexes vi, final ValuatorSet result) {
+        final Iterator<Expression> it = expressions.iterator();
+        while (it.hasNext()) {
+            final Expression e = it.next();
+            result.add(compile(e, vi), cost(e));
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the relative cost of evaluating {@code e}: constants are free,
+     * a variable costs one, an application costs one more than its operands,
+     * and the string-matching functions cost more again.
+     * @param e the {@link Expression}.
+     * @return the estimated cost.
+     */
+    public static int cost(final Expression e) {
+        if (e.isConstant()) {
+            return 0;
+        }
+        if (e.isVariable()) {
+            return 1;
+        }
+        if (e.isApply()) {
+            int result = 1;
+            for (int i = 0; i < e.argCount(); i += 1) {
+                result += cost(e.getArg(i));
+            }
+            final String f = e.getFun();
+            if (f != null && f.startsWith(ExpressionFunctionURIs.PREFIX + "J_")) {
+                result += STRING_MATCH_COST;
+            }
+            return result;
+        }
+        return 1;
+    }
+
+    private static boolean hasStandardPrepare(final Class<?> c) {
+        Boolean result = standardPrepare.get(c);
+        if (result == null) {
+            try {
+                result = Boolean.valueOf(c.getMethod("prepare", VariableIndexes.class).getDeclaringClass() == Dyadic.class);
+            } catch (final NoSuchMethodException e) {
+                result = Boolean.FALSE;
+            }
+            standardPrepare.put(c, result);
+        }
+        return result.booleanValue();
+    }
+
+    /**
+     * Evaluates a {@link Dyadic} on its compiled operands.
+     */
+    private static final class DyadicValuator implements Valuator {
+        private final Dyadic dyadic;
+        private final Valuator l;
+        private final Valuator r;
+
+        DyadicValuator(final Dyadic dyadic, final Valuator l, final Valuator r) {
+            this.dyadic = dyadic;
+            this.l = l;
+            this.r = r;
+        }
+
+        @Override
+        public boolean evalBool(final IndexValues iv) {
+            return dyadic.evalBool(l.evalObject(iv), r.evalObject(iv));
+        }
+
+        @Override
+        public Object evalObject(final IndexValues iv) {
+            return dyadic.evalObject(l.evalObject(iv), r.evalObject(iv));
+        }
+    }
+
+    /**
+     * The short-circuit conjunction of two compiled operands.
+     */
+    private static final class AndValuator implements Valuator {
+        private final Valuator l;
+        private final Valuator r;
+
+        AndValuator(final Valuator l, final Valuator r) {
+            this.l = l;
+            this.r = r;
+        }
+
+        @Override
+        public boolean evalBool(final IndexValues iv) {
+            return l.evalBool(iv) && r.evalBool(iv);
+        }
+
+        @Override
+        public Object evalObject(final IndexValues iv) {
+            return evalBool(iv) ? Boolean.TRUE : Boolean.FALSE;
+        }
+    }
+
+    /**
+     * A constant whose {@code boolean} value, if it has one, is worked out
+     * once.
+     */
+    private static final class ConstantValuator implements Valuator {
+        private final Object value;
+        private final boolean bool;
+
+        ConstantValuator(final Object value) {
+            this.value = value;
+            this.bool = value instanceof Boolean && ((Boolean) value).booleanValue();
+        }
+
+        @Override
+        public boolean evalBool(final IndexValues iv) {
+            if (value instanceof Boolean) {
+                return bool;
+            }
+            throw new ClassCastException("not Boolean: " + value);
+        }
+
+        @Override
+        public Object evalObject(final IndexValues iv) {
+            return value;
+        }
+    }
+}
@@ -44,6 +44,17 @@ public class ExpressionSet {
         return this;
     }
 
+    /**
+     * @return a new {@link ExpressionSet} with the same members as this one.
+     * Planting guards removes the planted expressions from the set it is
+     * given, so a query plans against a copy of its constraints.
+     */
+    public ExpressionSet copy() {
+        final ExpressionSet result = new ExpressionSet();
+        result.expressions.addAll(expressions);
+        return result;
+    }
+
     /**
      * @return {@code true} if this {@link ExpressionSet} is non-trivial
      * (ie non-empty). {@code false} otherwise.
@@ -55,15 +66,11 @@ public class ExpressionSet {
     /**
      * @param vi the {@link VariableIndexes}.
      * @return a ValuatorSet which contains exactly the valuators for each
-     * Expression in this ExpressionSet, prepared against the VariableIndexes vi.
+     * Expression in this ExpressionSet, compiled against the VariableIndexes vi
+     * and ordered cheapest first.
      */
     public ValuatorSet prepare(final VariableIndexes vi) {
-        final ValuatorSet result = new ValuatorSet();
-        final Iterator<Expression> it = expressions.iterator();
-        while (it.hasNext()) {
-            result.add(it.next().prepare(vi));
-        }
-        return result;
+        return ExpressionCompiler.compile(this, vi, new ValuatorSet());
     }
 
     /**
@@ -122,7 +122,17 @@ public class GraphQuery {
         return this;
     }
 
-    private GraphQuery addNamedMatch(final String name, final Node s, final Node p, final Node o) {
+    /**
+     * Add an (S, P, O) match against the graph named {@code name} in the
+     * query's arguments (see {@link #args()}). Return this query for
+     * cascading.
+     * @param name the name of the graph to match against
+     * @param s the node to match the subject
+     * @param p the node to match the predicate
+     * @param o the node to match the object
+     * @return this Query, for cascading
+     */
+    public GraphQuery addNamedMatch(final String name, final Node s, final Node p, final Node o) {
         triplePattern.add(Triple.create(s, p, o));
         triples.add(name, Triple.create(s, p, o));
         return this;
@@ -220,7 +230,7 @@ public class GraphQuery {
      * @return the {@link ExtendedIterator} over the {@link Domain}s.
      */
     public ExtendedIterator<Domain> executeBindings(final List<Stage> outStages, final NamedGraphMap args, final Node[] nodes) {
-        final SimpleQueryEngine e = new SimpleQueryEngine(triplePattern, sortMethod, constraint);
+        final SimpleQueryEngine e = new SimpleQueryEngine(triples, sortMethod, constraint, executionMode);
         final ExtendedIterator<Domain> result = e.executeBindings(outStages, args, nodes);
         lastQueryEngine = e;
         return result;
@@ -228,6 +238,34 @@ public class GraphQuery {
 
     private SimpleQueryEngine lastQueryEngine = null;
 
+    /**
+     * Plans this query once, for repeated execution against {@code g}.
+     * @param g the {@link Graph}.
+     * @param results the array of {@link Node} results.
+     * @param parameters the variables whose values are supplied anew for each
+     * execution of the plan.
+     * @return the {@link CompiledQueryPlan}.
+     */
+    public CompiledQueryPlan compile(final Graph g, final Node[] results, final Node... parameters) {
+        return compile(args().put(NamedTripleBunches.anon, g), results, parameters);
+    }
+
+    /**
+     * Plans this query once, for repeated execution against the graphs of
+     * {@code args}.
+     * @param args the {@link NamedGraphMap} args.
+     * @param results the array of {@link Node} results.
+     * @param parameters the variables whose values are supplied anew for each
+     * execution of the plan.
+     * @return the {@link CompiledQueryPlan}.
+     */
+    public CompiledQueryPlan compile(final NamedGraphMap args, final Node[] results, final Node... parameters) {
+        final SimpleQueryEngine e = new SimpleQueryEngine(triples, sortMethod, constraint, executionMode);
+        final CompiledQueryPlan result = e.compile(args, results, parameters);
+        lastQueryEngine = e;
+        return result;
+    }
+
     /**
      * mapping of graph name -> graph
      */
@@ -257,6 +295,26 @@ public class GraphQuery {
 
     private TripleSorter sortMethod = TripleSorter.dontSort;
 
+    /**
+     * @return the {@link ExecutionMode} the query's stages are run in.
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Sets the {@link ExecutionMode} the query's stages are run in.
+     * @param mode the {@link ExecutionMode}; {@code null} selects
+     * {@link ExecutionMode#DEFAULT}.
+     * @return this {@link GraphQuery}, for cascading.
+     */
+    public GraphQuery setExecutionMode(final ExecutionMode mode) {
+        executionMode = mode == null ? ExecutionMode.DEFAULT : mode;
+        return this;
+    }
+
+    private ExecutionMode executionMode = ExecutionMode.DEFAULT;
+
     /**
      * @return the variable count.
      */
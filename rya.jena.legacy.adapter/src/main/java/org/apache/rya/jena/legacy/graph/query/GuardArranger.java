@@ -113,7 +113,7 @@ public class GuardArranger {
     protected void plantWhereFullyBound(final Expression expression, final Iterator<Expression> it, final Mapping map, final ValuatorSet[] valuatorSets) {
         for (int i = 0; i < boundVariables.length; i += 1) {
             if (canEval(expression, i)) {
-                valuatorSets[i].add(expression.prepare(map));
+                valuatorSets[i].add(ExpressionCompiler.compile(expression, map), ExpressionCompiler.cost(expression));
                 it.remove();
                 return;
             }
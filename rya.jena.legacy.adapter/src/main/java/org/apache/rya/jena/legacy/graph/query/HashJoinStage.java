@@ -0,0 +1,747 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.jena.JenaRuntime;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.shared.JenaException;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+
+/**
+ * A HashJoinStage matches its patterns with a hash join instead of the
+ * nested-loop index join of {@link PatternStage}. The patterns are matched
+ * against the graph once, on their own, and the matches are put in a hash
+ * table keyed on the variables that earlier stages have already bound. Each
+ * domain from the previous stage then probes the table, so no graph lookups
+ * are made per domain.
+ * <p>
+ * The build side is held in memory up to {@link #maxInMemoryRows} rows.
+ * Beyond that the stage switches to a grace hash join: build rows and
+ * incoming domains are written to partition files by key hash, and each
+ * partition is joined in memory once the previous stage is exhausted; a
+ * partition that is still too big is split again, with a different hash, up
+ * to {@link #MAX_SPILL_DEPTH} times. When
+ * the stage shares no variables with earlier stages (a cross product), the
+ * build side is split across the partitions and the incoming domains are
+ * re-read for each partition instead.
+ */
+public class HashJoinStage extends PatternStageBase {
+    /**
+     * The largest number of build rows held in memory; taken from the system
+     * property {@code jena.legacy.query.hashjoin.maxrows} (100000).
+     */
+    public static int maxInMemoryRows = Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.query.hashjoin.maxrows", "100000"));
+
+    /**
+     * The number of partitions used once the build side spills; taken from
+     * the system property {@code jena.legacy.query.hashjoin.partitions} (16).
+     */
+    public static int spillPartitions = Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.query.hashjoin.partitions", "16"));
+
+    /**
+     * Partitions are split again at most this deep; below it a partition is
+     * held in memory whatever its size.
+     */
+    private static final int MAX_SPILL_DEPTH = 3;
+
+    /**
+     * The patterns classified as if nothing were bound, for the build scan;
+     * every variable binds at the index the mapping gives it.
+     */
+    private final QueryTriple[] scan;
+
+    /**
+     * Indexes of the variables shared with earlier stages; the hash key.
+     */
+    private final int[] keyIndexes;
+
+    /**
+     * Indexes of all the variables of the patterns, key variables first; a
+     * build row holds the values at these indexes.
+     */
+    private final int[] rowIndexes;
+
+    /**
+     * Whether a pipelined execution starts matching the build side as soon
+     * as it is delivered, rather than on the first incoming domain.
+     */
+    private boolean concurrentBuild = false;
+
+    /**
+     * Creates a new instance of {@link HashJoinStage}.
+     * @param graph the {@link Graph}.
+     * @param map the {@link Mapping}.
+     * @param constraints the {@link ExpressionSet} of constraints.
+     * @param triples the {@link Triple}s.
+     */
+    public HashJoinStage(final Graph graph, final Mapping map, final ExpressionSet constraints, final Triple[] triples) {
+        this(graph, map, constraints, triples, variablesBoundIn(map, triples));
+    }
+
+    private HashJoinStage(final Graph graph, final Mapping map, final ExpressionSet constraints, final Triple[] triples, final Set<Node> shared) {
+        super(QueryNode.FACTORY, graph, map, constraints, triples);
+        final Set<Node> variables = new LinkedHashSet<Node>(shared);
+        for (final Triple t : triples) {
+            addIfVariable(variables, t.getSubject());
+            addIfVariable(variables, t.getPredicate());
+            addIfVariable(variables, t.getObject());
+        }
+        this.keyIndexes = new int[shared.size()];
+        this.rowIndexes = new int[variables.size()];
+        int i = 0;
+        for (final Node v : variables) {
+            rowIndexes[i] = map.indexOf(v);
+            if (i < keyIndexes.length) {
+                keyIndexes[i] = rowIndexes[i];
+            }
+            i += 1;
+        }
+        this.scan = classifyForScan(map, triples);
+    }
+
+    /**
+     * @return the variables of {@code triples} that {@code map} has already
+     * bound, in order of appearance.
+     */
+    private static Set<Node> variablesBoundIn(final Mapping map, final Triple[] triples) {
+        final Set<Node> result = new LinkedHashSet<Node>();
+        for (final Triple t : triples) {
+            for (final Node n : new Node[] {t.getSubject(), t.getPredicate(), t.getObject()}) {
+                if (n.isVariable() && map.hasBound(n)) {
+                    result.add(n);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void addIfVariable(final Set<Node> variables, final Node n) {
+        if (n.isVariable()) {
+            variables.add(n);
+        }
+    }
+
+    private QueryTriple[] classifyForScan(final Mapping map, final Triple[] triples) {
+        final QueryTriple[] result = factory.createArray(triples.length);
+        final Set<Node> seen = new HashSet<Node>();
+        for (int i = 0; i < triples.length; i += 1) {
+            final Set<Node> recent = new HashSet<Node>();
+            final Triple t = triples[i];
+            result[i] = factory.createTriple(
+                classifyForScan(map, seen, recent, t.getSubject()),
+                classifyForScan(map, seen, recent, t.getPredicate()),
+                classifyForScan(map, seen, recent, t.getObject()));
+        }
+        return result;
+    }
+
+    private QueryNode classifyForScan(final Mapping map, final Set<Node> seen, final Set<Node> recent, final Node n) {
+        if (n.equals(Node.ANY)) {
+            return factory.createAny();
+        }
+        if (n.isVariable()) {
+            if (seen.contains(n)) {
+                return recent.contains(n) ? factory.createJustBound(n, map.indexOf(n)) : factory.createBound(n, map.indexOf(n));
+            }
+            seen.add(n);
+            recent.add(n);
+            return factory.createBind(n, map.indexOf(n));
+        }
+        return factory.createFixed(n);
+    }
+
+    /**
+     * Sets whether a pipelined execution of this stage starts matching the
+     * build side as soon as it is delivered, on a thread of its own, rather
+     * than when the first incoming domain arrives. The build side does not
+     * depend on the earlier stages, so it is then matched while they run.
+     * @param concurrentBuild {@code true} to build concurrently.
+     */
+    public void setConcurrentBuild(final boolean concurrentBuild) {
+        this.concurrentBuild = concurrentBuild;
+    }
+
+    /**
+     * The build table is filled once per delivery, so incoming domains are
+     * not matched in parallel chunks.
+     */
+    @Override
+    protected boolean isParallelizable() {
+        return false;
+    }
+
+    @Override
+    protected StageElement makeStageElementChain(final Pipe sink, final int index) {
+        final Join join = new Join(makeFinalStageElement(sink));
+        if (concurrentBuild) {
+            join.startBuild();
+        }
+        return new StageElement() {
+            @Override
+            public void run(final Domain current) {
+                join.probe(current);
+            }
+
+            @Override
+            public void flush() {
+                try {
+                    while (join.joinNextPartition()) {
+                        // Each call joins one spilled partition.
+                    }
+                } finally {
+                    join.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public ExtendedIterator<Domain> pull() {
+        final ExtendedIterator<Domain> source = previous.pull();
+        final ArrayDeque<Domain> ready = new ArrayDeque<Domain>();
+        final Join join = new Join(makeFinalStageElement(new Pipe() {
+            @Override
+            public void put(final Domain d) {
+                ready.add(d);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !ready.isEmpty();
+            }
+
+            @Override
+            public Domain get() {
+                return ready.remove();
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void close(final Exception e) {
+            }
+        }));
+        return new NiceIterator<Domain>() {
+            private boolean sourceDone = false;
+            private boolean joinDone = false;
+
+            @Override
+            public boolean hasNext() {
+                while (ready.isEmpty()) {
+                    if (!stillOpen || joinDone) {
+                        return false;
+                    }
+                    if (!sourceDone && source.hasNext()) {
+                        join.probe(source.next());
+                    } else {
+                        sourceDone = true;
+                        if (!join.joinNextPartition()) {
+                            joinDone = true;
+                            join.close();
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Domain next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ready.remove();
+            }
+
+            @Override
+            public void close() {
+                ready.clear();
+                source.close();
+                join.close();
+                HashJoinStage.this.close();
+            }
+        };
+    }
+
+    /**
+     * @return the hash key of a build row: the indexing values of its key
+     * variables.
+     */
+    private List<Object> keyOfRow(final Node[] row) {
+        final Object[] key = new Object[keyIndexes.length];
+        for (int i = 0; i < key.length; i += 1) {
+            key[i] = row[i].getIndexingValue();
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * @return the hash key of an incoming domain.
+     */
+    private List<Object> keyOfDomain(final Domain d) {
+        final Object[] key = new Object[keyIndexes.length];
+        for (int i = 0; i < key.length; i += 1) {
+            key[i] = d.getElement(keyIndexes[i]).getIndexingValue();
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * The state of one execution of the join: the build table, or the
+     * spill files once it outgrows memory.
+     */
+    private final class Join {
+        private final StageElement next;
+        private boolean built = false;
+        private FutureTask<Void> buildTask = null;
+        private volatile boolean abandoned = false;
+        private Map<List<Object>, List<Node[]>> table = new HashMap<List<Object>, List<Node[]>>();
+        private int rows = 0;
+        private Spill spill = null;
+
+        /**
+         * Creates a new instance of {@link Join}.
+         * @param next the {@link StageElement} run for every joined domain.
+         */
+        Join(final StageElement next) {
+            this.next = next;
+        }
+
+        /**
+         * Start matching the build side on a thread of the stage executor,
+         * if it has one free. The first probe waits for it, or runs it itself
+         * if the executor has not taken or not yet started it; a build the
+         * executor turns down therefore costs no more than a sequential one.
+         */
+        void startBuild() {
+            // The scratch domain only needs the slots the patterns bind.
+            int width = 0;
+            for (final int index : rowIndexes) {
+                width = Math.max(width, index + 1);
+            }
+            final int scratchWidth = width;
+            buildTask = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    build(scratchWidth);
+                }
+            }, null);
+            getExecutor().tryExecute(HashJoinStage.this, buildTask);
+        }
+
+        void probe(final Domain d) {
+            if (!built) {
+                built = true;
+                if (buildTask == null) {
+                    build(d.size());
+                } else {
+                    awaitBuild();
+                }
+            }
+            if (spill != null) {
+                spill.writeProbe(d);
+            } else {
+                probeTable(table, d);
+            }
+        }
+
+        private void probeTable(final Map<List<Object>, List<Node[]>> t, final Domain d) {
+            final List<Node[]> matches = t.get(keyOfDomain(d));
+            if (matches == null) {
+                return;
+            }
+            for (final Node[] row : matches) {
+                if (!stillOpen) {
+                    return;
+                }
+                for (int i = keyIndexes.length; i < row.length; i += 1) {
+                    d.setElement(rowIndexes[i], row[i]);
+                }
+                next.run(d);
+            }
+        }
+
+        /**
+         * Match the patterns against the graph, on their own, and load the
+         * matches into the table (or the spill files).
+         * @param width the width of the domains of this query.
+         */
+        private void awaitBuild() {
+            buildTask.run();
+            try {
+                buildTask.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JenaException(e);
+            } catch (final ExecutionException e) {
+                throw new JenaException(e.getCause());
+            }
+        }
+
+        private void build(final int width) {
+            final Applyer[] applyers = new Applyer[scan.length];
+            final Matcher[] matchers = new Matcher[scan.length];
+            for (int i = 0; i < scan.length; i += 1) {
+                applyers[i] = scan[i].createApplyer(graph);
+                matchers[i] = scan[i].createMatcher();
+            }
+            scanLevel(0, new Domain(width), applyers, matchers);
+        }
+
+        private void scanLevel(final int index, final Domain d, final Applyer[] applyers, final Matcher[] matchers) {
+            final Iterator<Triple> it = applyers[index].find(d);
+            try {
+                while (stillOpen && !abandoned && it.hasNext()) {
+                    if (!matchers[index].match(d, it.next())) {
+                        continue;
+                    }
+                    if (guards[index].isNonTrivial() && !guards[index].evalBool(d)) {
+                        continue;
+                    }
+                    if (index + 1 == scan.length) {
+                        addRow(d);
+                    } else {
+                        scanLevel(index + 1, d, applyers, matchers);
+                    }
+                }
+            } finally {
+                NiceIterator.close(it);
+            }
+        }
+
+        private void addRow(final Domain d) {
+            final Node[] row = new Node[rowIndexes.length];
+            for (int i = 0; i < row.length; i += 1) {
+                row[i] = d.getElement(rowIndexes[i]);
+            }
+            if (spill != null) {
+                spill.writeBuild(row);
+                return;
+            }
+            final List<Object> key = keyOfRow(row);
+            List<Node[]> bucket = table.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Node[]>(1);
+                table.put(key, bucket);
+            }
+            bucket.add(row);
+            rows += 1;
+            if (rows > maxInMemoryRows) {
+                log.debug("HashJoinStage build side passed " + maxInMemoryRows + " rows; spilling to disk");
+                spill = new Spill(Math.max(1, spillPartitions), 0);
+                for (final List<Node[]> b : table.values()) {
+                    for (final Node[] r : b) {
+                        spill.writeBuild(r);
+                    }
+                }
+                table = null;
+            }
+        }
+
+        /**
+         * Join the next spilled partition, running {@code next} for its
+         * matches.
+         * @return {@code false} if there was nothing left to join.
+         */
+        boolean joinNextPartition() {
+            if (spill == null || !stillOpen) {
+                return false;
+            }
+            return spill.joinNext();
+        }
+
+        void close() {
+            if (buildTask != null && !built) {
+                // Nothing probed the table; stop a build still under way and
+                // let it finish before its spill files are deleted.
+                abandoned = true;
+                buildTask.run();
+                try {
+                    buildTask.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (final ExecutionException e) {
+                    log.debug("HashJoinStage build failed after it was abandoned", e);
+                }
+            }
+            if (spill != null) {
+                spill.delete();
+            }
+            table = null;
+        }
+
+        /**
+         * The partition files of a spilled join.
+         */
+        private final class Spill {
+            private final int depth;
+            private final File[] buildFiles;
+            private final DataOutputStream[] buildOut;
+            private final File[] probeFiles;
+            private final DataOutputStream[] probeOut;
+            private int roundRobin = 0;
+            private int nextPartition = 0;
+            private boolean writing = true;
+
+            /**
+             * The re-partitioned spill of a partition that was too big to
+             * join in memory, while its partitions are joined.
+             */
+            private Spill split = null;
+
+            Spill(final int partitions, final int depth) {
+                this.depth = depth;
+                // A cross product has no key to partition the incoming domains
+                // by, so they all go to one file that is re-read per partition.
+                final int probePartitions = keyIndexes.length == 0 ? 1 : partitions;
+                buildFiles = new File[partitions];
+                buildOut = new DataOutputStream[partitions];
+                probeFiles = new File[probePartitions];
+                probeOut = new DataOutputStream[probePartitions];
+                try {
+                    for (int i = 0; i < partitions; i += 1) {
+                        buildFiles[i] = createTempFile("build");
+                        buildOut[i] = open(buildFiles[i]);
+                    }
+                    for (int i = 0; i < probePartitions; i += 1) {
+                        probeFiles[i] = createTempFile("probe");
+                        probeOut[i] = open(probeFiles[i]);
+                    }
+                } catch (final IOException e) {
+                    delete();
+                    throw new JenaException("could not create hash join spill files", e);
+                }
+            }
+
+            private File createTempFile(final String kind) throws IOException {
+                final File file = File.createTempFile("hashjoin-" + kind + "-", ".bin");
+                file.deleteOnExit();
+                return file;
+            }
+
+            private DataOutputStream open(final File file) throws IOException {
+                return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            }
+
+            /**
+             * Each depth mixes the hash differently, so that a partition read
+             * back is spread over the partitions of the next depth.
+             */
+            private int partitionOf(final List<Object> key, final int partitions) {
+                int h = key.hashCode() * (0x9E3779B9 + 2 * depth);
+                h ^= h >>> 16;
+                return (h & Integer.MAX_VALUE) % partitions;
+            }
+
+            void writeBuild(final Node[] row) {
+                final int p = keyIndexes.length == 0 ? roundRobin++ % buildFiles.length : partitionOf(keyOfRow(row), buildFiles.length);
+                try {
+                    NodeCodec.writeArray(buildOut[p], row);
+                } catch (final IOException e) {
+                    throw new JenaException("could not spill hash join build row", e);
+                }
+            }
+
+            void writeProbe(final Domain d) {
+                final int p = probeFiles.length == 1 ? 0 : partitionOf(keyOfDomain(d), probeFiles.length);
+                final Node[] values = new Node[d.size()];
+                for (int i = 0; i < values.length; i += 1) {
+                    values[i] = d.getElement(i);
+                }
+                try {
+                    NodeCodec.writeArray(probeOut[p], values);
+                } catch (final IOException e) {
+                    throw new JenaException("could not spill hash join domain", e);
+                }
+            }
+
+            boolean joinNext() {
+                if (writing) {
+                    closeOutputs();
+                    writing = false;
+                }
+                while (true) {
+                    if (split != null) {
+                        if (split.joinNext()) {
+                            return true;
+                        }
+                        split = null;
+                    }
+                    if (nextPartition >= buildFiles.length) {
+                        delete();
+                        return false;
+                    }
+                    final int p = nextPartition++;
+                    final File probeFile = probeFiles[probeFiles.length == 1 ? 0 : p];
+                    try {
+                        final Map<List<Object>, List<Node[]>> partition = load(buildFiles[p]);
+                        if (partition == null) {
+                            log.debug("HashJoinStage spilled partition passed " + maxInMemoryRows + " rows; splitting it at depth " + (depth + 1));
+                            split = splitPartition(buildFiles[p], probeFile);
+                        } else {
+                            try (DataInputStream in = openInput(probeFile)) {
+                                Node[] values;
+                                while (stillOpen && (values = readArray(in)) != null) {
+                                    probeTable(partition, new Domain(values));
+                                }
+                            }
+                        }
+                    } catch (final IOException e) {
+                        delete();
+                        throw new JenaException("could not read hash join spill files", e);
+                    }
+                    buildFiles[p].delete();
+                    if (probeFiles.length > 1) {
+                        probeFile.delete();
+                    }
+                    if (split == null) {
+                        return true;
+                    }
+                }
+            }
+
+            /**
+             * @return the build rows of a partition file as a table, or
+             * {@code null} if there are more than {@link #maxInMemoryRows} of
+             * them and the partition may be split again.
+             */
+            private Map<List<Object>, List<Node[]>> load(final File buildFile) throws IOException {
+                final Map<List<Object>, List<Node[]>> partition = new HashMap<List<Object>, List<Node[]>>();
+                int loaded = 0;
+                try (DataInputStream in = openInput(buildFile)) {
+                    Node[] row;
+                    while ((row = readArray(in)) != null) {
+                        if (++loaded > maxInMemoryRows && depth < MAX_SPILL_DEPTH) {
+                            return null;
+                        }
+                        final List<Object> key = keyOfRow(row);
+                        List<Node[]> bucket = partition.get(key);
+                        if (bucket == null) {
+                            bucket = new ArrayList<Node[]>(1);
+                            partition.put(key, bucket);
+                        }
+                        bucket.add(row);
+                    }
+                }
+                return partition;
+            }
+
+            /**
+             * @return a spill of the next depth holding the rows of one
+             * partition and the domains that probe it.
+             */
+            private Spill splitPartition(final File buildFile, final File probeFile) throws IOException {
+                final Spill result = new Spill(buildFiles.length, depth + 1);
+                try {
+                    try (DataInputStream in = openInput(buildFile)) {
+                        Node[] row;
+                        while ((row = readArray(in)) != null) {
+                            result.writeBuild(row);
+                        }
+                    }
+                    try (DataInputStream in = openInput(probeFile)) {
+                        Node[] values;
+                        while (stillOpen && (values = readArray(in)) != null) {
+                            result.writeProbe(new Domain(values));
+                        }
+                    }
+                } catch (final IOException | RuntimeException e) {
+                    result.delete();
+                    throw e;
+                }
+                return result;
+            }
+
+            private DataInputStream openInput(final File file) throws IOException {
+                return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            }
+
+            private Node[] readArray(final DataInputStream in) throws IOException {
+                try {
+                    return NodeCodec.readArray(in);
+                } catch (final EOFException e) {
+                    return null;
+                }
+            }
+
+            private void closeOutputs() {
+                for (final DataOutputStream out : buildOut) {
+                    closeQuietly(out);
+                }
+                for (final DataOutputStream out : probeOut) {
+                    closeQuietly(out);
+                }
+            }
+
+            private void closeQuietly(final DataOutputStream out) {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (final IOException e) {
+                        log.debug("could not close hash join spill file", e);
+                    }
+                }
+            }
+
+            void delete() {
+                if (split != null) {
+                    split.delete();
+                    split = null;
+                }
+                closeOutputs();
+                for (final File file : buildFiles) {
+                    if (file != null) {
+                        file.delete();
+                    }
+                }
+                for (final File file : probeFiles) {
+                    if (file != null) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -17,12 +17,19 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
+import org.apache.jena.graph.Node;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.SingletonIterator;
+
 /**
- * The initial stage of a query, responsible for dropping the no-variables-bound seed
- * binding domain into the remaining stages of the query pipeline.
+ * The initial stage of a query, responsible for dropping the seed binding
+ * domain, in which no variables (or only the pre-bound ones) are bound, into
+ * the remaining stages of the query pipeline.
  */
 public class InitialStage extends Stage {
     private final int count;
+    private final int[] indexes;
+    private final Node[] values;
 
     /**
      * The value passed in is the computed width of the result array(s); this
@@ -30,7 +37,28 @@ public class InitialStage extends Stage {
      * @param count the width of the result binding array
      */
     public InitialStage(final int count) {
+        this(count, new int[0], new Node[0]);
+    }
+
+    /**
+     * As {@link #InitialStage(int)}, but the seeding domain already binds
+     * {@code values[i]} at {@code indexes[i]}.
+     * @param count the width of the result binding array
+     * @param indexes the indexes of the pre-bound variables.
+     * @param values the values of the pre-bound variables.
+     */
+    public InitialStage(final int count, final int[] indexes, final Node[] values) {
         this.count = count;
+        this.indexes = indexes;
+        this.values = values;
+    }
+
+    private Domain seed() {
+        final Domain result = new Domain(count);
+        for (int i = 0; i < indexes.length; i += 1) {
+            result.setElement(indexes[i], values[i]);
+        }
+        return result;
     }
 
     @Override
@@ -40,13 +68,21 @@ public class InitialStage extends Stage {
 
     /**
      * To deliver value into the Pipe result, we drop in a binding array of the correct
-     * width in which all the elements are null, then we close the pipe. Everything else
+     * width in which all the elements but the pre-bound ones are null, then we close the pipe. Everything else
      * is spawned by the following stages.
      */
     @Override
     public Pipe deliver(final Pipe result) {
-        result.put(new Domain(count));
+        result.put(seed());
         result.close();
         return result;
     }
+
+    /**
+     * Pulling from the initial stage yields the single seed binding array.
+     */
+    @Override
+    public ExtendedIterator<Domain> pull() {
+        return new SingletonIterator<Domain>(seed());
+    }
 }
\ No newline at end of file
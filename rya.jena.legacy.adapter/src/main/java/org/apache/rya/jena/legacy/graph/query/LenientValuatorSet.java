@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A LenientValuatorSet evaluates the Valuators of another ValuatorSet, but
+ * treats any exception thrown while evaluating them as {@code false} rather
+ * than failing the query. This is how constraints that are left over after
+ * guard planting are evaluated.
+ */
+public class LenientValuatorSet extends ValuatorSet {
+    private static final Logger log = Logger.getLogger(LenientValuatorSet.class);
+
+    private final ValuatorSet valuators;
+
+    /**
+     * Creates a new instance of {@link LenientValuatorSet}.
+     * @param valuators the {@link ValuatorSet} to evaluate leniently.
+     */
+    public LenientValuatorSet(final ValuatorSet valuators) {
+        this.valuators = valuators;
+    }
+
+    @Override
+    public boolean isNonTrivial() {
+        return valuators.isNonTrivial();
+    }
+
+    @Override
+    public ValuatorSet add(final Valuator e) {
+        valuators.add(e);
+        return this;
+    }
+
+    @Override
+    public ValuatorSet add(final Valuator e, final int cost) {
+        valuators.add(e, cost);
+        return this;
+    }
+
+    @Override
+    public List<Statistics> getStatistics() {
+        return valuators.getStatistics();
+    }
+
+    /**
+     * @return {@code true} if no Valuator in the set evaluates to
+     * {@code false}, and {@code false} if one does or throws an exception.
+     */
+    @Override
+    public boolean evalBool(final IndexValues iv) {
+        try {
+            return valuators.evalBool(iv);
+        } catch (final Exception e) {
+            log.error("Encountered an exception while evaluating the constaint.", e);
+            return false;
+        }
+    }
+}
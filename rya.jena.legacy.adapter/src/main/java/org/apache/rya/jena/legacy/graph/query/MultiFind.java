@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * A capability of graphs that can look up many triple patterns in one
+ * request, for example by sending a single SPARQL query with a
+ * {@code VALUES} block to a remote store. When the graph of a pattern stage
+ * implements MultiFind, {@link QueryTriple#createApplyer(Graph)} answers a
+ * {@link QueryTriple.BatchedApplyer} that gathers the lookups of many input
+ * bindings into one call.
+ * <p>
+ * No graph of this module implements it; the {@code RepositoryGraph} of
+ * rya.jena.legacy.benchmark does.
+ */
+public interface MultiFind {
+    /**
+     * @param patterns the triple patterns to look up; a position holding
+     * {@code Node.ANY} matches anything.
+     * @return every triple of the graph that matches at least one of
+     * {@code patterns}, each at least once, in no particular order.
+     */
+    ExtendedIterator<Triple> findAny(List<Triple> patterns);
+}
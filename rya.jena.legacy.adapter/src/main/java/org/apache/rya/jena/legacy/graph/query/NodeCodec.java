@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.shared.JenaException;
+
+/**
+ * Writes Nodes, and arrays of Nodes, to binary streams and reads them back,
+ * for query stages that spill intermediate results to disk. Blank nodes keep
+ * their labels, so a node read back is equal to the node written.
+ */
+final class NodeCodec {
+    private static final byte NULL = 0;
+    private static final byte URI = 1;
+    private static final byte BLANK = 2;
+    private static final byte PLAIN_LITERAL = 3;
+    private static final byte LANG_LITERAL = 4;
+    private static final byte TYPED_LITERAL = 5;
+    private static final byte VARIABLE = 6;
+    private static final byte ANY = 7;
+
+    private NodeCodec() {
+    }
+
+    /**
+     * Write a node, which may be {@code null}.
+     * @param out the {@link DataOutput}.
+     * @param node the {@link Node}.
+     * @throws IOException if writing fails.
+     */
+    static void write(final DataOutput out, final Node node) throws IOException {
+        if (node == null) {
+            out.writeByte(NULL);
+        } else if (node == Node.ANY) {
+            out.writeByte(ANY);
+        } else if (node.isURI()) {
+            out.writeByte(URI);
+            out.writeUTF(node.getURI());
+        } else if (node.isBlank()) {
+            out.writeByte(BLANK);
+            out.writeUTF(node.getBlankNodeLabel());
+        } else if (node.isLiteral()) {
+            final String lang = node.getLiteralLanguage();
+            final String datatype = node.getLiteralDatatypeURI();
+            if (lang != null && !lang.isEmpty()) {
+                out.writeByte(LANG_LITERAL);
+                writeLong(out, node.getLiteralLexicalForm());
+                out.writeUTF(lang);
+            } else if (datatype != null) {
+                out.writeByte(TYPED_LITERAL);
+                writeLong(out, node.getLiteralLexicalForm());
+                out.writeUTF(datatype);
+            } else {
+                out.writeByte(PLAIN_LITERAL);
+                writeLong(out, node.getLiteralLexicalForm());
+            }
+        } else if (node.isVariable()) {
+            out.writeByte(VARIABLE);
+            out.writeUTF(node.getName());
+        } else {
+            throw new JenaException("cannot encode node " + node);
+        }
+    }
+
+    /**
+     * Read a node written by {@link #write(DataOutput, Node)}.
+     * @param in the {@link DataInput}.
+     * @return the {@link Node}, or {@code null}.
+     * @throws IOException if reading fails.
+     */
+    static Node read(final DataInput in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case ANY:
+            return Node.ANY;
+        case URI:
+            return NodeFactory.createURI(in.readUTF());
+        case BLANK:
+            return NodeFactory.createBlankNode(in.readUTF());
+        case PLAIN_LITERAL:
+            return NodeFactory.createLiteral(readLong(in));
+        case LANG_LITERAL: {
+            final String lex = readLong(in);
+            return NodeFactory.createLiteral(lex, in.readUTF());
+        }
+        case TYPED_LITERAL: {
+            final String lex = readLong(in);
+            final RDFDatatype datatype = TypeMapper.getInstance().getSafeTypeByName(in.readUTF());
+            return NodeFactory.createLiteral(lex, datatype);
+        }
+        case VARIABLE:
+            return NodeFactory.createVariable(in.readUTF());
+        default:
+            throw new JenaException("unknown node type " + type);
+        }
+    }
+
+    /**
+     * Write an array of nodes, any of which may be {@code null}.
+     * @param out the {@link DataOutput}.
+     * @param nodes the array of {@link Node}s.
+     * @throws IOException if writing fails.
+     */
+    static void writeArray(final DataOutput out, final Node[] nodes) throws IOException {
+        out.writeInt(nodes.length);
+        for (final Node node : nodes) {
+            write(out, node);
+        }
+    }
+
+    /**
+     * Read an array written by {@link #writeArray(DataOutput, Node[])}.
+     * @param in the {@link DataInput}.
+     * @return the array of {@link Node}s.
+     * @throws IOException if reading fails.
+     */
+    static Node[] readArray(final DataInput in) throws IOException {
+        final Node[] nodes = new Node[in.readInt()];
+        for (int i = 0; i < nodes.length; i += 1) {
+            nodes[i] = read(in);
+        }
+        return nodes;
+    }
+
+    /**
+     * Lexical forms may be longer than {@code writeUTF} allows, so they are
+     * written as a length and UTF-16 characters.
+     */
+    private static void writeLong(final DataOutput out, final String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readLong(final DataInput in) throws IOException {
+        final int length = in.readInt();
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i += 1) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+}
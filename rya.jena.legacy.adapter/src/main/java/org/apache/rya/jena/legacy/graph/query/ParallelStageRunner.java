@@ -0,0 +1,355 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The parallel mode of a {@link PatternStageBase}: the incoming domains are
+ * cut into chunks, and each chunk is matched against the stage's patterns by
+ * one of several workers, so that the finds of different domains overlap
+ * instead of queueing behind each other. The workers are stage work, run by
+ * the {@link StageExecutor} like any other.
+ * <p>
+ * Each worker keeps one stage element chain for all the chunks it takes, so
+ * that a {@link QueryTriple.BatchedApplyer} in the chain gathers full
+ * batches across chunks; the chain is flushed when the worker runs out of
+ * chunks.
+ * <p>
+ * Nothing is collected without bound. If the matches may come in any order,
+ * the workers put them straight into the sink, whose bounded buffer holds the
+ * workers back when the consumer falls behind. If they must keep the order of
+ * their domains, each chunk's matches go into a bounded pipe of its own, and
+ * the stage's own thread drains those pipes in the order the chunks were
+ * handed out; at most twice as many chunks as workers are handed out ahead of
+ * that merge. A chunk's pipe can only be drained once it is closed, so the
+ * chain is then flushed at the end of every chunk, and chunks are made at
+ * least a batch long so that the batches still fill.
+ */
+final class ParallelStageRunner {
+    /**
+     * How long a thread waiting on the others sleeps before it looks again
+     * whether the stage has been closed.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Registered after the last chunk pipe to tell the merge it has them all.
+     */
+    private static final Pipe END = new BufferPipe();
+
+    private final PatternStageBase stage;
+    private final int parallelism;
+
+    /**
+     * Creates a new instance of {@link ParallelStageRunner}.
+     * @param stage the {@link PatternStageBase} whose domains are matched.
+     * @param parallelism the number of workers matching chunks at once.
+     */
+    ParallelStageRunner(final PatternStageBase stage, final int parallelism) {
+        this.stage = stage;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Match every domain from {@code source} and put the matches into
+     * {@code sink}, then close it; on failure, close it with the exception.
+     * @param source the {@link Pipe} of incoming domains.
+     * @param sink the {@link Pipe} the matches go to.
+     * @param chunkSize the number of domains a worker takes at once.
+     * @param ordered whether the matches keep the order of their domains.
+     */
+    void run(final Pipe source, final Pipe sink, final int chunkSize, final boolean ordered) {
+        final SharedSink out = new SharedSink(sink);
+        if (ordered) {
+            runOrdered(source, out, chunkSize);
+        } else {
+            runUnordered(source, out, chunkSize);
+        }
+    }
+
+    /**
+     * Run {@link #parallelism} workers, this thread being one of them, each
+     * putting its matches straight into {@code out}; the last worker to
+     * finish closes it.
+     */
+    private void runUnordered(final Pipe source, final SharedSink out, final int chunkSize) {
+        final AtomicInteger running = new AtomicInteger(parallelism);
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final StageElement chain = stage.makeStageElementChain(out, 0);
+                    while (stage.stillOpen && !out.isClosed()) {
+                        final List<Domain> chunk;
+                        synchronized (source) {
+                            chunk = take(source, chunkSize);
+                        }
+                        if (chunk.isEmpty()) {
+                            break;
+                        }
+                        match(chunk, chain);
+                    }
+                    chain.flush();
+                } catch (final Exception e) {
+                    PatternStageBase.log.debug("ParallelStageRunner has caught and forwarded an exception", e);
+                    out.close(e);
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        out.close();
+                    }
+                }
+            }
+        };
+        for (int i = 1; i < parallelism; i += 1) {
+            Stage.getExecutor().execute(stage, out, worker);
+        }
+        worker.run();
+    }
+
+    /**
+     * Run {@link #parallelism} workers, each matching the chunks it takes
+     * into a pipe of its own, while this thread drains the pipes into
+     * {@code out} in the order the chunks were taken.
+     */
+    private void runOrdered(final Pipe source, final SharedSink out, final int chunkSize) {
+        final int orderedChunkSize = Math.max(chunkSize, QueryTriple.BatchedApplyer.batchSize);
+        final BlockingQueue<Pipe> chunks = new LinkedBlockingQueue<Pipe>();
+        final Semaphore window = new Semaphore(2 * parallelism);
+        final ChunkHandout handout = new ChunkHandout();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final ChunkSink into = new ChunkSink();
+                    final StageElement chain = stage.makeStageElementChain(into, 0);
+                    while (stage.stillOpen && !out.isClosed()) {
+                        if (!window.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                            continue;
+                        }
+                        final List<Domain> chunk;
+                        final Pipe pipe = new BufferPipe();
+                        synchronized (handout) {
+                            if (handout.finished) {
+                                window.release();
+                                return;
+                            }
+                            chunk = take(source, orderedChunkSize);
+                            if (chunk.isEmpty()) {
+                                handout.finished = true;
+                                chunks.add(END);
+                                window.release();
+                                return;
+                            }
+                            chunks.add(pipe);
+                        }
+                        into.target = pipe;
+                        try {
+                            match(chunk, chain);
+                            chain.flush();
+                        } catch (final Exception e) {
+                            // The merge rethrows it in its turn.
+                            pipe.close(e);
+                            return;
+                        }
+                        pipe.close();
+                    }
+                } catch (final Exception e) {
+                    PatternStageBase.log.debug("ParallelStageRunner has caught and forwarded an exception", e);
+                    out.close(e);
+                }
+            }
+        };
+        for (int i = 0; i < parallelism; i += 1) {
+            Stage.getExecutor().execute(stage, out, worker);
+        }
+        Pipe draining = null;
+        try {
+            while (stage.stillOpen && !out.isClosed()) {
+                draining = chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (draining == END) {
+                    break;
+                }
+                if (draining != null) {
+                    while (draining.hasNext()) {
+                        out.put(draining.get());
+                    }
+                    window.release();
+                }
+            }
+        } catch (final Exception e) {
+            PatternStageBase.log.debug("ParallelStageRunner has caught and forwarded an exception", e);
+            out.close(e);
+        } finally {
+            // Stop the workers and release any waiting on a full chunk pipe.
+            synchronized (handout) {
+                handout.finished = true;
+            }
+            if (draining != null && draining != END) {
+                draining.cancel();
+            }
+            for (final Pipe pipe : chunks) {
+                pipe.cancel();
+            }
+        }
+        out.close();
+    }
+
+    /**
+     * @return up to {@code chunkSize} domains from {@code source}; empty once
+     * it is exhausted or the stage has been closed.
+     */
+    private List<Domain> take(final Pipe source, final int chunkSize) {
+        final List<Domain> chunk = new ArrayList<Domain>(chunkSize);
+        while (chunk.size() < chunkSize && stage.stillOpen && source.hasNext()) {
+            chunk.add(source.get());
+        }
+        return chunk;
+    }
+
+    /**
+     * Run the worker's stage element {@code chain} on each domain of
+     * {@code chunk}.
+     */
+    private void match(final List<Domain> chunk, final StageElement chain) {
+        for (final Domain d : chunk) {
+            if (!stage.stillOpen) {
+                break;
+            }
+            chain.run(d);
+        }
+    }
+
+    /**
+     * Whether the ordered workers have taken the last chunk, or been told to
+     * stop; guarded by its own lock, which also serialises reads from the
+     * source.
+     */
+    private static final class ChunkHandout {
+        private boolean finished = false;
+    }
+
+    /**
+     * The sink of an ordered worker's chain: it puts the matches into the
+     * pipe of the chunk the worker is matching. Only the worker uses it.
+     */
+    private static final class ChunkSink implements Pipe {
+        private Pipe target;
+
+        @Override
+        public boolean hasNext() {
+            return target.hasNext();
+        }
+
+        @Override
+        public Domain get() {
+            return target.get();
+        }
+
+        @Override
+        public void put(final Domain d) {
+            target.put(d);
+        }
+
+        @Override
+        public void close() {
+            target.close();
+        }
+
+        @Override
+        public void close(final Exception e) {
+            target.close(e);
+        }
+
+        @Override
+        public void cancel() {
+            target.cancel();
+        }
+    }
+
+    /**
+     * The sink as the workers share it: puts and closes are serialised, since
+     * a pipe has a single producer, and only the first close reaches the sink.
+     * Matches put after the sink was closed, because another worker failed or
+     * the work was rejected, are dropped.
+     */
+    private static final class SharedSink implements Pipe {
+        private final Pipe sink;
+        private volatile boolean closed = false;
+
+        /**
+         * Creates a new instance of {@link SharedSink}.
+         * @param sink the {@link Pipe} the matches go to.
+         */
+        SharedSink(final Pipe sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * @return {@code true} once the sink has been closed, normally or
+         * with an exception.
+         */
+        boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return sink.hasNext();
+        }
+
+        @Override
+        public Domain get() {
+            return sink.get();
+        }
+
+        @Override
+        public synchronized void put(final Domain d) {
+            if (!closed) {
+                sink.put(d);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                sink.close();
+            }
+        }
+
+        @Override
+        public synchronized void close(final Exception e) {
+            if (!closed) {
+                closed = true;
+                sink.close(e);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            sink.cancel();
+        }
+    }
+}
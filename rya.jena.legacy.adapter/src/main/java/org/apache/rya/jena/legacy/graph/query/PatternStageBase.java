@@ -18,13 +18,15 @@
 package org.apache.rya.jena.legacy.graph.query;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.NoSuchElementException;
 
 import org.apache.jena.JenaRuntime;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
 import org.apache.rya.jena.legacy.graph.query.StageElement.PutBindings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,12 +43,44 @@ import org.slf4j.LoggerFactory;
  * </ul>
  */
 public abstract class PatternStageBase extends Stage {
-    protected static int count = 0;
+    /**
+     * How many chunks of incoming domains a pipelined stage matches at once,
+     * each on a worker thread with its own finds; taken from the system
+     * property {@code jena.legacy.query.stage.parallelism} (1, which matches
+     * them one after another on the stage's own thread).
+     */
+    public static int parallelism = Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.query.stage.parallelism", "1"));
+
+    /**
+     * The number of incoming domains in one chunk of a parallel stage; taken
+     * from the system property {@code jena.legacy.query.stage.chunksize}
+     * (8).
+     */
+    public static int parallelChunkSize = Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.query.stage.chunksize", "8"));
+
+    /**
+     * Whether a parallel stage delivers its matches in the order of the
+     * domains they extend rather than as the chunks finish; set by the system
+     * property {@code jena.legacy.query.stage.ordered} ("no" by default).
+     */
+    public static boolean orderedParallelOutput = JenaRuntime.getSystemProperty("jena.legacy.query.stage.ordered", "no").equals("yes");
+
     protected final ValuatorSet[] guards;
     protected final QueryTriple[] classified;
     protected final Graph graph;
     protected final QueryNodeFactory factory;
 
+    /**
+     * Constraints left over after guard planting, evaluated on every complete
+     * match just before it is delivered.
+     */
+    protected ValuatorSet residual = new ValuatorSet();
+
+    /**
+     * What this stage keeps of each domain it delivers.
+     */
+    protected Projection projection = Projection.ALL;
+
     /**
      * Creates a new instance of {@link PatternStageBase}.
      * @param factory the {@link QueryNodeFactory}.
@@ -64,11 +98,32 @@ public abstract class PatternStageBase extends Stage {
 
     static Logger log = LoggerFactory.getLogger(PatternStageBase.class);
 
+    /**
+     * Take over the constraints that no guard could evaluate, which would
+     * otherwise need a {@link ConstraintStage} after this stage. They are
+     * evaluated leniently, as a ConstraintStage would: an exception counts as
+     * {@code false}.
+     * @param map the {@link Mapping} to prepare the constraints against.
+     * @param constraints the left-over {@link ExpressionSet}.
+     */
+    public void absorbConstraints(final Mapping map, final ExpressionSet constraints) {
+        residual = new LenientValuatorSet(constraints.prepare(map));
+    }
+
+    /**
+     * Sets what this stage keeps of each domain it delivers.
+     * @param projection the {@link Projection}. (not {@code null})
+     */
+    public void setProjection(final Projection projection) {
+        this.projection = projection;
+    }
+
     protected void run(final Pipe source, final Pipe sink, final StageElement se) {
         try {
             while (stillOpen && source.hasNext()) {
                 se.run(source.get());
             }
+            se.flush();
         } catch (final Exception e) {
             log.debug("PatternStageBase has caught and forwarded an exception", e);
             sink.close(e);
@@ -77,109 +132,156 @@ public abstract class PatternStageBase extends Stage {
         sink.close();
     }
 
-    private final class PatternStageThread extends Thread {
-        private final BlockingQueue<Work> buffer = new ArrayBlockingQueue<Work>(1);
-
-        /**
-         * Creates a new instance of {@link PatternStageThread}.
-         * @param name the name of the thread.
-         */
-        public PatternStageThread(final String name) {
-            super(name);
-        }
+    /**
+     * @return {@code true} if incoming domains may be matched independently
+     * of each other, each chunk with a stage element chain of its own, when
+     * {@link #parallelism} is above 1.
+     */
+    protected boolean isParallelizable() {
+        return true;
+    }
 
-        public void put(final Work w) {
-            try {
-                buffer.put(w);
-            } catch (final InterruptedException e) {
-                throw new BufferPipe.BoundedBufferPutException(e);
-            }
+    @Override
+    public synchronized Pipe deliver(final Pipe sink) {
+        final Pipe source = cancelledOnClose(previous.deliver(BufferPipe.create()));
+        if (parallelism > 1 && isParallelizable()) {
+            final ParallelStageRunner runner = new ParallelStageRunner(this, parallelism);
+            final int chunkSize = Math.max(1, parallelChunkSize);
+            final boolean ordered = orderedParallelOutput;
+            getExecutor().execute(this, sink, new Runnable() {
+                @Override
+                public void run() {
+                    runner.run(source, sink, chunkSize, ordered);
+                }
+            });
+            return sink;
         }
-
-        protected Work get() {
-            try {
-                return buffer.take();
-            } catch (final InterruptedException e) {
-                throw new BufferPipe.BoundedBufferTakeException(e);
+        final StageElement s = makeStageElementChain(sink, 0);
+        getExecutor().execute(this, sink, new Runnable() {
+            @Override
+            public void run() {
+                PatternStageBase.this.run(source, sink, s);
             }
-        }
+        });
+        return sink;
+    }
 
-        @Override
-        public void run() {
-            while (true) {
-                get().run();
-                addToAvailableThreads(this);
-            }
-        }
+    /**
+     * The pulled version of {@link #deliver}: for each domain pulled from the
+     * previous stage, walk the triple patterns as a nested loop on the calling
+     * thread and answer a copy of the domain for every complete match.
+     */
+    @Override
+    public ExtendedIterator<Domain> pull() {
+        return new PatternIterator(previous.pull());
     }
 
-    public class Work {
-        protected final Pipe source;
-        protected final Pipe sink;
-        protected final StageElement e;
+    /**
+     * The nested-loop iterator behind {@link #pull}. Level {@code i} holds an
+     * iterator over the candidate triples of pattern {@code i}; a triple that
+     * matches (and passes the guards for that level) moves the search down a
+     * level, and an exhausted level moves it back up. The working domain is
+     * shared by all levels in the same way as the delivered stage elements
+     * share it.
+     */
+    private final class PatternIterator extends NiceIterator<Domain> {
+        private final ExtendedIterator<Domain> source;
+        private final Applyer[] applyers = new Applyer[classified.length];
+        private final Matcher[] matchers = new Matcher[classified.length];
+        private final List<Iterator<Triple>> levels = new ArrayList<Iterator<Triple>>(classified.length);
+        private Domain current;
+        private Domain pending;
 
-        public Work(final Pipe source, final Pipe sink, final StageElement e) {
+        /**
+         * Creates a new instance of {@link PatternIterator}.
+         * @param source the {@link ExtendedIterator} over the domains of the
+         * previous stage.
+         */
+        PatternIterator(final ExtendedIterator<Domain> source) {
             this.source = source;
-            this.sink = sink;
-            this.e = e;
+            for (int i = 0; i < classified.length; i += 1) {
+                applyers[i] = classified[i].createApplyer(graph);
+                matchers[i] = classified[i].createMatcher();
+            }
         }
 
-        public void run() {
-            PatternStageBase.this.run(source, sink, e);
+        @Override
+        public boolean hasNext() {
+            if (pending == null) {
+                pending = advance();
+            }
+            return pending != null;
         }
-    }
 
-    public static boolean reuseThreads = JenaRuntime.getSystemProperty("jena.reusepatternstage.threads", "yes").equals("yes");
-
-    @Override
-    public synchronized Pipe deliver(final Pipe sink) {
-        final Pipe source = previous.deliver(new BufferPipe());
-        final StageElement s = makeStageElementChain(sink, 0);
-        if (reuseThreads) {
-            getAvailableThread().put(new Work(source, sink, s));
-        } else {
-            final Thread thread = new Thread("PatternStage-" + ++count) {
-                @Override
-                public void run() {
-                    PatternStageBase.this.run(source, sink, s);
-                }
-            };
-            thread.start();
+        @Override
+        public Domain next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Domain result = pending;
+            pending = null;
+            return result;
         }
-        return sink;
-    }
 
-    private static final List<PatternStageThread> threads = new ArrayList<PatternStageThread>();
-
-    private void addToAvailableThreads(final PatternStageThread thread) {
-        synchronized (threads) {
-            threads.add(thread);
-            log.debug("caching thread " + this + " [currently " + threads.size() + " cached threads]");
+        private Domain advance() {
+            while (stillOpen) {
+                if (levels.isEmpty()) {
+                    if (!source.hasNext()) {
+                        return null;
+                    }
+                    current = source.next();
+                    if (classified.length == 0) {
+                        if (residual.isNonTrivial() && !residual.evalBool(current)) {
+                            continue;
+                        }
+                        return projection.apply(current);
+                    }
+                    levels.add(applyers[0].find(current));
+                    continue;
+                }
+                final int index = levels.size() - 1;
+                final Iterator<Triple> it = levels.get(index);
+                if (!it.hasNext()) {
+                    NiceIterator.close(levels.remove(index));
+                    continue;
+                }
+                if (!matchers[index].match(current, it.next())) {
+                    continue;
+                }
+                final ValuatorSet guard = guards[index];
+                if (guard.isNonTrivial() && !guard.evalBool(current)) {
+                    continue;
+                }
+                if (index + 1 == classified.length) {
+                    if (residual.isNonTrivial() && !residual.evalBool(current)) {
+                        continue;
+                    }
+                    return projection.apply(current);
+                }
+                levels.add(applyers[index + 1].find(current));
+            }
+            return null;
         }
-    }
 
-    private PatternStageThread getAvailableThread() {
-        synchronized (threads) {
-            final int size = threads.size();
-            if (size > 0) {
-                final PatternStageThread thread = threads.remove(size - 1);
-                log.debug("reusing thread " + thread);
-                return thread;
+        @Override
+        public void close() {
+            for (final Iterator<Triple> it : levels) {
+                NiceIterator.close(it);
             }
+            levels.clear();
+            pending = null;
+            source.close();
+            PatternStageBase.this.close();
         }
-        final PatternStageThread patternStageThread = new PatternStageThread("PatternStage-" + ++count);
-        log.debug("created new thread " + patternStageThread);
-        patternStageThread.setDaemon(true);
-        patternStageThread.start();
-        return patternStageThread;
     }
 
     protected StageElement makeStageElementChain(final Pipe sink, final int index) {
         return index < classified.length ? makeIntermediateStageElement(sink, index) : makeFinalStageElement(sink);
     }
 
-    protected PutBindings makeFinalStageElement(final Pipe sink) {
-        return new StageElement.PutBindings(sink);
+    protected StageElement makeFinalStageElement(final Pipe sink) {
+        final PutBindings put = new StageElement.PutBindings(sink, projection);
+        return residual.isNonTrivial() ? new StageElement.RunValuatorSet(residual, put) : put;
     }
 
     protected StageElement makeIntermediateStageElement(final Pipe sink, final int index) {
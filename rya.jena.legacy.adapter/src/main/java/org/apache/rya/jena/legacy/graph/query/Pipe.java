@@ -53,4 +53,14 @@ public interface Pipe {
      * @param e the exception that caused the pipe to be closed
      */
     public void close(Exception e);
+
+    /**
+     * Cancel the pipe: discard what it holds, release a consumer waiting in
+     * {@link #hasNext()} or a producer waiting in {@link #put(Domain)}, and
+     * make any further {@code put} fail so the producer stops. The consumer
+     * sees the pipe as finished. Pipes that do not buffer between threads
+     * need not do anything.
+     */
+    public default void cancel() {
+    }
 }
\ No newline at end of file
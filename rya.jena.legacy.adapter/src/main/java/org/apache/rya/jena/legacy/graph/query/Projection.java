@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+/**
+ * A Projection says what a stage keeps of each domain it delivers: the
+ * first {@code width} slots (the query's result slots come first; see
+ * {@link Mapping}), less the {@code dropped} slots that no later stage or
+ * constraint will read.
+ */
+public final class Projection {
+    /**
+     * The Projection that keeps every slot.
+     */
+    public static final Projection ALL = new Projection(-1, new int[0]);
+
+    private final int width;
+    private final int[] dropped;
+
+    /**
+     * Creates a new instance of {@link Projection}.
+     * @param width the number of leading slots to keep, or {@code -1} for
+     * all of them.
+     * @param dropped the indexes of kept slots to clear.
+     */
+    public Projection(final int width, final int[] dropped) {
+        this.width = width;
+        this.dropped = dropped.clone();
+    }
+
+    /**
+     * @return {@code true} if this Projection keeps every slot.
+     */
+    public boolean isAll() {
+        return width < 0 && dropped.length == 0;
+    }
+
+    /**
+     * @param d the {@link Domain} to project.
+     * @return a copy of {@code d} holding only the kept slots.
+     */
+    public Domain apply(final Domain d) {
+        final Domain result = width < 0 || width >= d.size() ? d.copy() : d.copy(width);
+        for (final int i : dropped) {
+            if (i < result.size()) {
+                result.setElement(i, null);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder b = new StringBuilder("<projection width=").append(width).append(" dropped=");
+        for (int i = 0; i < dropped.length; i += 1) {
+            b.append(i == 0 ? "" : ",").append(dropped[i]);
+        }
+        return b.append(">").toString();
+    }
+}
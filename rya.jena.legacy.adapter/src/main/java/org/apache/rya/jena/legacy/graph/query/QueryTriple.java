@@ -18,13 +18,21 @@
 
 package org.apache.rya.jena.legacy.graph.query;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.jena.JenaRuntime;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.shared.BrokenException;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
 
 /**
  * A QueryTriple is a composite of three QueryNodes derived from a
@@ -69,7 +77,16 @@ public class QueryTriple {
         return f.createTriple(QueryNode.classify(f, m, fresh, t.getSubject()), QueryNode.classify(f, m, fresh, t.getPredicate()), QueryNode.classify(f, m, fresh, t.getObject()));
     }
 
+    /**
+     * @param g the {@link Graph} to match against.
+     * @return an {@link Applyer} for this triple over {@code g}: a
+     * {@link BatchedApplyer} if the graph is a {@link MultiFind} and
+     * batching is on, otherwise a {@link SimpleApplyer}.
+     */
     public Applyer createApplyer(final Graph g) {
+        if (g instanceof MultiFind && BatchedApplyer.batchSize > 1) {
+            return new BatchedApplyer(g, this, BatchedApplyer.batchSize);
+        }
         return new SimpleApplyer(g, this);
     }
 
@@ -163,6 +180,7 @@ public class QueryTriple {
          * @param domain the {@link Domain}.
          * @return the {@link Iterator} over the {@link Triple}s.
          */
+        @Override
         public Iterator<Triple> find(final Domain d) {
             return g.find(s.finder(d), p.finder(d), o.finder(d));
         }
@@ -170,11 +188,133 @@ public class QueryTriple {
         @Override
         public void applyToTriples(final Domain domain, final Matcher matcher, final StageElement next) {
             final Iterator<Triple> it = find(domain);
-            while (it.hasNext()) {
-                if (matcher.match(domain, it.next())) {
-                    next.run(domain);
+            try {
+                while (it.hasNext()) {
+                    if (matcher.match(domain, it.next())) {
+                        next.run(domain);
+                    }
+                }
+            } finally {
+                NiceIterator.close(it);
+            }
+        }
+    }
+    /**
+     * A BatchedApplyer gathers the domains it is applied to and looks their
+     * triples up in batches, with one {@link MultiFind#findAny} call per
+     * batch of distinct find patterns. Each returned triple is matched back to
+     * the domains whose pattern it satisfies, and {@code next} is run for
+     * those, exactly as a {@link SimpleApplyer} would have done one domain at
+     * a time. Results for a domain are therefore delayed until its batch is
+     * full or the stage {@link #flush() flushes}.
+     * <p>
+     * Pulled evaluation does not batch; {@link #find(Domain)} looks up a
+     * single domain.
+     */
+    public static class BatchedApplyer extends SimpleApplyer {
+        /**
+         * The number of domains gathered before a lookup; taken from the system
+         * property {@code jena.legacy.query.batchsize} (100). A value of 1 or
+         * less turns batching off.
+         */
+        public static int batchSize = Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.query.batchsize", "100"));
+
+        private final MultiFind multiFind;
+        private final int size;
+        private final List<Domain> pending;
+        private Matcher matcher;
+        private StageElement next;
+
+        /**
+         * Creates a new instance of {@link BatchedApplyer}.
+         * @param g the {@link Graph}, which must be a {@link MultiFind}.
+         * @param qt the {@link QueryTriple}.
+         * @param size the number of domains gathered before a lookup.
+         */
+        protected BatchedApplyer(final Graph g, final QueryTriple qt, final int size) {
+            super(g, qt);
+            this.multiFind = (MultiFind) g;
+            this.size = Math.max(1, size);
+            this.pending = new ArrayList<Domain>(this.size);
+        }
+
+        @Override
+        public void applyToTriples(final Domain domain, final Matcher m, final StageElement n) {
+            matcher = m;
+            next = n;
+            // The caller goes on to reuse its domain, so keep a copy.
+            pending.add(domain.copy());
+            if (pending.size() >= size) {
+                flushPending();
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushPending();
+        }
+
+        private void flushPending() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final Map<List<Object>, List<Domain>> byKey = new LinkedHashMap<List<Object>, List<Domain>>();
+            final List<Triple> patterns = new ArrayList<Triple>();
+            for (final Domain d : pending) {
+                final Triple pattern = Triple.create(s.finder(d), p.finder(d), o.finder(d));
+                final List<Object> key = keyOf(pattern);
+                List<Domain> domains = byKey.get(key);
+                if (domains == null) {
+                    domains = new ArrayList<Domain>();
+                    byKey.put(key, domains);
+                    patterns.add(pattern);
+                }
+                domains.add(d);
+            }
+            pending.clear();
+
+            final Node[] shape = {patterns.get(0).getSubject(), patterns.get(0).getPredicate(), patterns.get(0).getObject()};
+            final ExtendedIterator<Triple> it = multiFind.findAny(patterns);
+            try {
+                while (it.hasNext()) {
+                    final Triple t = it.next();
+                    final List<Domain> domains = byKey.get(keyOf(t, shape));
+                    if (domains == null) {
+                        continue;
+                    }
+                    for (final Domain d : domains) {
+                        if (Triple.create(s.finder(d), p.finder(d), o.finder(d)).matches(t) && matcher.match(d, t)) {
+                            next.run(d);
+                        }
+                    }
                 }
+            } finally {
+                it.close();
             }
         }
+
+        /**
+         * @return the lookup key of a find pattern: the indexing values of
+         * its concrete positions.
+         */
+        private static List<Object> keyOf(final Triple pattern) {
+            return Arrays.asList(indexingValue(pattern.getSubject()), indexingValue(pattern.getPredicate()), indexingValue(pattern.getObject()));
+        }
+
+        /**
+         * @return the lookup key of the find pattern that {@code t} answers,
+         * given the shape (which positions are {@code ANY}) shared by all
+         * find patterns of this applyer.
+         */
+        private static List<Object> keyOf(final Triple t, final Node[] shape) {
+            return Arrays.asList(
+                shape[0] == Node.ANY ? Node.ANY : indexingValue(t.getSubject()),
+                shape[1] == Node.ANY ? Node.ANY : indexingValue(t.getPredicate()),
+                shape[2] == Node.ANY ? Node.ANY : indexingValue(t.getObject()));
+        }
+
+        private static Object indexingValue(final Node n) {
+            return n == Node.ANY ? Node.ANY : n.getIndexingValue();
+        }
     }
 }
\ No newline at end of file
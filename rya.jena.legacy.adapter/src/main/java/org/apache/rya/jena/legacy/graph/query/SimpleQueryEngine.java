@@ -18,43 +18,119 @@
 package org.apache.rya.jena.legacy.graph.query;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.jena.JenaRuntime;
 import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphStatisticsHandler;
 import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.util.iterator.ExtendedIterator;
-import org.apache.jena.util.iterator.NiceIterator;
-import org.apache.log4j.Logger;
 
 /**
  * SimpleQueryEngine
  */
 public class SimpleQueryEngine {
-    private static final Logger log = Logger.getLogger(SimpleQueryEngine.class);
+    /**
+     * Whether patterns may be matched by a {@link HashJoinStage}; set by the
+     * system property {@code jena.legacy.query.hashjoin} ("yes" by default).
+     * A pattern is hash joined when it shares no variable with the patterns
+     * before it, or when the graph statistics put both it and the domains
+     * reaching it at {@link #hashJoinThreshold} or more, with no more build
+     * rows than domains; anything else is left to the nested-loop index
+     * join.
+     */
+    public static boolean hashJoins = JenaRuntime.getSystemProperty("jena.legacy.query.hashjoin", "yes").equals("yes");
 
-    private final ExpressionSet constraint;
+    /**
+     * The number of matches, for both the pattern and the domains reaching
+     * it, above which a join is large enough to hash; set by the system
+     * property {@code jena.legacy.query.hashjoin.threshold} (10000).
+     */
+    public static long hashJoinThreshold = Long.parseLong(JenaRuntime.getSystemProperty("jena.legacy.query.hashjoin.threshold", "10000"));
+
+    /**
+     * Whether stages deliver only the slots still needed downstream, the last
+     * stage only the result slots; set by the system property
+     * {@code jena.legacy.query.projection} ("no" by default). When on, the
+     * domains answered by {@code executeBindings} are only as wide as the
+     * result variables, so callers must not read past them.
+     */
+    public static boolean projectResults = JenaRuntime.getSystemProperty("jena.legacy.query.projection", "no").equals("yes");
+
+    /**
+     * Whether a bunch of patterns over a named graph that shares no variable
+     * with the bunches before it is matched on its own, concurrently with
+     * them, and combined with their results by a cross product; set by the
+     * system property {@code jena.legacy.query.concurrentbunches} ("yes" by
+     * default).
+     */
+    public static boolean concurrentBunches = JenaRuntime.getSystemProperty("jena.legacy.query.concurrentbunches", "yes").equals("yes");
+
+    private final ExpressionSet constraints;
     private final NamedTripleBunches triples;
     private final TripleSorter sortMethod;
+    private final ExecutionMode executionMode;
     private int variableCount;
 
     /**
-     * @deprecated NamedTripleBunches are not supported. Use SimpleQueryEngine
-     * (List, TripleSorter, ExpressionSet) instead.
+     * The constraints still to be planted while a plan is compiled.
+     */
+    private ExpressionSet constraint;
+
+    /**
+     * The parameters of the plan being compiled.
+     */
+    private Node[] parameters = new Node[0];
+
+    /**
+     * The estimated number of domains leaving the stages added so far, or -1
+     * if there is no estimate.
      */
-    @Deprecated
+    private long estimatedRows = -1;
+
     public SimpleQueryEngine(final NamedTripleBunches triples, final TripleSorter ts, final ExpressionSet constraint) {
-        this.constraint = constraint;
+        this(triples, ts, constraint, ExecutionMode.DEFAULT);
+    }
+
+    /**
+     * Creates a new instance of {@link SimpleQueryEngine}.
+     * @param triples the {@link NamedTripleBunches} of patterns, each bunch
+     * matched against the graph of the same name.
+     * @param sorter the {@link TripleSorter}.
+     * @param constraints the {@link ExpressionSet} of constraints.
+     * @param executionMode the {@link ExecutionMode} the stages are run in.
+     */
+    public SimpleQueryEngine(final NamedTripleBunches triples, final TripleSorter sorter, final ExpressionSet constraints, final ExecutionMode executionMode) {
+        this.constraints = constraints;
         this.triples = triples;
-        this.sortMethod = ts;
+        this.sortMethod = sorter;
+        this.executionMode = executionMode == null ? ExecutionMode.DEFAULT : executionMode;
     }
 
     public SimpleQueryEngine(final List<Triple> pattern, final TripleSorter sorter, final ExpressionSet constraints) {
-        this.constraint = constraints;
+        this(pattern, sorter, constraints, ExecutionMode.DEFAULT);
+    }
+
+    /**
+     * Creates a new instance of {@link SimpleQueryEngine}.
+     * @param pattern the {@link List} of {@link Triple} patterns.
+     * @param sorter the {@link TripleSorter}.
+     * @param constraints the {@link ExpressionSet} of constraints.
+     * @param executionMode the {@link ExecutionMode} the stages are run in.
+     */
+    public SimpleQueryEngine(final List<Triple> pattern, final TripleSorter sorter, final ExpressionSet constraints, final ExecutionMode executionMode) {
+        this.constraints = constraints;
         this.triples = asNamedTripleBunches(pattern);
         this.sortMethod = sorter;
+        this.executionMode = executionMode == null ? ExecutionMode.DEFAULT : executionMode;
     }
 
     private static NamedTripleBunches asNamedTripleBunches(final List<Triple> pattern) {
@@ -70,55 +146,49 @@ public class SimpleQueryEngine {
     }
 
     public ExtendedIterator<Domain> executeBindings(final List<Stage> outStages, final NamedGraphMap args, final Node[] nodes) {
+        final Node[] none = new Node[0];
+        return compile(args, nodes, none).executeBindings(outStages, none);
+    }
+
+    /**
+     * Plan the query once: sort and classify its patterns, split them into
+     * stages and plant its constraints. The answered plan can then be
+     * executed any number of times.
+     * @param args the {@link NamedGraphMap} of the graphs to match.
+     * @param nodes the result variables, which take the first domain
+     * indexes.
+     * @param parameters the variables whose values are supplied anew for each
+     * execution of the plan.
+     * @return the {@link CompiledQueryPlan}.
+     */
+    public CompiledQueryPlan compile(final NamedGraphMap args, final Node[] nodes, final Node[] parameters) {
+        // Planting guards takes constraints out of the set, so plan against
+        // a copy and leave the query's own constraints alone.
+        constraint = constraints.copy();
         final Mapping map = new Mapping(nodes);
+        final int[] parameterIndexes = new int[parameters.length];
+        for (int i = 0; i < parameters.length; i += 1) {
+            parameterIndexes[i] = map.newIndex(parameters[i]);
+        }
+        this.parameters = parameters;
+        estimatedRows = -1;
         final ArrayList<Stage> stages = new ArrayList<Stage>();
-        addStages(stages, args, map);
+        final List<Triple[]> stagePatterns = new ArrayList<Triple[]>();
+        addStages(stages, stagePatterns, args, map);
+        if (projectResults) {
+            setProjections(stages, stagePatterns, map, nodes.length);
+        }
         if (constraint.isComplex()) {
-            stages.add(new ConstraintStage(map, constraint));
+            final Stage last = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+            if (last instanceof PatternStageBase) {
+                // Evaluate the left-over constraints inline rather than in a stage of their own.
+                ((PatternStageBase) last).absorbConstraints(map, constraint);
+            } else {
+                stages.add(new ConstraintStage(map, constraint));
+            }
         }
-        outStages.addAll(stages);
         variableCount = map.size();
-        return filter(connectStages(stages, variableCount));
-    }
-
-    private ExtendedIterator<Domain> filter(final Stage allStages) {
-        // final Pipe complete = allStages.deliver(new BufferPipe());
-        return new NiceIterator<Domain>() {
-            private Pipe complete;
-
-            private void ensurePipe() {
-                if (complete == null) {
-                    complete = allStages.deliver(new BufferPipe());
-                }
-            }
-
-            @Override
-            public void close() {
-                allStages.close();
-                clearPipe();
-            }
-
-            @Override
-            public Domain next() {
-                ensurePipe();
-                return complete.get();
-            }
-
-            @Override
-            public boolean hasNext() {
-                ensurePipe();
-                return complete.hasNext();
-            }
-
-            private void clearPipe() {
-                int count = 0;
-                while (hasNext()) {
-                    count += 1;
-                    next();
-                }
-                log.trace("The pipe cleared out " + count + " items.");
-            }
-        };
+        return new CompiledQueryPlan(stages, variableCount, parameterIndexes, executionMode);
     }
 
     public static Cons cons(final Triple pattern, final Object cons) {
@@ -149,7 +219,63 @@ public class SimpleQueryEngine {
         }
     }
 
-    private void addStages(final ArrayList<Stage> stages, final NamedGraphMap arguments, final Mapping map) {
+    /**
+     * Give each pattern stage a {@link Projection}: the last stage delivers
+     * only the {@code width} result slots, and every stage before it clears
+     * the slots it has bound that no later stage or constraint reads.
+     */
+    private void setProjections(final List<Stage> stages, final List<Triple[]> stagePatterns, final Mapping map, final int width) {
+        final Set<Node> live = new HashSet<Node>();
+        final Iterator<Expression> expressions = constraint.iterator();
+        while (expressions.hasNext()) {
+            for (final String name : Expression.Util.variablesOf(expressions.next())) {
+                live.add(NodeFactory.createVariable(name));
+            }
+        }
+        final Set<Node> boundSoFar = new HashSet<Node>();
+        final List<Set<Node>> boundBy = new ArrayList<Set<Node>>();
+        for (final Triple[] patterns : stagePatterns) {
+            for (final Triple t : patterns) {
+                addVariables(boundSoFar, t);
+            }
+            boundBy.add(new HashSet<Node>(boundSoFar));
+        }
+        for (int i = stagePatterns.size() - 1; i >= 0; i -= 1) {
+            if (stages.get(i) instanceof PatternStageBase) {
+                final PatternStageBase stage = (PatternStageBase) stages.get(i);
+                if (i == stagePatterns.size() - 1) {
+                    stage.setProjection(new Projection(width, new int[0]));
+                } else {
+                    final List<Integer> dropped = new ArrayList<Integer>();
+                    for (final Node v : boundBy.get(i)) {
+                        final int index = map.lookUp(v);
+                        if (index >= width && !live.contains(v)) {
+                            dropped.add(Integer.valueOf(index));
+                        }
+                    }
+                    if (!dropped.isEmpty()) {
+                        final int[] indexes = new int[dropped.size()];
+                        for (int k = 0; k < indexes.length; k += 1) {
+                            indexes[k] = dropped.get(k).intValue();
+                        }
+                        stage.setProjection(new Projection(-1, indexes));
+                    }
+                }
+            }
+            for (final Triple t : stagePatterns.get(i)) {
+                addVariables(live, t);
+            }
+        }
+    }
+
+    /**
+     * Add the stages for each bunch of patterns in turn. A bunch that shares
+     * no variable with the bunches before it does not depend on their
+     * results, so it gets a single {@link HashJoinStage} that matches the
+     * whole bunch while the earlier stages run and crosses the two.
+     */
+    private void addStages(final ArrayList<Stage> stages, final List<Triple[]> stagePatterns, final NamedGraphMap arguments, final Mapping map) {
+        final Set<Node> bound = new HashSet<Node>(Arrays.asList(parameters));
         final Iterator<Map.Entry<String, Cons>> it2 = triples.entrySetIterator();
         while (it2.hasNext()) {
             final Map.Entry<String, Cons> e = it2.next();
@@ -163,21 +289,143 @@ public class SimpleQueryEngine {
                 nodes[--i] = nodeTriples.head;
                 nodeTriples = nodeTriples.tail;
             }
-            nodes = sortTriples(nodes);
-            final Stage next = SimpleQueryHandler.findOrCreate(g).patternStage(map, constraint, nodes);
-            stages.add(next);
+            nodes = sortTriples(g, nodes, bound);
+            if (concurrentBunches && !stages.isEmpty() && !sharesVariable(nodes, bound)) {
+                final HashJoinStage stage = new HashJoinStage(g, map, constraint, nodes);
+                stage.setConcurrentBuild(true);
+                stages.add(stage);
+                stagePatterns.add(nodes);
+                estimatedRows = -1;
+            } else {
+                addPatternStages(stages, stagePatterns, g, map, nodes, bound);
+            }
+            for (final Triple t : nodes) {
+                addVariables(bound, t);
+            }
+        }
+    }
+
+    /**
+     * Add the stages matching the sorted {@code nodes}. Runs of patterns go
+     * to the graph's own pattern stage; a pattern after the first that shares
+     * no variable with the patterns before it, or that is a large join (see
+     * {@link #isLargeJoin(long, long)}), gets a {@link HashJoinStage}
+     * instead, so it is matched once rather than once per incoming domain.
+     * <p>
+     * The domains reaching each pattern are estimated from the statistic of
+     * the first pattern, taking every join on a shared variable to keep
+     * their number and a cross product to multiply it. This underestimates
+     * joins that fan out, so large joins are hashed conservatively.
+     */
+    private void addPatternStages(final ArrayList<Stage> stages, final List<Triple[]> stagePatterns, final Graph g, final Mapping map, final Triple[] nodes, final Set<Node> boundBefore) {
+        if (!hashJoins) {
+            stages.add(SimpleQueryHandler.handlerFor(g).patternStage(map, constraint, nodes));
+            stagePatterns.add(nodes);
+            return;
+        }
+        final GraphStatisticsHandler stats = statisticsOf(g);
+        final Set<Node> bound = new HashSet<Node>(boundBefore);
+        final List<Triple> run = new ArrayList<Triple>();
+        for (final Triple t : nodes) {
+            final boolean first = stages.isEmpty() && run.isEmpty();
+            final boolean joined = sharesVariable(t, bound);
+            final long matches = statistic(stats, t);
+            if (!first && (!joined || isLargeJoin(estimatedRows, matches))) {
+                addPatternStage(stages, stagePatterns, g, map, run);
+                final HashJoinStage stage = new HashJoinStage(g, map, constraint, new Triple[] {t});
+                // A cross product can be built while the earlier stages run.
+                stage.setConcurrentBuild(!joined);
+                stages.add(stage);
+                stagePatterns.add(new Triple[] {t});
+            } else {
+                run.add(t);
+            }
+            if (first) {
+                estimatedRows = matches;
+            } else if (!joined) {
+                estimatedRows = estimatedRows < 0 || matches < 0 ? -1 : saturatedProduct(estimatedRows, matches);
+            }
+            addVariables(bound, t);
+        }
+        addPatternStage(stages, stagePatterns, g, map, run);
+    }
+
+    private void addPatternStage(final ArrayList<Stage> stages, final List<Triple[]> stagePatterns, final Graph g, final Mapping map, final List<Triple> run) {
+        if (!run.isEmpty()) {
+            final Triple[] patterns = run.toArray(new Triple[run.size()]);
+            stages.add(SimpleQueryHandler.handlerFor(g).patternStage(map, constraint, patterns));
+            stagePatterns.add(patterns);
+            run.clear();
+        }
+    }
+
+    private static boolean sharesVariable(final Triple[] ts, final Set<Node> bound) {
+        for (final Triple t : ts) {
+            if (sharesVariable(t, bound)) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private Triple[] sortTriples(final Triple[] ts) {
-        return sortMethod.sort(ts);
+    private static boolean sharesVariable(final Triple t, final Set<Node> bound) {
+        return isIn(t.getSubject(), bound) || isIn(t.getPredicate(), bound) || isIn(t.getObject(), bound);
     }
 
-    private Stage connectStages(final ArrayList<Stage> stages, final int count) {
-        Stage current = Stage.initial(count);
-        for (int i = 0; i < stages.size(); i += 1) {
-            current = stages.get(i).connectFrom(current);
+    private static boolean isIn(final Node n, final Set<Node> bound) {
+        return n.isVariable() && bound.contains(n);
+    }
+
+    private static void addVariables(final Set<Node> bound, final Triple t) {
+        for (final Node n : new Node[] {t.getSubject(), t.getPredicate(), t.getObject()}) {
+            if (n.isVariable()) {
+                bound.add(n);
+            }
         }
-        return current;
+    }
+
+    /**
+     * @return {@code true} if a join of {@code rows} incoming domains with a
+     * pattern of {@code matches} matches is worth hashing: both are at least
+     * {@link #hashJoinThreshold}, so neither side is cheap to loop over, and
+     * the pattern has no more matches than there are domains, so scanning it
+     * once costs no more than the index lookups it replaces.
+     */
+    private static boolean isLargeJoin(final long rows, final long matches) {
+        return rows >= hashJoinThreshold && matches >= hashJoinThreshold && matches <= rows;
+    }
+
+    private static long saturatedProduct(final long a, final long b) {
+        return b != 0 && a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+    }
+
+    /**
+     * @return the graph statistic for the matches of {@code t}, with its
+     * variables unbound, or -1 if there is none.
+     */
+    private static long statistic(final GraphStatisticsHandler stats, final Triple t) {
+        if (stats == null) {
+            return -1;
+        }
+        return CostBasedTripleSorter.statistic(stats, Triple.create(anyIfVariable(t.getSubject()), anyIfVariable(t.getPredicate()), anyIfVariable(t.getObject())));
+    }
+
+    private static Node anyIfVariable(final Node n) {
+        return n.isVariable() ? Node.ANY : n;
+    }
+
+    private static GraphStatisticsHandler statisticsOf(final Graph g) {
+        if (g == null) {
+            return null;
+        }
+        try {
+            return g.getStatisticsHandler();
+        } catch (final UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private Triple[] sortTriples(final Graph g, final Triple[] ts, final Set<Node> bound) {
+        return sortMethod.sort(g, ts, Collections.unmodifiableSet(bound));
     }
 }
\ No newline at end of file
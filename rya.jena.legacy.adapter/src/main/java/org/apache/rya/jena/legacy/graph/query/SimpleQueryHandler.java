@@ -17,17 +17,19 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.apache.jena.JenaRuntime;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
-import org.apache.jena.util.CollectionFactory;
-import org.apache.jena.util.iterator.ClosableIterator;
 import org.apache.jena.util.iterator.ExtendedIterator;
-import org.apache.jena.util.iterator.WrappedIterator;
+import org.apache.rya.jena.legacy.sparql.graph.GraphBase2;
 
 /**
  * A SimpleQueryHandler is a more-or-less straightforward implementation of QueryHandler
@@ -76,31 +78,57 @@ public class SimpleQueryHandler implements QueryHandler {
         return predicatesFor(graph, s, o);
     }
 
-    public static ExtendedIterator<Node> objectsFor(final Graph g, final Node s, final Node p) {
-        final Set<Node> objects = CollectionFactory.createHashedSet();
-        final ClosableIterator<Triple> it = g.find(s, p, Node.ANY);
-        while (it.hasNext()) {
-            objects.add(it.next().getObject());
+    /**
+     * The most distinct nodes {@link #objectsFor(Graph, Node, Node)} and its
+     * siblings remember in memory before spilling to disk; taken from the
+     * system property {@code jena.legacy.query.distinct.maxnodes} (100000).
+     */
+    public static int maxDistinctNodes = Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.query.distinct.maxnodes", "100000"));
+
+    private static final Function<Triple, Node> SUBJECT = new Function<Triple, Node>() {
+        @Override
+        public Node apply(final Triple t) {
+            return t.getSubject();
+        }
+    };
+
+    private static final Function<Triple, Node> PREDICATE = new Function<Triple, Node>() {
+        @Override
+        public Node apply(final Triple t) {
+            return t.getPredicate();
         }
-        return WrappedIterator.createNoRemove(objects.iterator());
+    };
+
+    private static final Function<Triple, Node> OBJECT = new Function<Triple, Node>() {
+        @Override
+        public Node apply(final Triple t) {
+            return t.getObject();
+        }
+    };
+
+    public static ExtendedIterator<Node> objectsFor(final Graph g, final Node s, final Node p) {
+        return distinct(g.find(s, p, Node.ANY).mapWith(OBJECT), s, p);
     }
 
     public static ExtendedIterator<Node> subjectsFor(final Graph g, final Node p, final Node o) {
-        final Set<Node> objects = CollectionFactory.createHashedSet();
-        final ClosableIterator<Triple> it = g.find(Node.ANY, p, o);
-        while (it.hasNext()) {
-            objects.add(it.next().getSubject());
-        }
-        return WrappedIterator.createNoRemove(objects.iterator());
+        return distinct(g.find(Node.ANY, p, o).mapWith(SUBJECT), p, o);
     }
 
     public static ExtendedIterator<Node> predicatesFor(final Graph g, final Node s, final Node o) {
-        final Set<Node> predicates = CollectionFactory.createHashedSet();
-        final ClosableIterator<Triple> it = g.find(s, Node.ANY, o);
-        while (it.hasNext()) {
-            predicates.add(it.next().getPredicate());
+        return distinct(g.find(s, Node.ANY, o).mapWith(PREDICATE), s, o);
+    }
+
+    /**
+     * The nodes are streamed as they are found. A graph holds each triple
+     * once, so when both other positions are concrete the nodes are already
+     * distinct; otherwise duplicates are dropped by a
+     * {@link DistinctNodeIterator}.
+     */
+    private static ExtendedIterator<Node> distinct(final ExtendedIterator<Node> nodes, final Node a, final Node b) {
+        if (a.isConcrete() && b.isConcrete()) {
+            return nodes;
         }
-        return WrappedIterator.createNoRemove(predicates.iterator());
+        return new DistinctNodeIterator(nodes);
     }
 
     /**
@@ -113,16 +141,107 @@ public class SimpleQueryHandler implements QueryHandler {
         return graph.contains(n, Node.ANY, Node.ANY) || graph.contains(Node.ANY, n, Node.ANY) || graph.contains(Node.ANY, Node.ANY, n);
     }
 
-    final public static Map<Graph, SimpleQueryHandler> grMap = new HashMap<Graph, SimpleQueryHandler>();
+    /**
+     * The handlers made by {@link #findOrCreate}. Graphs are held by weak, identity keys and their
+     * handlers by weak references, so neither keeps a graph reachable; a
+     * handler no longer in use may be collected and is simply made again.
+     */
+    private static final ConcurrentMap<GraphKey, HandlerReference> handlers = new ConcurrentHashMap<GraphKey, HandlerReference>();
+
+    /**
+     * Where the keys and handler references of {@link #handlers} are queued
+     * once collected, to be removed on the next {@link #findOrCreate}.
+     */
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    /**
+     * @param g the {@link Graph}.
+     * @return the query handler of {@code g}: the one a {@link GraphBase2}
+     * supplies, or else the one {@link #findOrCreate} answers.
+     */
+    public static QueryHandler handlerFor(final Graph g) {
+        if (g instanceof GraphBase2) {
+            return ((GraphBase2) g).queryHandler();
+        }
+        return findOrCreate(g);
+    }
 
+    /**
+     * Answers the registered handler of any graph, {@link GraphBase2}s
+     * included; it never asks the graph, so a
+     * {@link GraphBase2#queryHandler()} may delegate here.
+     * @param g the {@link Graph}.
+     * @return a SimpleQueryHandler for {@code g}, shared by everyone asking
+     * while it is in use.
+     */
     public static SimpleQueryHandler findOrCreate(final Graph g) {
-        synchronized (grMap) {
-            SimpleQueryHandler queryHandler = grMap.get(g);
-            if (queryHandler == null) {
-                queryHandler = new SimpleQueryHandler(g);
-                grMap.put(g, queryHandler);
+        expungeCollected();
+        final GraphKey key = new GraphKey(g);
+        while (true) {
+            final HandlerReference ref = handlers.get(key);
+            final SimpleQueryHandler existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+            final SimpleQueryHandler created = new SimpleQueryHandler(g);
+            final HandlerReference fresh = new HandlerReference(key, created);
+            if (ref == null ? handlers.putIfAbsent(key, fresh) == null : handlers.replace(key, ref, fresh)) {
+                return created;
+            }
+        }
+    }
+
+    private static void expungeCollected() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            if (ref instanceof HandlerReference) {
+                handlers.remove(((HandlerReference) ref).key, ref);
+            } else {
+                handlers.remove(ref);
             }
-            return queryHandler;
+        }
+    }
+
+    /**
+     * A weak reference to a graph that compares by the graph's identity, and
+     * after the graph is collected only equals itself.
+     */
+    private static final class GraphKey extends WeakReference<Graph> {
+        private final int hash;
+
+        GraphKey(final Graph g) {
+            super(g, collected);
+            this.hash = System.identityHashCode(g);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof GraphKey)) {
+                return false;
+            }
+            final Graph g = get();
+            return g != null && g == ((GraphKey) other).get();
+        }
+    }
+
+    /**
+     * A weak reference to a handler that remembers the key it was registered
+     * under, so it can be removed once collected.
+     */
+    private static final class HandlerReference extends WeakReference<SimpleQueryHandler> {
+        private final GraphKey key;
+
+        HandlerReference(final GraphKey key, final SimpleQueryHandler handler) {
+            super(handler, collected);
+            this.key = key;
         }
     }
 }
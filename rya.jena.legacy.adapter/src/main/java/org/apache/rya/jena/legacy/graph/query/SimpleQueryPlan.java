@@ -17,20 +17,21 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
-import java.util.ArrayList;
-
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
 import org.apache.jena.util.iterator.ExtendedIterator;
 
 /**
  * SimpleQueryPlan is an implementation of QueryPlan which uses the engine defined
- * in Query to do the work.
+ * in Query to do the work. The query is compiled on the first execution and
+ * the {@link CompiledQueryPlan} is reused by every later one, so later changes
+ * to the query are not seen by the plan.
  */
 public class SimpleQueryPlan implements BindingQueryPlan {
     private final Graph graph;
     private final GraphQuery query;
     private final Node[] variables;
+    private CompiledQueryPlan compiled;
 
     public SimpleQueryPlan(final Graph graph, final GraphQuery query, final Node[] variables) {
         this.graph = graph;
@@ -38,9 +39,19 @@ public class SimpleQueryPlan implements BindingQueryPlan {
         this.variables = variables;
     }
 
+    /**
+     * @return the {@link CompiledQueryPlan} of the query, compiling it on
+     * first use.
+     */
+    public synchronized CompiledQueryPlan getCompiledPlan() {
+        if (compiled == null) {
+            compiled = query.compile(graph, variables);
+        }
+        return compiled;
+    }
+
     @Override
     public ExtendedIterator<Domain> executeBindings() {
-        return new SimpleQueryEngine(query.getPattern(), query.getSorter(), query.getConstraints())
-                .executeBindings(new ArrayList<Stage>(), query.args().put(NamedTripleBunches.anon, graph), variables);
+        return getCompiledPlan().executeBindings();
     }
-}
\ No newline at end of file
+}
@@ -17,8 +17,14 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.jena.graph.Factory;
@@ -28,9 +34,20 @@ import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.util.CollectionFactory;
 import org.apache.jena.util.iterator.ClosableIterator;
+import org.apache.jena.util.iterator.ExtendedIterator;
 
 /**
- * Incomplete class. Do not use.
+ * Matches a tree-shaped pattern graph against a target graph. Blank nodes
+ * of the pattern match anything. The answer holds every target triple that
+ * matches a pattern edge which can be reached from a root of the pattern
+ * through edges that all have matches, and from whose object such a path
+ * leads on to a leaf of the pattern.
+ * <p>
+ * The pattern is walked level by level from its roots rather than depth
+ * first: each level's edges are looked up together (in one call if the
+ * target is a {@link MultiFind}), every distinct lookup is made only once
+ * however often its pattern node is reached, and a pattern node is expanded
+ * only once.
  */
 public class SimpleTreeQueryPlan implements TreeQueryPlan {
     private final Graph pattern;
@@ -44,41 +61,125 @@ public class SimpleTreeQueryPlan implements TreeQueryPlan {
     @Override
     public Graph executeTree() {
         final Graph result = Factory.createGraphMem();
-        final Set<Node> roots = getRoots(pattern);
-        for (final Iterator<Node> it = roots.iterator(); it.hasNext(); handleRoot(result, it.next(), new HashSet<Triple>())) {
+        // The matches of each lookup made, keyed by its find pattern.
+        final Map<Triple, List<Triple>> found = new HashMap<Triple, List<Triple>>();
+        // The outgoing edges of each expanded pattern node.
+        final Map<Node, List<Triple>> edges = new LinkedHashMap<Node, List<Triple>>();
+        Set<Node> frontier = getRoots(pattern);
+        while (!frontier.isEmpty()) {
+            final List<Triple> level = new ArrayList<Triple>();
+            for (final Node node : frontier) {
+                final List<Triple> out = pattern.find(node, Node.ANY, Node.ANY).toList();
+                edges.put(node, out);
+                level.addAll(out);
+            }
+            lookUp(level, found);
+            final Set<Node> next = new LinkedHashSet<Node>();
+            for (final Triple edge : level) {
+                final Node object = edge.getObject();
+                if (!matchesOf(edge, found).isEmpty() && !edges.containsKey(object)) {
+                    next.add(object);
+                }
+            }
+            frontier = next;
+        }
+        final Set<Node> alive = aliveNodes(edges, found);
+        for (final List<Triple> out : edges.values()) {
+            for (final Triple edge : out) {
+                if (alive.contains(edge.getObject())) {
+                    for (final Triple t : matchesOf(edge, found)) {
+                        result.add(t);
+                    }
+                }
+            }
         }
         return result;
     }
 
-    private Iterator<Triple> findFromTriple(final Graph g, final Triple t) {
-        return g.find(asPattern(t.getSubject()), asPattern(t.getPredicate()), asPattern(t.getObject()));
-    }
-
-    private Node asPattern(final Node node) {
-        return node.isBlank() ? null : node;
+    /**
+     * @return the expanded pattern nodes from which a path of edges with
+     * matches leads to a leaf; a leaf is alive itself.
+     */
+    private static Set<Node> aliveNodes(final Map<Node, List<Triple>> edges, final Map<Triple, List<Triple>> found) {
+        final Set<Node> alive = new HashSet<Node>();
+        for (final Map.Entry<Node, List<Triple>> e : edges.entrySet()) {
+            if (e.getValue().isEmpty()) {
+                alive.add(e.getKey());
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (final Map.Entry<Node, List<Triple>> e : edges.entrySet()) {
+                if (alive.contains(e.getKey())) {
+                    continue;
+                }
+                for (final Triple edge : e.getValue()) {
+                    if (alive.contains(edge.getObject()) && !matchesOf(edge, found).isEmpty()) {
+                        alive.add(e.getKey());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return alive;
     }
 
-    private void handleRoot(final Graph result, final Node root, final Set<Triple> pending) {
-        final ClosableIterator<Triple> it = pattern.find(root, null, null);
-        if (!it.hasNext()) {
-            absorb(result, pending);
+    /**
+     * Look up the find patterns of {@code level} that have not been looked up
+     * yet, recording their matches in {@code found}.
+     */
+    private void lookUp(final List<Triple> level, final Map<Triple, List<Triple>> found) {
+        final Set<Triple> wanted = new LinkedHashSet<Triple>();
+        for (final Triple edge : level) {
+            final Triple find = asFind(edge);
+            if (!found.containsKey(find)) {
+                wanted.add(find);
+            }
+        }
+        if (wanted.isEmpty()) {
             return;
         }
-        while (it.hasNext()) {
-            final Triple base = it.next();
-            final Iterator<Triple> that = findFromTriple(target, base);
-            while (that.hasNext()) {
-                final Triple triple = that.next();
-                pending.add(triple);
-                handleRoot(result, base.getObject(), pending);
+        for (final Triple find : wanted) {
+            found.put(find, new ArrayList<Triple>());
+        }
+        if (target instanceof MultiFind && wanted.size() > 1) {
+            final ExtendedIterator<Triple> it = ((MultiFind) target).findAny(new ArrayList<Triple>(wanted));
+            try {
+                while (it.hasNext()) {
+                    final Triple t = it.next();
+                    for (final Triple find : wanted) {
+                        if (find.matches(t)) {
+                            found.get(find).add(t);
+                        }
+                    }
+                }
+            } finally {
+                it.close();
+            }
+        } else {
+            for (final Triple find : wanted) {
+                final ExtendedIterator<Triple> it = target.find(find);
+                try {
+                    found.get(find).addAll(it.toList());
+                } finally {
+                    it.close();
+                }
             }
         }
     }
 
-    private void absorb(final Graph result, final Set<Triple> triples) {
-        for (final Iterator<Triple> it = triples.iterator(); it.hasNext(); result.add(it.next())) {
-        }
-        triples.clear();
+    private static List<Triple> matchesOf(final Triple edge, final Map<Triple, List<Triple>> found) {
+        return found.get(asFind(edge));
+    }
+
+    private static Triple asFind(final Triple t) {
+        return Triple.create(asPattern(t.getSubject()), asPattern(t.getPredicate()), asPattern(t.getObject()));
+    }
+
+    private static Node asPattern(final Node node) {
+        return node.isBlank() ? Node.ANY : node;
     }
 
     public static Set<Node> getRoots(final Graph pattern) {
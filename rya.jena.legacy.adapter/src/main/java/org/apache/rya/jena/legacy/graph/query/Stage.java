@@ -17,13 +17,20 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.jena.shared.BrokenException;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+
 /**
  * a processing stage in the query pipeline. Each stage
  * gets connected to its predecessor in the pipeline, and
  * mangles the contents before handing them on to the next
  * stage.
  */
-public abstract class Stage {
+public abstract class Stage implements Cloneable {
     /**
      * the previous stage of the pipeline, once connected
      */
@@ -31,6 +38,33 @@ public abstract class Stage {
 
     public volatile boolean stillOpen = true;
 
+    /**
+     * the pipes this stage reads from, cancelled when it is closed
+     */
+    private List<Pipe> sources = new CopyOnWriteArrayList<Pipe>();
+
+    private static volatile StageExecutor executor = new BoundedStageExecutor();
+
+    /**
+     * @return the {@link StageExecutor} that runs the work of pipelined
+     * stages.
+     */
+    public static StageExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the {@link StageExecutor} that runs the work of pipelined stages;
+     * stages delivered afterwards use it.
+     * @param stageExecutor the {@link StageExecutor}. (not {@code null})
+     */
+    public static void setExecutor(final StageExecutor stageExecutor) {
+        if (stageExecutor == null) {
+            throw new IllegalArgumentException("stageExecutor must not be null");
+        }
+        executor = stageExecutor;
+    }
+
     /**
      * construct a new initial stage for the pipeline
      */
@@ -47,6 +81,27 @@ public abstract class Stage {
         return this;
     }
 
+    /**
+     * Answer a stage that does the same work as this one, sharing what was
+     * worked out when this one was built (classified patterns, guards,
+     * prepared constraints), but with fresh runtime state: open and not yet
+     * connected. A compiled plan copies its stages for each execution.
+     * Stages that keep other state for a single execution must override this
+     * to reset it.
+     * @return the unconnected copy.
+     */
+    public Stage copy() {
+        try {
+            final Stage result = (Stage) clone();
+            result.previous = null;
+            result.stillOpen = true;
+            result.sources = new CopyOnWriteArrayList<Pipe>();
+            return result;
+        } catch (final CloneNotSupportedException e) {
+            throw new BrokenException(e);
+        }
+    }
+
     public boolean isClosed() {
         return !stillOpen;
     }
@@ -55,9 +110,39 @@ public abstract class Stage {
         stillOpen = false;
     }
 
+    /**
+     * Close this stage and those before it: each stops its work, and the
+     * pipes between them are cancelled, so that threads waiting on them are
+     * released at once rather than after the remaining results have been
+     * computed and thrown away.
+     */
     public void close() {
-        previous.close();
         markClosed();
+        cancelSources();
+        previous.close();
+    }
+
+    /**
+     * Note that this stage reads from {@code source}, which is cancelled
+     * when the stage is closed (at once, if it already is).
+     * @param source the {@link Pipe} delivered into by an earlier stage.
+     * @return {@code source}.
+     */
+    protected Pipe cancelledOnClose(final Pipe source) {
+        sources.add(source);
+        if (!stillOpen) {
+            source.cancel();
+        }
+        return source;
+    }
+
+    /**
+     * Cancel every pipe this stage reads from.
+     */
+    protected final void cancelSources() {
+        for (final Pipe source : sources) {
+            source.cancel();
+        }
     }
 
     /**
@@ -66,4 +151,33 @@ public abstract class Stage {
      * the sink to be created as the argument to {@link #deliver}.
      */
     public abstract Pipe deliver(Pipe sink);
+
+    /**
+     * Execute the pipeline on the calling thread, answering an iterator over
+     * its results; nothing is computed until the iterator is asked for the
+     * next element. Closing the iterator closes the pipeline.
+     * <p>
+     * This default runs the pipeline with {@link #deliver} and iterates over
+     * the resulting pipe, so stages that can only deliver may still take part
+     * in a pulled pipeline.
+     */
+    public ExtendedIterator<Domain> pull() {
+        final Pipe pipe = cancelledOnClose(deliver(BufferPipe.create()));
+        return new NiceIterator<Domain>() {
+            @Override
+            public boolean hasNext() {
+                return pipe.hasNext();
+            }
+
+            @Override
+            public Domain next() {
+                return pipe.get();
+            }
+
+            @Override
+            public void close() {
+                Stage.this.close();
+            }
+        };
+    }
 }
\ No newline at end of file
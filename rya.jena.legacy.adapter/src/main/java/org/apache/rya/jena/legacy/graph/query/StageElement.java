@@ -24,20 +24,34 @@ package org.apache.rya.jena.legacy.graph.query;
 public abstract class StageElement {
     public abstract void run(Domain current);
 
+    /**
+     * Finish any work held back by this element and the elements after it,
+     * in chain order. Called once by the stage after its last input.
+     */
+    public void flush() {
+    }
+
     /**
      * A PutBindings is created with a domain sink and, whenever it is run,
-     * puts a copy of the current domain down the sink.
+     * puts a copy of the current domain down the sink, keeping only the slots
+     * its {@link Projection} keeps.
      */
     public static final class PutBindings extends StageElement {
         protected final Pipe sink;
+        protected final Projection projection;
 
         public PutBindings(final Pipe sink) {
+            this(sink, Projection.ALL);
+        }
+
+        public PutBindings(final Pipe sink, final Projection projection) {
             this.sink = sink;
+            this.projection = projection;
         }
 
         @Override
         public final void run(final Domain current) {
-            sink.put(current.copy());
+            sink.put(projection.apply(current));
         }
     }
 
@@ -64,6 +78,14 @@ public abstract class StageElement {
                 finder.applyToTriples(current, matcher, next);
             }
         }
+
+        @Override
+        public void flush() {
+            if (stage.stillOpen) {
+                finder.flush();
+            }
+            next.flush();
+        }
     }
 
     /**
@@ -91,5 +113,10 @@ public abstract class StageElement {
                 next.run(current);
             }
         }
+
+        @Override
+        public void flush() {
+            next.flush();
+        }
     }
 }
\ No newline at end of file
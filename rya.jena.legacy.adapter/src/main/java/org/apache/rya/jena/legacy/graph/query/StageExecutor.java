@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A StageExecutor runs the work of pipelined query stages. Each stage that
+ * needs a thread of its own hands its work to the executor together with the
+ * pipe it delivers into; if the executor cannot run the work, it must close
+ * that pipe with an exception so the consumer does not wait forever.
+ * <p>
+ * The current executor is held by {@link Stage#getExecutor()}.
+ */
+public interface StageExecutor {
+    /**
+     * Run the work of {@code stage} asynchronously.
+     * @param stage the {@link Stage} the work belongs to.
+     * @param sink the {@link Pipe} the work delivers into; closed with an
+     * exception if the work is rejected.
+     * @param work the {@link Runnable} work of the stage.
+     */
+    void execute(Stage stage, Pipe sink, Runnable work);
+
+    /**
+     * Run optional work of {@code stage} asynchronously if the executor can
+     * take it now. Work that is not taken is left to the stage to run itself,
+     * so a rejection must neither fail the query nor cancel the stage's
+     * sources. The default hands the work to
+     * {@link #execute(Stage, Pipe, Runnable)} with a sink that only notes
+     * whether it was closed with an exception.
+     * @param stage the {@link Stage} the work belongs to.
+     * @param work the {@link Runnable} work of the stage.
+     * @return {@code true} if the work was taken; {@code false} if the stage
+     * must run it itself.
+     */
+    default boolean tryExecute(final Stage stage, final Runnable work) {
+        final boolean[] rejected = new boolean[1];
+        execute(stage, new Pipe() {
+            @Override
+            public void put(final Domain d) {
+            }
+
+            @Override
+            public boolean hasNext() {
+                return false;
+            }
+
+            @Override
+            public Domain get() {
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void close(final Exception e) {
+                rejected[0] = true;
+            }
+        }, work);
+        return !rejected[0];
+    }
+}
@@ -17,6 +17,10 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
 
 /**
@@ -32,6 +36,27 @@ public interface TripleSorter {
      */
     public Triple[] sort(Triple[] triples);
 
+    /**
+     * Sort the array triples, which are about to be matched against
+     * {@code graph}, as for {@link #sort(Triple[])}. Sorters that can use the
+     * graph (for example its statistics) override this; by default the graph
+     * is ignored.
+     */
+    public default Triple[] sort(final Graph graph, final Triple[] triples) {
+        return sort(triples);
+    }
+
+    /**
+     * Sort the array triples, which are about to be matched against
+     * {@code graph} with the variables in {@code bound} already given values
+     * by earlier stages or query parameters, as for {@link #sort(Triple[])}.
+     * Sorters that can use what is bound override this; by default it is
+     * ignored.
+     */
+    public default Triple[] sort(final Graph graph, final Triple[] triples, final Set<Node> bound) {
+        return sort(graph, triples);
+    }
+
     /**
      * A TripleSorter that does not alter the triple array at all.
      */
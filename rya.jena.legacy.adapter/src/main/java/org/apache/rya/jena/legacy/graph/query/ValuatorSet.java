@@ -17,16 +17,54 @@
  */
 package org.apache.rya.jena.legacy.graph.query;
 
-import java.util.Iterator;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-import org.apache.jena.util.CollectionFactory;
+import org.apache.jena.JenaRuntime;
 
 /**
  * ValuatorSet - a set of Valuators, which can be added to and evaluated [only].
+ * The Valuators start out ordered cheapest first by the cost given when they
+ * were added. While the set is evaluated it counts how often each Valuator
+ * passes, samples how long each takes, and every so often reorders them so
+ * that the ones most likely to reject a binding soonest run first.
+ * <p>
+ * A set may be shared by concurrent executions, so the order it runs its
+ * Valuators in depends on timing. The result must not: a binding is rejected
+ * if any Valuator rejects it, whether or not another one throws, and an
+ * exception is only thrown if no Valuator rejects the binding. This is the
+ * logical-and of SPARQL, where an error and {@code false} make
+ * {@code false}.
  */
 public class ValuatorSet {
-    private final Set<Valuator> valuators = CollectionFactory.createHashedSet();
+    /**
+     * Whether ValuatorSets reorder their Valuators as they run; set by the
+     * system property {@code jena.legacy.query.adaptiveconstraints} ("yes" by
+     * default).
+     */
+    public static boolean adaptive = JenaRuntime.getSystemProperty("jena.legacy.query.adaptiveconstraints", "yes").equals("yes");
+
+    /**
+     * One evaluation in this many is timed.
+     */
+    private static final int SAMPLE_MASK = 63;
+
+    /**
+     * The Valuators are reordered after this many evaluations.
+     */
+    private static final int REORDER_INTERVAL = 4096;
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private volatile Entry[] entries = NO_ENTRIES;
+
+    /**
+     * The number of evaluations, which picks the ones to time and when to
+     * reorder.
+     */
+    private final AtomicInteger calls = new AtomicInteger();
 
     /**
      * Creates a new instance of {@link ValuatorSet}.
@@ -38,7 +76,7 @@ public class ValuatorSet {
      * @return {@code true} if evaluating this ValuatorSet runs some Valuators.
      */
     public boolean isNonTrivial() {
-        return valuators.size() > 0;
+        return entries.length > 0;
     }
 
     /**
@@ -46,23 +84,243 @@ public class ValuatorSet {
      * @return this ValuatorSet after adding the Valuator {@code e} to it.
      */
     public ValuatorSet add(final Valuator e) {
-        valuators.add(e);
+        return add(e, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param e the {@link Valuator}
+     * @param cost the estimated cost of evaluating {@code e}; see
+     * {@link ExpressionCompiler#cost}.
+     * @return this ValuatorSet after adding the Valuator {@code e} to it,
+     * after any Valuators costing no more.
+     */
+    public synchronized ValuatorSet add(final Valuator e, final int cost) {
+        final Entry[] current = entries;
+        for (final Entry entry : current) {
+            if (entry.valuator.equals(e)) {
+                return this;
+            }
+        }
+        int at = current.length;
+        while (at > 0 && current[at - 1].cost > cost) {
+            at -= 1;
+        }
+        final Entry[] result = new Entry[current.length + 1];
+        System.arraycopy(current, 0, result, 0, at);
+        result[at] = new Entry(e, cost);
+        System.arraycopy(current, at, result, at + 1, current.length - at);
+        entries = result;
         return this;
     }
 
     /**
      * @return {@code true} if no Valuator in this set evaluates to {@code false}. The
-     * Valuators are evaluated in an unspecified order, and evaluation ceases as
-     * soon as any Valuator has returned {@code false}.
+     * Valuators are evaluated in their current order, and evaluation ceases as
+     * soon as any Valuator has returned {@code false}. A Valuator that throws
+     * does not stop the evaluation; its exception is rethrown only if none
+     * of the others returns {@code false}.
      */
     public boolean evalBool(final IndexValues iv) {
-        final Iterator<Valuator> it = valuators.iterator();
-        while (it.hasNext()) {
-            final Valuator valuator = it.next();
-            if (!valuator.evalBool(iv)) {
-                return false;
+        final Entry[] es = entries;
+        final boolean counted = adaptive;
+        final int call = counted ? calls.incrementAndGet() : 0;
+        final boolean timed = counted && (call & SAMPLE_MASK) == 0;
+        RuntimeException failure = null;
+        boolean result = true;
+        for (int i = 0; i < es.length; i += 1) {
+            final Entry entry = es[i];
+            final boolean passed;
+            try {
+                if (timed) {
+                    final long start = System.nanoTime();
+                    passed = entry.valuator.evalBool(iv);
+                    entry.timedNanos.add(System.nanoTime() - start);
+                    entry.timed.increment();
+                } else {
+                    passed = entry.valuator.evalBool(iv);
+                }
+            } catch (final RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                continue;
+            }
+            if (counted) {
+                entry.evaluated.increment();
+            }
+            if (!passed) {
+                result = false;
+                break;
             }
+            if (counted) {
+                entry.passed.increment();
+            }
+        }
+        if (counted && call % REORDER_INTERVAL == 0 && es.length > 1) {
+            reorder();
+        }
+        if (result && failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    /**
+     * Order the Valuators by the expected cost of rejecting a binding with
+     * each: its cost divided by the chance that it rejects. Measured times
+     * and estimated costs are in different units, so once any Valuator has
+     * been timed the estimates of the others are converted to nanoseconds
+     * at the mean rate of the timed ones.
+     */
+    private synchronized void reorder() {
+        final Entry[] result = entries.clone();
+        double nanosPerCost = 1;
+        int calibrated = 0;
+        double rates = 0;
+        for (final Entry entry : result) {
+            final long timed = entry.timed.sum();
+            if (timed > 0 && entry.cost < Integer.MAX_VALUE) {
+                rates += (double) entry.timedNanos.sum() / timed / Math.max(1, entry.cost);
+                calibrated += 1;
+            }
+        }
+        if (calibrated > 0) {
+            nanosPerCost = rates / calibrated;
+        }
+        final double[] rank = new double[result.length];
+        for (int i = 0; i < result.length; i += 1) {
+            rank[i] = result[i].rank(nanosPerCost);
+        }
+        // Insertion sort: the sets are small and usually already in order.
+        for (int i = 1; i < result.length; i += 1) {
+            final Entry entry = result[i];
+            final double r = rank[i];
+            int j = i - 1;
+            while (j >= 0 && rank[j] > r) {
+                result[j + 1] = result[j];
+                rank[j + 1] = rank[j];
+                j -= 1;
+            }
+            result[j + 1] = entry;
+            rank[j + 1] = r;
+        }
+        entries = result;
+    }
+
+    /**
+     * @return the counters of each Valuator, in the order they are currently
+     * evaluated.
+     */
+    public List<Statistics> getStatistics() {
+        final Entry[] es = entries;
+        final List<Statistics> result = new ArrayList<Statistics>(es.length);
+        for (final Entry entry : es) {
+            result.add(new Statistics(entry));
+        }
+        return result;
+    }
+
+    /**
+     * A snapshot of the counters of one Valuator of a ValuatorSet. Evaluations
+     * that throw are not counted.
+     */
+    public static final class Statistics {
+        private final Valuator valuator;
+        private final int cost;
+        private final long evaluated;
+        private final long passed;
+        private final long timed;
+        private final long timedNanos;
+
+        private Statistics(final Entry entry) {
+            this.valuator = entry.valuator;
+            this.cost = entry.cost;
+            this.timedNanos = entry.timedNanos.sum();
+            this.timed = entry.timed.sum();
+            this.passed = entry.passed.sum();
+            this.evaluated = entry.evaluated.sum();
+        }
+
+        /**
+         * @return the {@link Valuator}.
+         */
+        public Valuator getValuator() {
+            return valuator;
+        }
+
+        /**
+         * @return the estimated cost the Valuator was added with.
+         */
+        public int getCost() {
+            return cost;
+        }
+
+        /**
+         * @return how many times the Valuator has been evaluated.
+         */
+        public long getEvaluated() {
+            return evaluated;
+        }
+
+        /**
+         * @return how many of those evaluations passed.
+         */
+        public long getPassed() {
+            return passed;
+        }
+
+        /**
+         * @return the fraction of evaluations that passed, or {@code 1} if
+         * there have been none.
+         */
+        public double getPassRate() {
+            return evaluated == 0 ? 1 : (double) passed / evaluated;
+        }
+
+        /**
+         * @return the mean time of the timed evaluations in nanoseconds, or
+         * {@code -1} if none has been timed.
+         */
+        public double getAverageNanos() {
+            return timed == 0 ? -1 : (double) timedNanos / timed;
+        }
+
+        @Override
+        public String toString() {
+            return "<valuator " + valuator + " cost=" + cost + " evaluated=" + evaluated + " passed=" + passed + " averageNanos=" + getAverageNanos() + ">";
+        }
+    }
+
+    /**
+     * A Valuator with its counters.
+     */
+    private static final class Entry {
+        final Valuator valuator;
+        final int cost;
+        final LongAdder evaluated = new LongAdder();
+        final LongAdder passed = new LongAdder();
+        final LongAdder timed = new LongAdder();
+        final LongAdder timedNanos = new LongAdder();
+
+        Entry(final Valuator valuator, final int cost) {
+            this.valuator = valuator;
+            this.cost = cost;
+        }
+
+        /**
+         * @param nanosPerCost the nanoseconds one unit of estimated cost is
+         * taken to be, so that untimed Valuators compare with timed ones.
+         * @return the expected cost of a rejection by this Valuator: its
+         * measured (or else estimated) cost over its observed rejection rate.
+         * One that has never run is given a rejection rate of one half, so
+         * that it gets tried.
+         */
+        double rank(final double nanosPerCost) {
+            final long timedCount = timed.sum();
+            final long evaluatedCount = evaluated.sum();
+            final double each = timedCount > 0 ? (double) timedNanos.sum() / timedCount : Math.max(1, cost) * nanosPerCost;
+            final double rejects = evaluatedCount == 0 ? 0.5 : (double) (evaluatedCount - passed.sum()) / evaluatedCount;
+            return rejects == 0 ? Double.MAX_VALUE : each / rejects;
         }
-        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,495 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.legacy.sparql.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphListener;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDF;
+
+/**
+ * An in-memory index of the reifications in a graph, from reifier node to
+ * reified triple and from triple to reifier nodes, so that {@link Reifier2}
+ * can answer lookups without querying the graph.
+ * <p>
+ * The index is filled on first use by one scan of the {@code rdf:type
+ * rdf:Statement}, {@code rdf:subject}, {@code rdf:predicate} and
+ * {@code rdf:object} triples, and kept current by listening to the graph, so
+ * writes made through the reifier or directly to the graph both show. It
+ * holds at most {@link Reifier2#indexMaxNodes} reifier nodes. A graph with
+ * more than that is not indexed; instead the triples of the most recently
+ * looked-up nodes are cached, up to the same number.
+ */
+final class ReificationIndex implements GraphListener {
+    private static final Node RDF_TYPE     = RDF.Nodes.type;
+    private static final Node STATEMENT    = RDF.Nodes.Statement;
+    private static final Node SUBJECT      = RDF.Nodes.subject;
+    private static final Node PREDICATE    = RDF.Nodes.predicate;
+    private static final Node OBJECT       = RDF.Nodes.object;
+
+    /**
+     * Cached for a node that reifies no triple.
+     */
+    private static final Triple UNREIFIED = Triple.create(Node.ANY, Node.ANY, Node.ANY);
+
+    private final Graph graph;
+    private final Reifier2 reifier;
+    private final int maxNodes;
+
+    /**
+     * Counts the changes to reifications, so that a scan or query that ran
+     * outside the lock is not recorded if the graph changed meanwhile.
+     */
+    private long version = 0;
+
+    /**
+     * Whether the graph has been scanned; if so, and {@link #fragments} is
+     * {@code null}, it held too many reifications to index.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The reification triples of each reifier node; {@code null} when the
+     * graph is not indexed.
+     */
+    private Map<Node, Fragments> fragments = null;
+
+    /**
+     * The nodes reifying each triple, as the reification query would find
+     * them; {@code null} when the graph is not indexed.
+     */
+    private Map<Triple, Set<Node>> nodes = null;
+
+    /**
+     * The triples of recently looked-up nodes, used when the graph is not
+     * indexed.
+     */
+    private final Map<Node, Triple> cache;
+
+    /**
+     * @param graph the {@link Graph}, whose changes are listened to until
+     * {@link #close()}.
+     * @param reifier the {@link Reifier2} whose queries answer what the index
+     * cannot.
+     * @param maxNodes the most reifier nodes held.
+     */
+    ReificationIndex(final Graph graph, final Reifier2 reifier, final int maxNodes) {
+        this.graph = graph;
+        this.reifier = reifier;
+        this.maxNodes = Math.max(1, maxNodes);
+        this.cache = new LinkedHashMap<Node, Triple>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Node, Triple> eldest) {
+                return size() > ReificationIndex.this.maxNodes;
+            }
+        };
+        graph.getEventManager().register(this);
+    }
+
+    /**
+     * Stop listening to the graph.
+     */
+    void close() {
+        graph.getEventManager().unregister(this);
+        synchronized (this) {
+            reset();
+        }
+    }
+
+    /**
+     * @param node a concrete {@link Node}.
+     * @return the triple {@code node} reifies, or {@code null} if it reifies
+     * none or is over-specified.
+     */
+    Triple getTriple(final Node node) {
+        load();
+        final long start;
+        synchronized (this) {
+            if (fragments != null) {
+                final Fragments f = fragments.get(node);
+                return f == null ? null : f.triple();
+            }
+            final Triple cached = cache.get(node);
+            if (cached != null) {
+                return cached == UNREIFIED ? null : cached;
+            }
+            start = version;
+        }
+        final Triple t = reifier.queryTriple(node);
+        synchronized (this) {
+            if (version == start) {
+                cache.put(node, t == null ? UNREIFIED : t);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * @param triple a concrete {@link Triple}.
+     * @return the nodes reifying {@code triple}, or {@code null} if the graph
+     * is not indexed.
+     */
+    Set<Node> nodesOf(final Triple triple) {
+        load();
+        synchronized (this) {
+            if (nodes == null) {
+                return null;
+            }
+            final Set<Node> result = nodes.get(triple);
+            return result == null ? Collections.<Node>emptySet() : new HashSet<Node>(result);
+        }
+    }
+
+    /**
+     * @param node a concrete {@link Node}.
+     * @return the reification triples of {@code node}, or {@code null} if
+     * the graph is not indexed.
+     */
+    List<Triple> fragmentsOf(final Node node) {
+        load();
+        synchronized (this) {
+            if (fragments == null) {
+                return null;
+            }
+            final Fragments f = fragments.get(node);
+            return f == null ? Collections.<Triple>emptyList() : f.triples(node);
+        }
+    }
+
+    /**
+     * @return every reifier node, once for each triple it reifies, or
+     * {@code null} if the graph is not indexed.
+     */
+    List<Node> allNodes() {
+        load();
+        synchronized (this) {
+            if (nodes == null) {
+                return null;
+            }
+            final List<Node> result = new ArrayList<Node>();
+            for (final Set<Node> reifiers : nodes.values()) {
+                result.addAll(reifiers);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Scan the graph, unless that has been done. The scan runs outside the
+     * lock and is dropped if the graph changed meanwhile; the next lookup
+     * tries again.
+     */
+    private void load() {
+        final long start;
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            start = version;
+        }
+        final Map<Node, Fragments> scanned = new HashMap<Node, Fragments>();
+        final boolean fits = scan(scanned, RDF_TYPE, STATEMENT) && scan(scanned, SUBJECT, Node.ANY) && scan(scanned, PREDICATE, Node.ANY) && scan(scanned, OBJECT, Node.ANY);
+        synchronized (this) {
+            if (loaded || version != start) {
+                return;
+            }
+            loaded = true;
+            if (fits) {
+                fragments = scanned;
+                nodes = new HashMap<Triple, Set<Node>>();
+                for (final Map.Entry<Node, Fragments> e : fragments.entrySet()) {
+                    addCombinations(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code false} if the scan found more than {@link #maxNodes}
+     * reifier nodes.
+     */
+    private boolean scan(final Map<Node, Fragments> scanned, final Node p, final Node o) {
+        final ExtendedIterator<Triple> it = graph.find(Node.ANY, p, o);
+        try {
+            while (it.hasNext()) {
+                final Triple t = it.next();
+                Fragments f = scanned.get(t.getSubject());
+                if (f == null) {
+                    if (scanned.size() >= maxNodes) {
+                        return false;
+                    }
+                    f = new Fragments();
+                    scanned.put(t.getSubject(), f);
+                }
+                f.add(t);
+            }
+            return true;
+        } finally {
+            it.close();
+        }
+    }
+
+    private static boolean isReification(final Triple t) {
+        final Node p = t.getPredicate();
+        return p.equals(SUBJECT) || p.equals(PREDICATE) || p.equals(OBJECT) || p.equals(RDF_TYPE) && t.getObject().equals(STATEMENT);
+    }
+
+    private synchronized void changed(final Triple t, final boolean added) {
+        if (!isReification(t)) {
+            return;
+        }
+        version += 1;
+        if (fragments == null) {
+            cache.remove(t.getSubject());
+            return;
+        }
+        final Node node = t.getSubject();
+        Fragments f = fragments.get(node);
+        if (f == null) {
+            if (!added) {
+                return;
+            }
+            if (fragments.size() >= maxNodes) {
+                // Too many reifications to index now; fall back to caching.
+                fragments = null;
+                nodes = null;
+                cache.clear();
+                return;
+            }
+            f = new Fragments();
+            fragments.put(node, f);
+        }
+        removeCombinations(node, f);
+        if (added) {
+            f.add(t);
+        } else {
+            f.remove(t);
+        }
+        if (f.isEmpty()) {
+            fragments.remove(node);
+        } else {
+            addCombinations(node, f);
+        }
+    }
+
+    private void addCombinations(final Node node, final Fragments f) {
+        for (final Triple t : f.combinations()) {
+            Set<Node> reifiers = nodes.get(t);
+            if (reifiers == null) {
+                reifiers = new HashSet<Node>(2);
+                nodes.put(t, reifiers);
+            }
+            reifiers.add(node);
+        }
+    }
+
+    private void removeCombinations(final Node node, final Fragments f) {
+        for (final Triple t : f.combinations()) {
+            final Set<Node> reifiers = nodes.get(t);
+            if (reifiers != null) {
+                reifiers.remove(node);
+                if (reifiers.isEmpty()) {
+                    nodes.remove(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget everything, so that the next lookup scans the graph again; used
+     * for changes too coarse to follow.
+     */
+    private void reset() {
+        version += 1;
+        loaded = false;
+        fragments = null;
+        nodes = null;
+        cache.clear();
+    }
+
+    @Override
+    public void notifyAddTriple(final Graph g, final Triple t) {
+        changed(t, true);
+    }
+
+    @Override
+    public void notifyAddArray(final Graph g, final Triple[] triples) {
+        for (final Triple t : triples) {
+            changed(t, true);
+        }
+    }
+
+    @Override
+    public void notifyAddList(final Graph g, final List<Triple> triples) {
+        for (final Triple t : triples) {
+            changed(t, true);
+        }
+    }
+
+    @Override
+    public void notifyAddIterator(final Graph g, final Iterator<Triple> it) {
+        while (it.hasNext()) {
+            changed(it.next(), true);
+        }
+    }
+
+    @Override
+    public synchronized void notifyAddGraph(final Graph g, final Graph added) {
+        reset();
+    }
+
+    @Override
+    public void notifyDeleteTriple(final Graph g, final Triple t) {
+        changed(t, false);
+    }
+
+    @Override
+    public void notifyDeleteList(final Graph g, final List<Triple> triples) {
+        for (final Triple t : triples) {
+            changed(t, false);
+        }
+    }
+
+    @Override
+    public void notifyDeleteArray(final Graph g, final Triple[] triples) {
+        for (final Triple t : triples) {
+            changed(t, false);
+        }
+    }
+
+    @Override
+    public void notifyDeleteIterator(final Graph g, final Iterator<Triple> it) {
+        while (it.hasNext()) {
+            changed(it.next(), false);
+        }
+    }
+
+    @Override
+    public synchronized void notifyDeleteGraph(final Graph g, final Graph removed) {
+        reset();
+    }
+
+    @Override
+    public synchronized void notifyEvent(final Graph source, final Object value) {
+        reset();
+    }
+
+    /**
+     * The reification triples of one node.
+     */
+    private static final class Fragments {
+        private boolean typed = false;
+        private final Set<Node> subjects = new HashSet<Node>(2);
+        private final Set<Node> predicates = new HashSet<Node>(2);
+        private final Set<Node> objects = new HashSet<Node>(2);
+
+        void add(final Triple t) {
+            final Node p = t.getPredicate();
+            if (p.equals(SUBJECT)) {
+                subjects.add(t.getObject());
+            } else if (p.equals(PREDICATE)) {
+                predicates.add(t.getObject());
+            } else if (p.equals(OBJECT)) {
+                objects.add(t.getObject());
+            } else {
+                typed = true;
+            }
+        }
+
+        void remove(final Triple t) {
+            final Node p = t.getPredicate();
+            if (p.equals(SUBJECT)) {
+                subjects.remove(t.getObject());
+            } else if (p.equals(PREDICATE)) {
+                predicates.remove(t.getObject());
+            } else if (p.equals(OBJECT)) {
+                objects.remove(t.getObject());
+            } else {
+                typed = false;
+            }
+        }
+
+        boolean isEmpty() {
+            return !typed && subjects.isEmpty() && predicates.isEmpty() && objects.isEmpty();
+        }
+
+        /**
+         * @return the triple, if the node has the type and exactly one of
+         * each fragment; otherwise {@code null}.
+         */
+        Triple triple() {
+            if (!typed || subjects.size() != 1 || predicates.size() != 1 || objects.size() != 1) {
+                return null;
+            }
+            return Triple.create(subjects.iterator().next(), predicates.iterator().next(), objects.iterator().next());
+        }
+
+        /**
+         * @return the reification triples of {@code node}.
+         */
+        List<Triple> triples(final Node node) {
+            final List<Triple> result = new ArrayList<Triple>(4);
+            if (typed) {
+                result.add(Triple.create(node, RDF_TYPE, STATEMENT));
+            }
+            for (final Node s : subjects) {
+                result.add(Triple.create(node, SUBJECT, s));
+            }
+            for (final Node p : predicates) {
+                result.add(Triple.create(node, PREDICATE, p));
+            }
+            for (final Node o : objects) {
+                result.add(Triple.create(node, OBJECT, o));
+            }
+            return result;
+        }
+
+        /**
+         * @return every triple the reification query matches for the node.
+         */
+        List<Triple> combinations() {
+            if (!typed) {
+                return Collections.emptyList();
+            }
+            final List<Triple> result = new ArrayList<Triple>(1);
+            for (final Node s : subjects) {
+                for (final Node p : predicates) {
+                    for (final Node o : objects) {
+                        result.add(Triple.create(s, p, o));
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -18,14 +18,18 @@
  */
 package org.apache.rya.jena.legacy.sparql.core;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
+import org.apache.jena.JenaRuntime;
 import org.apache.jena.atlas.iterator.Filter;
 import org.apache.jena.atlas.iterator.Iter;
 import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
@@ -59,6 +63,18 @@ import org.apache.rya.jena.legacy.shared.ReificationStyle;
  * appear in the underlying graph for storing all triples).
  */
 public class Reifier2 implements Reifier {
+    /**
+     * Whether reifiers keep a {@link ReificationIndex} of their graph; taken
+     * from the system property {@code jena.legacy.reifier.index} ("no").
+     */
+    public static boolean indexReifications = JenaRuntime.getSystemProperty("jena.legacy.reifier.index", "no").equals("yes");
+
+    /**
+     * The most reifier nodes an index holds; taken from the system property
+     * {@code jena.legacy.reifier.index.maxnodes} (100000).
+     */
+    public static int indexMaxNodes = Integer.parseInt(JenaRuntime.getSystemProperty("jena.legacy.reifier.index.maxnodes", "100000"));
+
     private static final String QS = "PREFIX rdf: <" + RDF.getURI() + ">\n" +
             "SELECT * \n" +
             "{ ?x rdf:type rdf:Statement; rdf:subject ?S; rdf:predicate ?P; rdf:object ?O }";
@@ -78,15 +94,28 @@ public class Reifier2 implements Reifier {
     private final Graph graph;
     private final DatasetGraph ds;
     private final QueryEngineFactory factory;
+    private final ReificationIndex index;
 
     /**
-     * Creates a new instance of {@link Reifier2}.
+     * Creates a new instance of {@link Reifier2}, indexed if
+     * {@link #indexReifications} is set.
      * @param graph the {@link Graph}.
      */
     public Reifier2(final Graph graph) {
+        this(graph, indexReifications);
+    }
+
+    /**
+     * Creates a new instance of {@link Reifier2}.
+     * @param graph the {@link Graph}.
+     * @param indexed whether lookups are answered from a
+     * {@link ReificationIndex} of the graph instead of by queries.
+     */
+    public Reifier2(final Graph graph, final boolean indexed) {
         this.graph = graph;
         this.ds = DatasetGraphFactory.createOneGraph(graph);
         this.factory = QueryEngineRegistry.findFactory(OP, ds, null);
+        this.index = indexed ? new ReificationIndex(graph, this, indexMaxNodes) : null;
     }
 
     @Override
@@ -128,12 +157,18 @@ public class Reifier2 implements Reifier {
 
     @Override
     public ExtendedIterator<Node> allNodes(final Triple triple) {
+        if (index != null && (triple == null || triple.isConcrete())) {
+            final List<Node> nodes = triple == null ? index.allNodes() : asList(index.nodesOf(triple));
+            if (nodes != null) {
+                return WrappedIterator.createNoRemove(nodes.iterator());
+            }
+        }
         final QueryIterator qIter = nodesReifTriple((Node)null, triple);
         return new MapperToNode(qIter, REIF_NODE_VAR);
     }
 
     private QueryIterator nodesReifTriple(Node node, final Triple triple) {
-        final Binding b = BindingRoot.create();
+        Binding b = BindingRoot.create();
 
         if (node == Node.ANY) {
             node = null;
@@ -149,6 +184,7 @@ public class Reifier2 implements Reifier {
                 bind(bhm, VAR_P, triple.getMatchPredicate());
                 bind(bhm, VAR_O, triple.getMatchObject());
             }
+            b = bhm;
         }
 
         final Plan plan = factory.create(OP, ds, b, null);
@@ -163,8 +199,15 @@ public class Reifier2 implements Reifier {
         b.add(var, node);
     }
 
+    private static List<Node> asList(final Set<Node> nodes) {
+        return nodes == null ? null : new ArrayList<Node>(nodes);
+    }
+
     @Override
     public void close() {
+        if (index != null) {
+            index.close();
+        }
     }
 
     private static class MapperToTriple extends NiceIterator<Triple> {
@@ -261,6 +304,12 @@ public class Reifier2 implements Reifier {
 
     @Override
     public boolean hasTriple(final Triple triple) {
+        if (index != null && triple.isConcrete()) {
+            final Set<Node> nodes = index.nodesOf(triple);
+            if (nodes != null) {
+                return nodes.size() == 1 && index.getTriple(nodes.iterator().next()) != null;
+            }
+        }
         final QueryIterator qIter = nodesReifTriple(null, triple);
         try {
             if (! qIter.hasNext()) {
@@ -281,10 +330,13 @@ public class Reifier2 implements Reifier {
 
     @Override
     public Node reifyAs(Node node, final Triple triple) {
+        final List<Triple> existing;
         if (node == null) {
             node = NodeFactory.createBlankNode();
+            existing = Collections.emptyList();
         } else {
-            final Triple t = getTriple(node);
+            existing = fragmentsOf(node);
+            final Triple t = reifiedBy(existing);
 
             if (t != null && ! t.equals(triple)) {
                 throw new AlreadyReifiedException(node);
@@ -295,45 +347,122 @@ public class Reifier2 implements Reifier {
             }
         }
 
-        graph.add(new Triple(node, RDF_TYPE, STATEMENT));
-        graph.add(new Triple(node, SUBJECT, triple.getSubject()));
-        graph.add(new Triple(node, PREDICATE, triple.getPredicate()));
-        graph.add(new Triple(node, OBJECT, triple.getObject()));
+        final List<Triple> batch = new ArrayList<Triple>(4);
+        for (final Triple t : new Triple[] {
+                new Triple(node, RDF_TYPE, STATEMENT),
+                new Triple(node, SUBJECT, triple.getSubject()),
+                new Triple(node, PREDICATE, triple.getPredicate()),
+                new Triple(node, OBJECT, triple.getObject())}) {
+            if (!existing.contains(t)) {
+                batch.add(t);
+            }
+        }
 
-        // Check it's a well-formed reification by Jena's uniqueness rules
-        final Triple t = getTriple(node);
-        if (t == null) {
+        // Check it's a well-formed reification by Jena's uniqueness rules,
+        // against what the node will hold once the batch is written.
+        final List<Triple> written = new ArrayList<Triple>(existing);
+        written.addAll(batch);
+        if (reifiedBy(written) == null) {
             throw new CannotReifyException(node);
         }
+        GraphUtil.add(graph, batch);
         return node;
     }
 
+    /**
+     * @return the reification triples of {@code node}: from the index if
+     * there is one, else by one {@code find} on the node.
+     */
+    private List<Triple> fragmentsOf(final Node node) {
+        if (index != null) {
+            final List<Triple> fragments = index.fragmentsOf(node);
+            if (fragments != null) {
+                return fragments;
+            }
+        }
+        final List<Triple> fragments = new ArrayList<Triple>(4);
+        final ExtendedIterator<Triple> iter = graph.find(node, Node.ANY, Node.ANY);
+        try {
+            while (iter.hasNext()) {
+                final Triple t = iter.next();
+                if (filterReif.test(t)) {
+                    fragments.add(t);
+                }
+            }
+        } finally {
+            iter.close();
+        }
+        return fragments;
+    }
+
+    /**
+     * @return the triple reified by {@code fragments}, the reification
+     * triples of one node, as the reification query would find it: the
+     * node must be an {@code rdf:Statement} with one subject, predicate and
+     * object. Otherwise {@code null}.
+     */
+    private static Triple reifiedBy(final List<Triple> fragments) {
+        boolean typed = false;
+        Node s = null;
+        Node p = null;
+        Node o = null;
+        for (final Triple t : fragments) {
+            final Node predicate = t.getPredicate();
+            final Node value = t.getObject();
+            if (predicate.equals(SUBJECT)) {
+                if (s != null) {
+                    return null;
+                }
+                s = value;
+            } else if (predicate.equals(PREDICATE)) {
+                if (p != null) {
+                    return null;
+                }
+                p = value;
+            } else if (predicate.equals(OBJECT)) {
+                if (o != null) {
+                    return null;
+                }
+                o = value;
+            } else {
+                typed = true;
+            }
+        }
+        return typed && s != null && p != null && o != null ? new Triple(s, p, o) : null;
+    }
+
     @Override
     public void remove(final Triple triple) {
         remove(null, triple);
     }
 
     @Override
-    public void remove(Node node, final Triple triple) {
-        if (node == null) {
-            node = Node.ANY;
+    public void remove(final Node node, final Triple triple) {
+        final Collection<Node> nodes;
+        if (node == null || node == Node.ANY) {
+            nodes = allNodes(triple).toSet();
+        } else {
+            nodes = Collections.singleton(node);
         }
 
-        //QueryIterator qIter = nodesReifTriple(node, triple);
-        final Set<Triple> triples = new HashSet<Triple>();
-        triplesToZap(triples, node, RDF_TYPE, STATEMENT);
-        triplesToZap(triples, node, SUBJECT, triple.getSubject());
-        triplesToZap(triples, node, PREDICATE, triple.getPredicate());
-        triplesToZap(triples, node, OBJECT, triple.getObject());
-        for (final Triple t : triples) {
-            graph.delete(t);
+        final Triple[] patterns = {
+            new Triple(Node.ANY, RDF_TYPE, STATEMENT),
+            new Triple(Node.ANY, SUBJECT, triple.getSubject()),
+            new Triple(Node.ANY, PREDICATE, triple.getPredicate()),
+            new Triple(Node.ANY, OBJECT, triple.getObject())};
+        final List<Triple> triples = new ArrayList<Triple>();
+        for (final Node n : nodes) {
+            for (final Triple t : fragmentsOf(n)) {
+                for (final Triple pattern : patterns) {
+                    if (pattern.matches(t)) {
+                        triples.add(t);
+                        break;
+                    }
+                }
+            }
         }
-    }
-
-    private void triplesToZap(final Collection<Triple> acc, final Node s, final Node p , final Node o) {
-        final ExtendedIterator<Triple> iter = graph.find(s, p, o);
-        while(iter.hasNext()) {
-            acc.add(iter.next());
+        if (!triples.isEmpty()) {
+            GraphUtil.delete(graph, triples);
         }
     }
 
@@ -344,6 +473,16 @@ public class Reifier2 implements Reifier {
 
     @Override
     public Triple getTriple(final Node node) {
+        if (index != null && node != null && node.isConcrete()) {
+            return index.getTriple(node);
+        }
+        return queryTriple(node);
+    }
+
+    /**
+     * @return the triple {@code node} reifies, asked of the graph.
+     */
+    Triple queryTriple(final Node node) {
         final QueryIterator qIter = nodesReifTriple(node, null);
         try {
             if (!qIter.hasNext()) {
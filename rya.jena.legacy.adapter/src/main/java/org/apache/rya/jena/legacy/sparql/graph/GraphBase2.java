@@ -28,7 +28,6 @@ import org.apache.jena.graph.TransactionHandler;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.graph.impl.AllCapabilities;
 import org.apache.jena.graph.impl.GraphBase;
-import org.apache.jena.graph.impl.GraphMatcher;
 import org.apache.jena.graph.impl.GraphWithPerform;
 import org.apache.jena.graph.impl.SimpleEventManager;
 import org.apache.jena.graph.impl.SimpleTransactionHandler;
@@ -42,6 +41,7 @@ import org.apache.rya.jena.legacy.graph.BulkUpdateHandler;
 import org.apache.rya.jena.legacy.graph.Reifier;
 import org.apache.rya.jena.legacy.graph.impl.SimpleBulkUpdateHandler;
 import org.apache.rya.jena.legacy.graph.query.QueryHandler;
+import org.apache.rya.jena.legacy.graph.query.SimpleQueryHandler;
 import org.apache.rya.jena.legacy.sparql.core.Reifier2;
 
 /**
@@ -99,7 +99,12 @@ public abstract class GraphBase2 implements GraphWithPerform {
      * returns the same SimpleQueryHandler each time it is called; sub-classes
      * may override if they need specialized query handlers.
      */
-    public abstract QueryHandler queryHandler();
+    public QueryHandler queryHandler() {
+        if (queryHandler == null) {
+            queryHandler = new SimpleQueryHandler(this);
+        }
+        return queryHandler;
+    }
 
     /**
      * The query handler for this graph, or null if queryHandler() has not been
@@ -415,13 +420,15 @@ public abstract class GraphBase2 implements GraphWithPerform {
     }
 
     /**
-     * @return {@code true} if this graph is isomorphic to {@code g} according to
-     * the algorithm (indeed, method) in {@code GraphMatcher}.
+     * @return {@code true} if this graph is isomorphic to {@code g}. Sizes and
+     * canonical hashes are compared first, streaming both graphs; the
+     * algorithm in {@code GraphMatcher} is only run when blank nodes leave the
+     * hashes ambiguous (see {@link GraphIsomorphism}).
      */
     @Override
     public boolean isIsomorphicWith(final Graph g) {
         checkOpen();
-        return g != null && GraphMatcher.equals(this, g);
+        return g != null && GraphIsomorphism.isIsomorphic(this, g);
     }
 
     /**
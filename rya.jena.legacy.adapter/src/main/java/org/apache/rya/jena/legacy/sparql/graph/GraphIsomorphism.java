@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.legacy.sparql.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphMatcher;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Isomorphism testing for graphs too big for {@link GraphMatcher} to load
+ * and match outright.
+ * <p>
+ * Each graph is read once, as a stream, into a canonical hash: the sum of
+ * 64-bit hashes of its triples, which does not depend on triple order. Only
+ * the triples with blank nodes are kept in memory. Blank nodes are hashed by
+ * colour refinement: every blank node starts with the same colour, and each
+ * round recolours it from its colour and the terms and colours of the
+ * triples it appears in, until the number of distinct colours stops
+ * growing. Colours depend only on graph structure, so isomorphic graphs get
+ * equal hashes. Graphs of different sizes or hashes are not isomorphic.
+ * <p>
+ * If the hashes are equal and every blank node has a colour of its own, the
+ * colours give the only possible mapping between the blank nodes, and the
+ * blank-node triples are checked exactly under it. The ground triples of one
+ * graph are then streamed again and looked up in the other, so equal hashes
+ * are never taken as proof. Only when some colour is shared, as in graphs
+ * with symmetric blank-node structure, is {@link GraphMatcher} run.
+ */
+public final class GraphIsomorphism {
+    private static final long GROUND = 0x2545F4914F6CDD1DL;
+    private static final long BLANK = 0x5851F42D4C957F2DL;
+    private static final long SUBJECT = 1;
+    private static final long PREDICATE = 2;
+    private static final long OBJECT = 3;
+
+    private GraphIsomorphism() {
+    }
+
+    /**
+     * @param a a {@link Graph}.
+     * @param b another {@link Graph}.
+     * @return {@code true} if {@code a} and {@code b} are isomorphic.
+     */
+    public static boolean isIsomorphic(final Graph a, final Graph b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        final CanonicalHash ha = new CanonicalHash(a);
+        final CanonicalHash hb = new CanonicalHash(b);
+        if (ha.size != hb.size || ha.blankTriples.size() != hb.blankTriples.size() || ha.groundHash != hb.groundHash || ha.blankHash != hb.blankHash || !Arrays.equals(ha.sortedColours(), hb.sortedColours())) {
+            return false;
+        }
+        if (ha.isAmbiguous()) {
+            return GraphMatcher.equals(a, b);
+        }
+        return ha.mapsOnto(hb) && containsGround(a, b);
+    }
+
+    /**
+     * @return {@code true} if every triple of {@code b} without blank nodes
+     * is in {@code a}; with equal numbers of such triples, the two sets are
+     * then equal.
+     */
+    private static boolean containsGround(final Graph a, final Graph b) {
+        final ExtendedIterator<Triple> it = b.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (it.hasNext()) {
+                final Triple t = it.next();
+                if (!(t.getSubject().isBlank() || t.getPredicate().isBlank() || t.getObject().isBlank()) && !a.contains(t)) {
+                    return false;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return true;
+    }
+
+    /**
+     * The canonical hash of one graph.
+     */
+    private static final class CanonicalHash {
+        private long size = 0;
+        private long groundHash = 0;
+        private long blankHash = 0;
+        private final List<Triple> blankTriples = new ArrayList<Triple>();
+        private Map<Node, Long> colours = new HashMap<Node, Long>();
+
+        CanonicalHash(final Graph g) {
+            final ExtendedIterator<Triple> it = g.find(Node.ANY, Node.ANY, Node.ANY);
+            try {
+                while (it.hasNext()) {
+                    final Triple t = it.next();
+                    size += 1;
+                    if (t.getSubject().isBlank() || t.getPredicate().isBlank() || t.getObject().isBlank()) {
+                        blankTriples.add(t);
+                        for (final Node n : new Node[] {t.getSubject(), t.getPredicate(), t.getObject()}) {
+                            if (n.isBlank()) {
+                                colours.put(n, Long.valueOf(BLANK));
+                            }
+                        }
+                    } else {
+                        groundHash += tripleHash(hashOf(t.getSubject()), hashOf(t.getPredicate()), hashOf(t.getObject()));
+                    }
+                }
+            } finally {
+                it.close();
+            }
+            refine();
+            for (final Triple t : blankTriples) {
+                blankHash += tripleHash(termOf(t.getSubject()), termOf(t.getPredicate()), termOf(t.getObject()));
+            }
+        }
+
+        /**
+         * Recolour the blank nodes until the number of distinct colours is
+         * stable.
+         */
+        private void refine() {
+            int distinct = 1;
+            for (int round = 0; round <= colours.size(); round += 1) {
+                final Map<Node, Long> next = new HashMap<Node, Long>(colours.size() * 2);
+                for (final Map.Entry<Node, Long> e : colours.entrySet()) {
+                    next.put(e.getKey(), Long.valueOf(mix(e.getValue().longValue())));
+                }
+                for (final Triple t : blankTriples) {
+                    final long s = termOf(t.getSubject());
+                    final long p = termOf(t.getPredicate());
+                    final long o = termOf(t.getObject());
+                    add(next, t.getSubject(), combine(combine(SUBJECT, p), o));
+                    add(next, t.getPredicate(), combine(combine(PREDICATE, s), o));
+                    add(next, t.getObject(), combine(combine(OBJECT, s), p));
+                }
+                final int nextDistinct = new HashSet<Long>(next.values()).size();
+                colours = next;
+                if (nextDistinct <= distinct) {
+                    return;
+                }
+                distinct = nextDistinct;
+            }
+        }
+
+        private static void add(final Map<Node, Long> next, final Node n, final long h) {
+            if (n.isBlank()) {
+                next.put(n, Long.valueOf(next.get(n).longValue() + mix(h)));
+            }
+        }
+
+        private long termOf(final Node n) {
+            return n.isBlank() ? colours.get(n).longValue() : hashOf(n);
+        }
+
+        long[] sortedColours() {
+            final long[] result = new long[colours.size()];
+            int i = 0;
+            for (final Long colour : colours.values()) {
+                result[i++] = colour.longValue();
+            }
+            Arrays.sort(result);
+            return result;
+        }
+
+        boolean isAmbiguous() {
+            return new HashSet<Long>(colours.values()).size() < colours.size();
+        }
+
+        /**
+         * @return {@code true} if mapping each blank node to the blank node
+         * of {@code other} with the same colour maps the blank-node triples
+         * into those of {@code other}. The colours being distinct and equal
+         * in both, the mapping is one-to-one, so with equal numbers of
+         * blank-node triples they are mapped onto those of {@code other}.
+         */
+        boolean mapsOnto(final CanonicalHash other) {
+            final Map<Long, Node> byColour = new HashMap<Long, Node>(other.colours.size() * 2);
+            for (final Map.Entry<Node, Long> e : other.colours.entrySet()) {
+                byColour.put(e.getValue(), e.getKey());
+            }
+            final Set<Triple> targets = new HashSet<Triple>(other.blankTriples);
+            for (final Triple t : blankTriples) {
+                final Triple mapped = Triple.create(map(t.getSubject(), byColour), map(t.getPredicate(), byColour), map(t.getObject(), byColour));
+                if (!targets.contains(mapped)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Node map(final Node n, final Map<Long, Node> byColour) {
+            return n.isBlank() ? byColour.get(colours.get(n)) : n;
+        }
+    }
+
+    private static long tripleHash(final long s, final long p, final long o) {
+        return mix(combine(combine(combine(GROUND, s), p), o));
+    }
+
+    /**
+     * @return a 64-bit hash of a non-blank node, from its kind and text.
+     */
+    private static long hashOf(final Node n) {
+        if (n.isURI()) {
+            return hash('U', n.getURI());
+        }
+        if (n.isLiteral()) {
+            final long lexical = hash('L', n.getLiteralLexicalForm());
+            final String lang = n.getLiteralLanguage();
+            final String datatype = n.getLiteralDatatypeURI();
+            return combine(combine(lexical, hash('@', lang == null ? "" : lang)), hash('^', datatype == null ? "" : datatype));
+        }
+        return hash('N', n.toString());
+    }
+
+    /**
+     * FNV-1a over the characters of {@code s}, after a kind marker, then
+     * mixed.
+     */
+    private static long hash(final char kind, final String s) {
+        long h = 0xCBF29CE484222325L;
+        h = (h ^ kind) * 0x100000001B3L;
+        for (int i = 0; i < s.length(); i += 1) {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    private static long combine(final long a, final long b) {
+        return mix(a * 0x9E3779B97F4A7C15L + b);
+    }
+
+    /**
+     * The SplitMix64 finaliser.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.WrappedGraph;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NullIterator;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchedApplyerTest {
+    private static final String NS = "http://example/";
+    private static final Node KNOWS = NodeFactory.createURI(NS + "knows");
+    private static final Node X = NodeFactory.createVariable("x");
+    private static final Node Y = NodeFactory.createVariable("y");
+
+    private Graph base;
+
+    @Before
+    public void setUp() {
+        base = GraphFactory.createGraphMem();
+        for (int i = 0; i < 60; i++) {
+            base.add(Triple.create(person(i), KNOWS, person(i + 1)));
+            if (i % 3 == 0) {
+                base.add(Triple.create(person(i), KNOWS, person(i + 7)));
+            }
+        }
+    }
+
+    private static Node person(final int i) {
+        return NodeFactory.createURI(NS + "person" + i);
+    }
+
+    @Test
+    public void testOneFindAnyPerBatch() {
+        final CountingGraph graph = new CountingGraph(base);
+        final Mapping map = new Mapping(new Node[0]);
+        map.newIndex(X);
+        final QueryTriple qt = QueryTriple.classify(new QueryNodeFactoryBase(), map, Triple.create(X, KNOWS, Y));
+        final Applyer applyer = qt.createApplyer(graph);
+        assertEquals(QueryTriple.BatchedApplyer.class, applyer.getClass());
+
+        final int domains = 40;
+        final List<String> batched = apply(applyer, qt, map, domains);
+        assertEquals(1, graph.findAnyCalls);
+        assertEquals(0, graph.findCalls);
+
+        final List<String> simple = apply(new QueryTriple.SimpleApplyer(base, qt), qt, map, domains);
+        assertEquals(simple.size(), batched.size());
+        assertEquals(sorted(simple), sorted(batched));
+    }
+
+    @Test
+    public void testBatchSizeSplitsLookups() {
+        final int old = QueryTriple.BatchedApplyer.batchSize;
+        QueryTriple.BatchedApplyer.batchSize = 16;
+        try {
+            final CountingGraph graph = new CountingGraph(base);
+            final Mapping map = new Mapping(new Node[0]);
+            map.newIndex(X);
+            final QueryTriple qt = QueryTriple.classify(new QueryNodeFactoryBase(), map, Triple.create(X, KNOWS, Y));
+            final List<String> batched = apply(qt.createApplyer(graph), qt, map, 40);
+            assertEquals(3, graph.findAnyCalls);
+            assertEquals(sorted(apply(new QueryTriple.SimpleApplyer(base, qt), qt, map, 40)), sorted(batched));
+        } finally {
+            QueryTriple.BatchedApplyer.batchSize = old;
+        }
+    }
+
+    /**
+     * Apply {@code applyer} to a domain binding {@code ?x} to each of the
+     * first {@code count} people, then flush it.
+     * @return the {@code ?x ?y} pairs it matched, in the order matched.
+     */
+    private static List<String> apply(final Applyer applyer, final QueryTriple qt, final Mapping map, final int count) {
+        final int x = map.indexOf(X);
+        final int y = map.indexOf(Y);
+        final List<String> result = new ArrayList<String>();
+        final StageElement collect = new StageElement() {
+            @Override
+            public void run(final Domain current) {
+                result.add(current.getElement(x) + " " + current.getElement(y));
+            }
+        };
+        final Matcher matcher = qt.createMatcher();
+        final Domain d = new Domain(map.size());
+        for (int i = 0; i < count; i++) {
+            d.setElement(x, person(i));
+            applyer.applyToTriples(d, matcher, collect);
+        }
+        applyer.flush();
+        return result;
+    }
+
+    private static List<String> sorted(final List<String> values) {
+        final List<String> result = new ArrayList<String>(values);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * A {@link MultiFind} graph that answers a batch with one find per
+     * pattern, counting the calls it gets.
+     */
+    private static final class CountingGraph extends WrappedGraph implements MultiFind {
+        int findCalls;
+        int findAnyCalls;
+
+        CountingGraph(final Graph base) {
+            super(base);
+        }
+
+        @Override
+        public ExtendedIterator<Triple> find(final Node s, final Node p, final Node o) {
+            findCalls += 1;
+            return super.find(s, p, o);
+        }
+
+        @Override
+        public ExtendedIterator<Triple> findAny(final List<Triple> patterns) {
+            findAnyCalls += 1;
+            ExtendedIterator<Triple> result = NullIterator.instance();
+            for (final Triple pattern : patterns) {
+                result = result.andThen(base.find(pattern));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.rya.jena.legacy.graph.query.BufferPipe.PipeCancelledException;
+import org.apache.rya.jena.legacy.shared.QueryStageException;
+import org.junit.Test;
+
+public class BatchedBufferPipeTest {
+    private static Domain domain(final int i) {
+        return new Domain(new Node[] {NodeFactory.createURI("http://example/" + i)});
+    }
+
+    private static int valueOf(final Domain d) {
+        final String uri = d.getElement(0).getURI();
+        return Integer.parseInt(uri.substring(uri.lastIndexOf('/') + 1));
+    }
+
+    @Test(timeout = 30000)
+    public void testChunksKeepOrderAndGrowForASlowConsumer() throws Exception {
+        final BatchedBufferPipe pipe = new BatchedBufferPipe(64);
+        final int count = 5000;
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i += 1) {
+                    pipe.put(domain(i));
+                }
+                pipe.close();
+            }
+        });
+        producer.start();
+        // Let the producer fill the queue, so that it batches more.
+        Thread.sleep(200);
+        int expected = 0;
+        while (pipe.hasNext()) {
+            assertEquals(expected, valueOf(pipe.get()));
+            expected += 1;
+        }
+        producer.join();
+        assertEquals(count, expected);
+        assertTrue(pipe.getChunkSize() > 1);
+    }
+
+    @Test(timeout = 30000)
+    public void testPartChunkReachesAWaitingConsumer() throws Exception {
+        final BatchedBufferPipe pipe = new BatchedBufferPipe();
+        final CountDownLatch full = new CountDownLatch(1);
+        final CountDownLatch kept = new CountDownLatch(1);
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // The queue holds five chunks; the sixth put waits for
+                    // the consumer and doubles the chunk size, so the
+                    // seventh domain is kept back in a part-filled chunk.
+                    for (int i = 0; i < 5; i += 1) {
+                        pipe.put(domain(i));
+                    }
+                    full.countDown();
+                    pipe.put(domain(5));
+                    pipe.put(domain(6));
+                    kept.countDown();
+                    // An upstream stage that has nothing more for a while.
+                    stalled.await();
+                    pipe.close();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+        full.await();
+        while (producer.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, valueOf(pipe.get()));
+        kept.await();
+        for (int i = 1; i < 7; i += 1) {
+            assertEquals(i, valueOf(pipe.get()));
+        }
+        stalled.countDown();
+        assertFalse(pipe.hasNext());
+        producer.join();
+    }
+
+    @Test
+    public void testClose() {
+        final BatchedBufferPipe pipe = new BatchedBufferPipe();
+        pipe.put(domain(1));
+        pipe.put(domain(2));
+        pipe.close();
+        assertEquals(1, valueOf(pipe.get()));
+        assertEquals(2, valueOf(pipe.get()));
+        assertFalse(pipe.hasNext());
+        try {
+            pipe.get();
+            fail("get after the end");
+        } catch (final NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseWithExceptionReachesTheConsumer() {
+        final BatchedBufferPipe pipe = new BatchedBufferPipe();
+        final IllegalStateException failure = new IllegalStateException("failed");
+        pipe.put(domain(1));
+        pipe.close(failure);
+        assertEquals(1, valueOf(pipe.get()));
+        try {
+            pipe.hasNext();
+            fail("the exception should be rethrown");
+        } catch (final QueryStageException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testCancel() {
+        final BatchedBufferPipe pipe = new BatchedBufferPipe();
+        pipe.put(domain(1));
+        pipe.cancel();
+        assertFalse(pipe.hasNext());
+        try {
+            pipe.put(domain(2));
+            fail("put after cancel");
+        } catch (final PipeCancelledException e) {
+            // expected
+        }
+    }
+}
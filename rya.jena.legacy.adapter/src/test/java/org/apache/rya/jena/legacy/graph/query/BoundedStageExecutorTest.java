@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.rya.jena.legacy.graph.query.BoundedStageExecutor.RejectionPolicy;
+import org.apache.rya.jena.legacy.shared.QueryStageException;
+import org.junit.After;
+import org.junit.Test;
+
+public class BoundedStageExecutorTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private BoundedStageExecutor executor;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A stage that only records the pipes it reads from.
+     */
+    private static final class RecordingStage extends Stage {
+        @Override
+        public Pipe deliver(final Pipe sink) {
+            return sink;
+        }
+    }
+
+    /**
+     * Take the executor's only thread until the test ends.
+     */
+    private void occupy(final Stage stage) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.execute(stage, new BufferPipe(), new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAbortFailsTheSinkAndCancelsTheSources() throws Exception {
+        executor = new BoundedStageExecutor(1, 0, RejectionPolicy.ABORT);
+        final RecordingStage stage = new RecordingStage();
+        occupy(stage);
+
+        final Pipe source = stage.cancelledOnClose(new BufferPipe());
+        final Pipe sink = new BufferPipe();
+        final boolean[] ran = {false};
+        executor.execute(stage, sink, new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        });
+
+        try {
+            sink.hasNext();
+            fail("the rejection should reach the consumer");
+        } catch (final QueryStageException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertFalse(source.hasNext());
+        assertFalse(ran[0]);
+        final BoundedStageExecutor.StageMetrics metrics = executor.getMetrics().get(RecordingStage.class.getSimpleName());
+        assertEquals(2, metrics.getSubmitted());
+        assertEquals(1, metrics.getRejected());
+        assertEquals(0, metrics.getSpawned());
+    }
+
+    @Test
+    public void testRejectedOptionalWorkIsLeftToTheStage() throws Exception {
+        for (final RejectionPolicy policy : RejectionPolicy.values()) {
+            executor = new BoundedStageExecutor(1, 0, policy);
+            final RecordingStage stage = new RecordingStage();
+            occupy(stage);
+
+            final Pipe source = stage.cancelledOnClose(new BufferPipe());
+            source.put(new Domain(0));
+            final boolean[] ran = {false};
+            assertFalse(executor.tryExecute(stage, new Runnable() {
+                @Override
+                public void run() {
+                    ran[0] = true;
+                }
+            }));
+
+            assertTrue(policy.name(), source.hasNext());
+            assertFalse(policy.name(), ran[0]);
+            final BoundedStageExecutor.StageMetrics metrics = executor.getMetrics().get(RecordingStage.class.getSimpleName());
+            assertEquals(policy.name(), 1, metrics.getRejected());
+            assertEquals(policy.name(), 0, metrics.getSpawned());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSpawnRunsRejectedWorkOnAThreadOfItsOwn() throws Exception {
+        executor = new BoundedStageExecutor(1, 0, RejectionPolicy.SPAWN);
+        final RecordingStage stage = new RecordingStage();
+        occupy(stage);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(stage, new BufferPipe(), new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        final BoundedStageExecutor.StageMetrics metrics = executor.getMetrics().get(RecordingStage.class.getSimpleName());
+        assertEquals(1, metrics.getRejected());
+        assertEquals(1, metrics.getSpawned());
+        assertEquals(1, executor.getPoolSize());
+    }
+
+    @Test
+    public void testQueuedWorkWaitsForAThread() throws Exception {
+        executor = new BoundedStageExecutor(1, 1, RejectionPolicy.ABORT);
+        final RecordingStage stage = new RecordingStage();
+        occupy(stage);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(stage, new BufferPipe(), new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertEquals(1, executor.getQueueSize());
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertEquals(0, executor.getMetrics().get(RecordingStage.class.getSimpleName()).getRejected());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.KNOWS;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.people;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.var;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.graph.GraphWrapper;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.junit.Test;
+
+public class CancelOnCloseTest {
+    private static final Node[] RESULTS = {var("x"), var("y"), var("z"), var("w")};
+
+    /**
+     * @return {@code ?x knows ?y . ?y knows ?z . ?z knows ?w}, which has
+     * eight rows for every person.
+     */
+    private static GraphQuery chain(final ExecutionMode mode) {
+        return new GraphQuery()
+            .addMatch(var("x"), KNOWS, var("y"))
+            .addMatch(var("y"), KNOWS, var("z"))
+            .addMatch(var("z"), KNOWS, var("w"))
+            .setExecutionMode(mode);
+    }
+
+    @Test
+    public void testCloseAfterFirstRowStopsTheQuery() throws InterruptedException {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            final CountingGraph graph = new CountingGraph(people(3000));
+            final ExtendedIterator<Domain> it = chain(mode).executeBindings(graph, RESULTS);
+            assertTrue(it.hasNext());
+            it.next();
+            it.close();
+            // Every graph iterator the query opened is closed soon after.
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (graph.closed.get() < graph.opened.get() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(graph.opened.get() > 0);
+            assertEquals(mode.name(), graph.opened.get(), graph.closed.get());
+            // Draining would read 42000 triples: 6000, then 2 per row twice.
+            final int read = graph.read.get();
+            assertTrue(mode.name() + " read " + read, read < 10000);
+            Thread.sleep(100);
+            assertEquals(mode.name() + " kept reading", read, graph.read.get());
+        }
+    }
+
+    @Test
+    public void testReadingToTheEndStillAnswersEverything() {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            final CountingGraph graph = new CountingGraph(people(300));
+            assertEquals(mode.name(), 2400, QueryFixtures.rows(chain(mode).executeBindings(graph, RESULTS), RESULTS.length).size());
+            assertEquals(mode.name(), graph.opened.get(), graph.closed.get());
+        }
+    }
+
+    /**
+     * A graph that counts the iterators it opens and closes and the triples
+     * read from them.
+     */
+    private static final class CountingGraph extends GraphWrapper {
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final AtomicInteger read = new AtomicInteger();
+
+        CountingGraph(final Graph base) {
+            super(base);
+        }
+
+        @Override
+        public ExtendedIterator<Triple> find(final Triple pattern) {
+            return counted(super.find(pattern));
+        }
+
+        @Override
+        public ExtendedIterator<Triple> find(final Node s, final Node p, final Node o) {
+            return counted(super.find(s, p, o));
+        }
+
+        private ExtendedIterator<Triple> counted(final ExtendedIterator<Triple> base) {
+            opened.incrementAndGet();
+            return new NiceIterator<Triple>() {
+                private boolean done = false;
+
+                @Override
+                public boolean hasNext() {
+                    return base.hasNext();
+                }
+
+                @Override
+                public Triple next() {
+                    read.incrementAndGet();
+                    return base.next();
+                }
+
+                @Override
+                public void close() {
+                    if (!done) {
+                        done = true;
+                        closed.incrementAndGet();
+                    }
+                    base.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.KNOWS;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.people;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.person;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.rows;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.var;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.junit.Test;
+
+public class CompiledQueryPlanTest {
+    private static final Node[] RESULTS = {var("x"), var("y"), var("z")};
+
+    private final Graph graph = people(20);
+
+    private static GraphQuery friendsOfFriends(final ExecutionMode mode) {
+        return new GraphQuery()
+            .addMatch(var("x"), KNOWS, var("y"))
+            .addMatch(var("y"), KNOWS, var("z"))
+            .setExecutionMode(mode);
+    }
+
+    @Test
+    public void testPlanWithoutParametersRunsRepeatedly() {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            final List<String> expected = rows(friendsOfFriends(mode).executeBindings(graph, RESULTS), RESULTS.length);
+            final CompiledQueryPlan plan = friendsOfFriends(mode).compile(graph, RESULTS);
+            assertEquals(0, plan.getParameterCount());
+            assertEquals(mode.name(), expected, rows(plan.executeBindings(), RESULTS.length));
+            assertEquals(mode.name(), expected, rows(plan.executeBindings(new Node[0]), RESULTS.length));
+        }
+    }
+
+    @Test
+    public void testParametersSelectTheirRows() {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            final List<String> all = rows(friendsOfFriends(mode).executeBindings(graph, RESULTS), RESULTS.length);
+            final CompiledQueryPlan plan = friendsOfFriends(mode).compile(graph, RESULTS, var("x"));
+            assertEquals(1, plan.getParameterCount());
+            final List<String> union = new ArrayList<String>();
+            for (int i = 0; i < 20; i += 1) {
+                final List<String> some = rows(plan.executeBindings(person(i)), RESULTS.length);
+                assertEquals(mode.name(), 4, some.size());
+                for (final String row : some) {
+                    assertEquals(row, "[" + person(i), row.substring(0, row.indexOf(',')));
+                }
+                union.addAll(some);
+            }
+            Collections.sort(union);
+            assertEquals(mode.name(), all, union);
+        }
+    }
+
+    @Test
+    public void testMissingParametersAreRejected() {
+        final CompiledQueryPlan plan = friendsOfFriends(ExecutionMode.DEFAULT).compile(graph, RESULTS, var("x"), var("z"));
+        assertRejected(plan);
+        assertRejected(plan, person(0));
+        assertRejected(plan, person(0), null);
+        assertRejected(plan, null, person(2));
+        assertEquals(1, rows(plan.executeBindings(person(0), person(2)), RESULTS.length).size());
+    }
+
+    private static void assertRejected(final CompiledQueryPlan plan, final Node... parameters) {
+        try {
+            if (parameters.length == 0) {
+                plan.executeBindings().close();
+            } else {
+                plan.executeBindings(parameters).close();
+            }
+            fail("executed with " + parameters.length + " parameters");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.AGE;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.KNOWS;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.PERSON;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.TYPE;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.people;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.person;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.var;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.junit.Test;
+
+public class CostBasedTripleSorterTest {
+    private static final Triple X_KNOWS_Y = Triple.create(var("x"), KNOWS, var("y"));
+    private static final Triple Y_KNOWS_Z = Triple.create(var("y"), KNOWS, var("z"));
+    private static final Triple X_AGE_A = Triple.create(var("x"), AGE, var("a"));
+    private static final Triple X_IS_PERSON = Triple.create(var("x"), TYPE, PERSON);
+    private static final Triple Z_IS_PERSON = Triple.create(var("z"), TYPE, PERSON);
+
+    private final Graph graph = people(30);
+
+    @Test
+    public void testSelectivePatternGoesFirstWithoutStatistics() {
+        final Triple[] sorted = new CostBasedTripleSorter().sort(new Triple[] {X_KNOWS_Y, X_IS_PERSON});
+        assertArrayEquals(new Triple[] {X_IS_PERSON, X_KNOWS_Y}, sorted);
+    }
+
+    @Test
+    public void testStatisticsOrderPatternsByMatches() {
+        // 10 typed people, 30 ages and 60 acquaintances.
+        final Triple[] sorted = new CostBasedTripleSorter().sort(graph, new Triple[] {X_KNOWS_Y, X_AGE_A, X_IS_PERSON});
+        assertArrayEquals(new Triple[] {X_IS_PERSON, X_AGE_A, X_KNOWS_Y}, sorted);
+    }
+
+    @Test
+    public void testVariablesBoundEarlierMakePatternSelective() {
+        final Triple[] patterns = {Z_IS_PERSON, Y_KNOWS_Z};
+        final CostBasedTripleSorter sorter = new CostBasedTripleSorter();
+        assertArrayEquals(patterns, sorter.sort(graph, patterns));
+        final Set<Node> bound = Collections.singleton(var("y"));
+        assertArrayEquals(new Triple[] {Y_KNOWS_Z, Z_IS_PERSON}, sorter.sort(graph, patterns, bound));
+    }
+
+    @Test
+    public void testEngineGivesSorterParametersAndEarlierBunches() {
+        final List<Set<Node>> seen = new ArrayList<Set<Node>>();
+        final GraphQuery q = new GraphQuery();
+        q.addNamedMatch("A", var("x"), KNOWS, var("y"));
+        q.addNamedMatch("B", var("y"), KNOWS, var("z"));
+        q.setTripleSorter(new TripleSorter() {
+            @Override
+            public Triple[] sort(final Triple[] triples) {
+                return triples;
+            }
+
+            @Override
+            public Triple[] sort(final Graph g, final Triple[] triples, final Set<Node> bound) {
+                seen.add(new HashSet<Node>(bound));
+                return triples;
+            }
+        });
+        q.compile(q.args().put("A", graph).put("B", graph), new Node[] {var("z")}, var("x"));
+        assertEquals(2, seen.size());
+        assertEquals(Collections.singleton(var("x")), seen.get(0));
+        assertEquals(new HashSet<Node>(Arrays.asList(var("x"), var("y"))), seen.get(1));
+    }
+
+    @Test
+    public void testSortedQueryAnswersAsWritten() {
+        final Node[] results = {var("x"), var("y"), var("z")};
+        final GraphQuery sorted = new GraphQuery().addMatch(X_KNOWS_Y).addMatch(Y_KNOWS_Z).addMatch(Z_IS_PERSON);
+        sorted.setTripleSorter(new CostBasedTripleSorter());
+        final GraphQuery unsorted = new GraphQuery().addMatch(X_KNOWS_Y).addMatch(Y_KNOWS_Z).addMatch(Z_IS_PERSON);
+        final List<String> expected = QueryFixtures.rows(unsorted.executeBindings(graph, results), results.length);
+        assertEquals(expected, QueryFixtures.rows(sorted.executeBindings(graph, results), results.length));
+        assertEquals(40, expected.size());
+        final List<String> expectedForZ = QueryFixtures.rows(unsorted.compile(graph, results, var("z")).executeBindings(person(0)), results.length);
+        assertEquals(4, expectedForZ.size());
+        assertEquals(expectedForZ, QueryFixtures.rows(sorted.compile(graph, results, var("z")).executeBindings(person(0)), results.length));
+    }
+}
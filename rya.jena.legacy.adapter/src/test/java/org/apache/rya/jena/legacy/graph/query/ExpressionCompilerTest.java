@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.NS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ExpressionCompilerTest {
+    private static final VariableIndexes INDEXES = new VariableIndexes() {
+        @Override
+        public int indexOf(final String name) {
+            return name.equals("p") ? 0 : 1;
+        }
+    };
+    private static final QueryFixtures.Var P = new QueryFixtures.Var("p");
+    private static final QueryFixtures.Var Q = new QueryFixtures.Var("q");
+
+    private static IndexValues values(final Object... values) {
+        return new IndexValues() {
+            @Override
+            public Object get(final int index) {
+                return values[index];
+            }
+        };
+    }
+
+    /**
+     * @return {@code l && r} as a Dyadic that counts its evaluations and
+     * whose {@code evalObject} must not be called.
+     */
+    private static Dyadic both(final Expression l, final Expression r, final AtomicInteger calls) {
+        return new Dyadic(l, NS + "both", r) {
+            @Override
+            public boolean evalBool(final Object x, final Object y) {
+                calls.incrementAndGet();
+                return ((Boolean) x).booleanValue() && ((Boolean) y).booleanValue();
+            }
+
+            @Override
+            public Object evalObject(final Object x, final Object y) {
+                throw new AssertionError("boxed evaluation");
+            }
+        };
+    }
+
+    @Test
+    public void testDyadicIsEvaluatedWithoutBoxing() {
+        final AtomicInteger calls = new AtomicInteger();
+        final Valuator v = ExpressionCompiler.compile(both(P, Q, calls), INDEXES);
+        assertTrue(v.evalBool(values(Boolean.TRUE, Boolean.TRUE)));
+        assertFalse(v.evalBool(values(Boolean.TRUE, Boolean.FALSE)));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testAndShortCircuits() {
+        final AtomicInteger calls = new AtomicInteger();
+        final Valuator v = ExpressionCompiler.compile(Dyadic.and(P, both(P, Q, calls)), INDEXES);
+        assertFalse(v.evalBool(values(Boolean.FALSE, null)));
+        assertEquals(0, calls.get());
+        assertTrue(v.evalBool(values(Boolean.TRUE, Boolean.TRUE)));
+        assertEquals(1, calls.get());
+        assertSame(Boolean.FALSE, v.evalObject(values(Boolean.TRUE, Boolean.FALSE)));
+    }
+
+    @Test
+    public void testOwnPrepareIsKept() {
+        final Valuator own = new Valuator() {
+            @Override
+            public boolean evalBool(final IndexValues iv) {
+                return true;
+            }
+
+            @Override
+            public Object evalObject(final IndexValues iv) {
+                return Boolean.TRUE;
+            }
+        };
+        final Dyadic custom = new Dyadic(P, NS + "custom", Q) {
+            @Override
+            public boolean evalBool(final Object x, final Object y) {
+                return false;
+            }
+
+            @Override
+            public Valuator prepare(final VariableIndexes vi) {
+                return own;
+            }
+        };
+        assertSame(own, ExpressionCompiler.compile(custom, INDEXES));
+    }
+
+    @Test
+    public void testConstants() {
+        assertTrue(ExpressionCompiler.compile(new Expression.Fixed(Boolean.TRUE), INDEXES).evalBool(values()));
+        assertFalse(ExpressionCompiler.compile(new Expression.Fixed(Boolean.FALSE), INDEXES).evalBool(values()));
+        final Valuator text = ExpressionCompiler.compile(new Expression.Fixed("text"), INDEXES);
+        assertEquals("text", text.evalObject(values()));
+        try {
+            text.evalBool(values());
+            fail("a non-Boolean constant has no boolean value");
+        } catch (final ClassCastException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCost() {
+        final AtomicInteger calls = new AtomicInteger();
+        assertEquals(0, ExpressionCompiler.cost(new Expression.Fixed(Boolean.TRUE)));
+        assertEquals(1, ExpressionCompiler.cost(P));
+        assertEquals(3, ExpressionCompiler.cost(both(P, Q, calls)));
+        assertEquals(2, ExpressionCompiler.cost(both(P, new Expression.Fixed(Boolean.TRUE), calls)));
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashJoinStageTest {
+    private static final String NS = "http://example/";
+    private static final Node KNOWS = uri("knows");
+    private static final Node AGE = uri("age");
+    private static final Node TYPE = uri("type");
+
+    private Graph graph;
+    private StageExecutor executor;
+    private BoundedStageExecutor counting;
+    private boolean hashJoins;
+    private long hashJoinThreshold;
+    private int maxInMemoryRows;
+    private int spillPartitions;
+
+    @Before
+    public void setUp() {
+        graph = GraphFactory.createGraphMem();
+        for (int i = 0; i < 300; i++) {
+            graph.add(Triple.create(person(i), KNOWS, person((i * 7 + 1) % 300)));
+            graph.add(Triple.create(person(i), KNOWS, person((i * 13 + 5) % 300)));
+            graph.add(Triple.create(person(i), AGE, NodeFactory.createLiteral(Integer.toString(i % 40))));
+            if (i % 10 == 0) {
+                graph.add(Triple.create(person(i), TYPE, uri("Robot")));
+            }
+        }
+        executor = Stage.getExecutor();
+        counting = new BoundedStageExecutor();
+        Stage.setExecutor(counting);
+        hashJoins = SimpleQueryEngine.hashJoins;
+        hashJoinThreshold = SimpleQueryEngine.hashJoinThreshold;
+        maxInMemoryRows = HashJoinStage.maxInMemoryRows;
+        spillPartitions = HashJoinStage.spillPartitions;
+    }
+
+    @After
+    public void tearDown() {
+        Stage.setExecutor(executor);
+        counting.shutdown();
+        SimpleQueryEngine.hashJoins = hashJoins;
+        SimpleQueryEngine.hashJoinThreshold = hashJoinThreshold;
+        HashJoinStage.maxInMemoryRows = maxInMemoryRows;
+        HashJoinStage.spillPartitions = spillPartitions;
+    }
+
+    private static Node uri(final String local) {
+        return NodeFactory.createURI(NS + local);
+    }
+
+    private static Node person(final int i) {
+        return uri("person" + i);
+    }
+
+    private static Node var(final String name) {
+        return NodeFactory.createVariable(name);
+    }
+
+    @Test
+    public void testJoinMatchesNestedLoop() {
+        final GraphQuery q = new GraphQuery()
+            .addMatch(var("x"), KNOWS, var("y"))
+            .addMatch(var("y"), AGE, var("a"))
+            .addMatch(var("y"), KNOWS, var("z"));
+        assertSameResults(q, new Node[] {var("x"), var("y"), var("a"), var("z")});
+    }
+
+    @Test
+    public void testCrossProductMatchesNestedLoop() {
+        final GraphQuery q = new GraphQuery()
+            .addMatch(var("x"), TYPE, uri("Robot"))
+            .addMatch(var("y"), AGE, NodeFactory.createLiteral("7"));
+        assertSameResults(q, new Node[] {var("x"), var("y")});
+    }
+
+    @Test
+    public void testBuildTurnedDownBySaturatedExecutorRunsInline() throws Exception {
+        final GraphQuery q = new GraphQuery()
+            .addMatch(var("x"), TYPE, uri("Robot"))
+            .addMatch(var("y"), AGE, NodeFactory.createLiteral("7"));
+        q.setExecutionMode(ExecutionMode.PIPELINED);
+        final Node[] results = {var("x"), var("y")};
+        SimpleQueryEngine.hashJoins = false;
+        final List<String> nested = run(q, results);
+
+        // The only pooled thread is taken, so every piece of stage work is
+        // rejected; the stages run on spawned threads and the build inline.
+        final BoundedStageExecutor saturated = new BoundedStageExecutor(1, 0, BoundedStageExecutor.RejectionPolicy.SPAWN);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Stage occupier = new Stage() {
+            @Override
+            public Pipe deliver(final Pipe sink) {
+                return sink;
+            }
+        };
+        saturated.execute(occupier, new BufferPipe(), new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Stage.setExecutor(saturated);
+        try {
+            SimpleQueryEngine.hashJoins = true;
+            SimpleQueryEngine.hashJoinThreshold = 0;
+            assertEquals(nested, run(q, results));
+        } finally {
+            Stage.setExecutor(counting);
+            release.countDown();
+            saturated.shutdown();
+        }
+        final BoundedStageExecutor.StageMetrics metrics = saturated.getMetrics().get(HashJoinStage.class.getSimpleName());
+        // Both the probe and the build were turned down; only the probe was
+        // spawned.
+        assertEquals(2, metrics.getSubmitted());
+        assertEquals(2, metrics.getRejected());
+        assertEquals(1, metrics.getSpawned());
+    }
+
+    @Test
+    public void testLargeJoinsAreHashed() {
+        // 600 acquaintances join 600 acquaintances; 30 robots reach 600.
+        SimpleQueryEngine.hashJoins = true;
+        SimpleQueryEngine.hashJoinThreshold = 100;
+        final Node[] results = {var("x"), var("y"), var("z")};
+        final GraphQuery large = new GraphQuery()
+            .addMatch(var("x"), KNOWS, var("y"))
+            .addMatch(var("y"), KNOWS, var("z"));
+        final GraphQuery small = new GraphQuery()
+            .addMatch(var("x"), TYPE, uri("Robot"))
+            .addMatch(var("x"), KNOWS, var("y"));
+        assertEquals(1, hashJoinStages(large, results));
+        assertEquals(0, hashJoinStages(small, results));
+
+        SimpleQueryEngine.hashJoinThreshold = 1000;
+        assertEquals(0, hashJoinStages(large, results));
+    }
+
+    @Test
+    public void testOversizedPartitionsAreSplitAgain() {
+        final GraphQuery join = new GraphQuery()
+            .addMatch(var("x"), KNOWS, var("y"))
+            .addMatch(var("y"), KNOWS, var("z"));
+        final GraphQuery cross = new GraphQuery()
+            .addMatch(var("x"), TYPE, uri("Robot"))
+            .addMatch(var("y"), AGE, var("a"));
+        for (final GraphQuery q : new GraphQuery[] {join, cross}) {
+            final Node[] results = q == join ? new Node[] {var("x"), var("y"), var("z")} : new Node[] {var("x"), var("y"), var("a")};
+            for (final ExecutionMode mode : ExecutionMode.values()) {
+                q.setExecutionMode(mode);
+                SimpleQueryEngine.hashJoins = false;
+                final List<String> nested = run(q, results);
+
+                // Two partitions of 300 rows each hold at most 2 rows only
+                // once split to the deepest level.
+                SimpleQueryEngine.hashJoins = true;
+                SimpleQueryEngine.hashJoinThreshold = 0;
+                HashJoinStage.maxInMemoryRows = 2;
+                HashJoinStage.spillPartitions = 2;
+                assertEquals(mode.name(), nested, run(q, results));
+                HashJoinStage.maxInMemoryRows = maxInMemoryRows;
+                HashJoinStage.spillPartitions = spillPartitions;
+            }
+        }
+    }
+
+    private int hashJoinStages(final GraphQuery q, final Node[] results) {
+        final List<Stage> stages = new ArrayList<Stage>();
+        q.executeBindings(graph, stages, results).close();
+        int count = 0;
+        for (final Stage stage : stages) {
+            if (stage instanceof HashJoinStage) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Run {@code q} with nested loops, with an in-memory hash join and with
+     * a hash join forced to spill, in each execution mode, and check that
+     * all give the same rows.
+     */
+    private void assertSameResults(final GraphQuery q, final Node[] results) {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            q.setExecutionMode(mode);
+            SimpleQueryEngine.hashJoins = false;
+            final List<String> nested = run(q, results);
+            assertTrue(!nested.isEmpty());
+
+            SimpleQueryEngine.hashJoins = true;
+            SimpleQueryEngine.hashJoinThreshold = 0;
+            final long before = hashJoinsRun();
+            assertEquals(mode.name(), nested, run(q, results));
+            if (mode == ExecutionMode.PIPELINED) {
+                assertTrue("no hash join was run", hashJoinsRun() > before);
+            }
+
+            HashJoinStage.maxInMemoryRows = 3;
+            HashJoinStage.spillPartitions = 4;
+            assertEquals(mode.name() + " spilled", nested, run(q, results));
+            HashJoinStage.maxInMemoryRows = maxInMemoryRows;
+            HashJoinStage.spillPartitions = spillPartitions;
+        }
+    }
+
+    private long hashJoinsRun() {
+        final BoundedStageExecutor.StageMetrics metrics = counting.getMetrics().get(HashJoinStage.class.getSimpleName());
+        return metrics == null ? 0 : metrics.getSubmitted();
+    }
+
+    /**
+     * @return the rows of {@code q}, each as the values of {@code results},
+     * sorted.
+     */
+    private List<String> run(final GraphQuery q, final Node[] results) {
+        final List<String> rows = new ArrayList<String>();
+        final ExtendedIterator<Domain> it = q.executeBindings(graph, results);
+        try {
+            while (it.hasNext()) {
+                final Domain d = it.next();
+                final StringBuilder row = new StringBuilder();
+                for (int i = 0; i < results.length; i++) {
+                    row.append(d.get(i)).append(' ');
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            it.close();
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.KNOWS;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.ne;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.people;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.rows;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.var;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.junit.Test;
+
+public class LeftOverConstraintTest {
+    private static final Node[] RESULTS = {var("x"), var("y"), var("z")};
+
+    private final Graph graph = people(4);
+
+    /**
+     * @return {@code ?x knows ?y} in graph A and {@code ?y knows ?z} in
+     * graph B; a constraint on {@code ?x} and {@code ?z} fits neither bunch,
+     * so it is left over.
+     */
+    private static GraphQuery twoBunches(final ExecutionMode mode) {
+        final GraphQuery q = new GraphQuery();
+        q.addNamedMatch("A", var("x"), KNOWS, var("y"));
+        q.addNamedMatch("B", var("y"), KNOWS, var("z"));
+        q.setExecutionMode(mode);
+        return q;
+    }
+
+    /**
+     * @return a constraint on {@code a} and {@code b} that throws whenever it
+     * is evaluated.
+     */
+    private static Expression failing(final String a, final String b) {
+        return new Dyadic(new QueryFixtures.Var(a), QueryFixtures.NS + "fail", new QueryFixtures.Var(b)) {
+            @Override
+            public boolean evalBool(final Object l, final Object r) {
+                throw new IllegalStateException("fail");
+            }
+        };
+    }
+
+    private List<String> run(final GraphQuery q, final List<Stage> stages) {
+        return rows(q.executeBindings(stages, q.args().put("A", graph).put("B", graph), RESULTS), RESULTS.length);
+    }
+
+    @Test
+    public void testLeftOverConstraintIsEvaluatedInTheLastPatternStage() {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            final List<String> all = run(twoBunches(mode), new ArrayList<Stage>());
+            final List<String> expected = new ArrayList<String>();
+            for (final String row : all) {
+                // Rows are [x, y, z]; keep those with x != z.
+                final String[] nodes = row.substring(1, row.length() - 1).split(", ");
+                if (!nodes[0].equals(nodes[2])) {
+                    expected.add(row);
+                }
+            }
+            assertTrue(expected.size() < all.size());
+
+            final List<Stage> stages = new ArrayList<Stage>();
+            final List<String> actual = run(twoBunches(mode).addConstraint(ne("x", "z")), stages);
+            assertEquals(mode.toString(), expected, actual);
+            for (final Stage stage : stages) {
+                assertFalse(stage instanceof ConstraintStage);
+            }
+            assertTrue(stages.get(stages.size() - 1) instanceof PatternStageBase);
+        }
+    }
+
+    @Test
+    public void testFailingLeftOverConstraintCountsAsFalse() {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            final List<String> actual = run(twoBunches(mode).addConstraint(failing("x", "z")), new ArrayList<Stage>());
+            assertEquals(mode.toString(), 0, actual.size());
+        }
+    }
+}
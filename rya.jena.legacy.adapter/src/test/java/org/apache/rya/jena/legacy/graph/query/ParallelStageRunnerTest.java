@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.KNOWS;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.people;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.var;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.WrappedGraph;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NullIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelStageRunnerTest {
+    private static final Node[] RESULTS = {var("x"), var("y"), var("z")};
+
+    private int parallelism;
+    private int parallelChunkSize;
+    private boolean orderedParallelOutput;
+    private boolean hashJoins;
+
+    @Before
+    public void setUp() {
+        parallelism = PatternStageBase.parallelism;
+        parallelChunkSize = PatternStageBase.parallelChunkSize;
+        orderedParallelOutput = PatternStageBase.orderedParallelOutput;
+        hashJoins = SimpleQueryEngine.hashJoins;
+        SimpleQueryEngine.hashJoins = false;
+    }
+
+    @After
+    public void tearDown() {
+        PatternStageBase.parallelism = parallelism;
+        PatternStageBase.parallelChunkSize = parallelChunkSize;
+        PatternStageBase.orderedParallelOutput = orderedParallelOutput;
+        SimpleQueryEngine.hashJoins = hashJoins;
+    }
+
+    /**
+     * @return the rows of {@code ?x knows ?y} in graph A and
+     * {@code ?y knows ?z} in graph B, both {@code graph}, in the order they
+     * were delivered; the second stage gets a domain for every match of the
+     * first.
+     */
+    private static List<String> run(final Graph graph) {
+        final GraphQuery q = new GraphQuery()
+            .addNamedMatch("A", var("x"), KNOWS, var("y"))
+            .addNamedMatch("B", var("y"), KNOWS, var("z"))
+            .setExecutionMode(ExecutionMode.PIPELINED);
+        final ExtendedIterator<Domain> it = q.executeBindings(q.args().put("A", graph).put("B", graph), RESULTS);
+        final List<String> result = new ArrayList<String>();
+        try {
+            while (it.hasNext()) {
+                result.add(it.next().subList(0, RESULTS.length).toString());
+            }
+        } finally {
+            it.close();
+        }
+        return result;
+    }
+
+    private static List<String> sorted(final List<String> rows) {
+        final List<String> result = new ArrayList<String>(rows);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testUnorderedMatchesSequential() {
+        final Graph graph = people(500);
+        PatternStageBase.parallelism = 1;
+        final List<String> expected = sorted(run(graph));
+        assertEquals(2000, expected.size());
+        PatternStageBase.parallelism = 4;
+        PatternStageBase.parallelChunkSize = 3;
+        PatternStageBase.orderedParallelOutput = false;
+        for (int i = 0; i < 10; i += 1) {
+            assertEquals(expected, sorted(run(graph)));
+        }
+    }
+
+    @Test
+    public void testOrderedKeepsSequentialOrder() {
+        final Graph graph = people(500);
+        PatternStageBase.parallelism = 1;
+        final List<String> expected = run(graph);
+        PatternStageBase.parallelism = 4;
+        PatternStageBase.parallelChunkSize = 3;
+        PatternStageBase.orderedParallelOutput = true;
+        for (int i = 0; i < 10; i += 1) {
+            assertEquals(expected, run(graph));
+        }
+    }
+
+    @Test
+    public void testBatchesFillAcrossChunks() {
+        for (final boolean ordered : new boolean[] {false, true}) {
+            final BatchCountingGraph graph = new BatchCountingGraph(people(1000));
+            PatternStageBase.parallelism = 1;
+            final List<String> expected = sorted(run(graph));
+            PatternStageBase.parallelism = 2;
+            PatternStageBase.parallelChunkSize = 8;
+            PatternStageBase.orderedParallelOutput = ordered;
+            graph.largest.set(0);
+            assertEquals(expected, sorted(run(graph)));
+            // 2000 domains reach the second stage, 1000 or so per worker.
+            assertTrue("largest batch " + graph.largest.get(), graph.largest.get() == QueryTriple.BatchedApplyer.batchSize);
+        }
+    }
+
+    /**
+     * A {@link MultiFind} graph that answers a batch with one find per
+     * pattern and records the largest batch.
+     */
+    private static final class BatchCountingGraph extends WrappedGraph implements MultiFind {
+        final AtomicInteger largest = new AtomicInteger();
+
+        BatchCountingGraph(final Graph base) {
+            super(base);
+        }
+
+        @Override
+        public ExtendedIterator<Triple> findAny(final List<Triple> patterns) {
+            int seen = largest.get();
+            while (patterns.size() > seen && !largest.compareAndSet(seen, patterns.size())) {
+                seen = largest.get();
+            }
+            ExtendedIterator<Triple> result = NullIterator.instance();
+            for (final Triple pattern : patterns) {
+                result = result.andThen(base.find(pattern));
+            }
+            return result;
+        }
+    }
+}
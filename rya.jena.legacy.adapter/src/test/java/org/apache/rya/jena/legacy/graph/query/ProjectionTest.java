@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.AGE;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.KNOWS;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.ne;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.people;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.person;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.rows;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.var;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.WrappedIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProjectionTest {
+    private static final Node[] RESULTS = {var("x"), var("z")};
+
+    private final Graph graph = people(10);
+    private boolean projectResults;
+
+    @Before
+    public void setUp() {
+        projectResults = SimpleQueryEngine.projectResults;
+    }
+
+    @After
+    public void tearDown() {
+        SimpleQueryEngine.projectResults = projectResults;
+    }
+
+    @Test
+    public void testApplyKeepsWidthAndClearsDropped() {
+        final Domain d = new Domain(new Node[] {person(0), person(1), person(2), person(3)});
+        final Domain projected = new Projection(3, new int[] {1}).apply(d);
+        assertEquals(3, projected.size());
+        assertEquals(person(0), projected.get(0));
+        assertNull(projected.get(1));
+        assertEquals(person(2), projected.get(2));
+        // The delivered domain is a copy.
+        assertEquals(person(1), d.get(1));
+        assertTrue(Projection.ALL.isAll());
+        assertEquals(4, Projection.ALL.apply(d).size());
+    }
+
+    /**
+     * @return {@code ?x knows ?y . ?y age ?a} in graph A and
+     * {@code ?y knows ?z} in graph B, so that the stage for A binds
+     * {@code ?a}, which nothing after it reads.
+     */
+    private static GraphQuery twoStages(final ExecutionMode mode) {
+        final GraphQuery q = new GraphQuery();
+        q.addNamedMatch("A", var("x"), KNOWS, var("y"));
+        q.addNamedMatch("A", var("y"), AGE, var("a"));
+        q.addNamedMatch("B", var("y"), KNOWS, var("z"));
+        q.setExecutionMode(mode);
+        return q;
+    }
+
+    /**
+     * @return the rows of {@code q}, as for {@link QueryFixtures#rows}, after
+     * checking that every domain is {@code width} slots wide, or at least
+     * as wide as the results if {@code width} is -1.
+     */
+    private List<String> run(final GraphQuery q, final List<Stage> stages, final int width) {
+        final List<Domain> domains = new ArrayList<Domain>();
+        final ExtendedIterator<Domain> it = q.executeBindings(stages, q.args().put("A", graph).put("B", graph), RESULTS);
+        try {
+            while (it.hasNext()) {
+                final Domain d = it.next();
+                assertTrue(width < 0 ? d.size() >= RESULTS.length : d.size() == width);
+                domains.add(d);
+            }
+        } finally {
+            it.close();
+        }
+        return rows(WrappedIterator.create(domains.iterator()), RESULTS.length);
+    }
+
+    @Test
+    public void testProjectedResultsMatchUnprojected() {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            SimpleQueryEngine.projectResults = false;
+            final List<String> expected = run(twoStages(mode), new ArrayList<Stage>(), -1);
+            assertFalse(expected.isEmpty());
+
+            SimpleQueryEngine.projectResults = true;
+            final List<Stage> stages = new ArrayList<Stage>();
+            assertEquals(mode.name(), expected, run(twoStages(mode), stages, RESULTS.length));
+            // ?a is cleared after the first stage; ?y is still read by the second.
+            assertTrue(((PatternStageBase) stages.get(0)).projection.toString().contains("dropped=3"));
+            assertEquals("<projection width=2 dropped=>", ((PatternStageBase) stages.get(stages.size() - 1)).projection.toString());
+        }
+    }
+
+    @Test
+    public void testSlotReadByLaterConstraintIsKept() {
+        for (final ExecutionMode mode : ExecutionMode.values()) {
+            SimpleQueryEngine.projectResults = false;
+            final List<String> expected = run(twoStages(mode).addConstraint(ne("a", "z")), new ArrayList<Stage>(), -1);
+            assertFalse(expected.isEmpty());
+
+            SimpleQueryEngine.projectResults = true;
+            final List<Stage> stages = new ArrayList<Stage>();
+            assertEquals(mode.name(), expected, run(twoStages(mode).addConstraint(ne("a", "z")), stages, RESULTS.length));
+            assertFalse(((PatternStageBase) stages.get(0)).projection.toString().contains("dropped=3"));
+        }
+    }
+}
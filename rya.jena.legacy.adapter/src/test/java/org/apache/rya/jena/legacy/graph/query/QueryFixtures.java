@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Graphs, nodes and constraint expressions shared by the query engine tests.
+ */
+final class QueryFixtures {
+    static final String NS = "http://example/";
+    static final Node KNOWS = uri("knows");
+    static final Node AGE = uri("age");
+    static final Node TYPE = uri("type");
+    static final Node PERSON = uri("Person");
+
+    private QueryFixtures() {
+    }
+
+    static Node uri(final String local) {
+        return NodeFactory.createURI(NS + local);
+    }
+
+    static Node var(final String name) {
+        return NodeFactory.createVariable(name);
+    }
+
+    static Node person(final int i) {
+        return uri("person" + i);
+    }
+
+    /**
+     * @return a graph of {@code count} people, each knowing the next two
+     * (wrapping round), with an age of {@code i % 80}; every third person is
+     * typed {@link #PERSON}.
+     */
+    static Graph people(final int count) {
+        final Graph g = GraphFactory.createGraphMem();
+        for (int i = 0; i < count; i += 1) {
+            g.add(Triple.create(person(i), KNOWS, person((i + 1) % count)));
+            g.add(Triple.create(person(i), KNOWS, person((i + 2) % count)));
+            g.add(Triple.create(person(i), AGE, NodeFactory.createLiteral(Integer.toString(i % 80))));
+            if (i % 3 == 0) {
+                g.add(Triple.create(person(i), TYPE, PERSON));
+            }
+        }
+        return g;
+    }
+
+    /**
+     * @return the first {@code width} elements of every domain from
+     * {@code it}, as strings, sorted; the iterator is closed.
+     */
+    static List<String> rows(final ExtendedIterator<Domain> it, final int width) {
+        final List<String> result = new ArrayList<String>();
+        try {
+            while (it.hasNext()) {
+                result.add(it.next().subList(0, width).toString());
+            }
+        } finally {
+            it.close();
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * A variable in a constraint, valued by its domain element.
+     */
+    static final class Var extends Expression.Variable {
+        private final String name;
+
+        Var(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Valuator prepare(final VariableIndexes vi) {
+            final int index = vi.indexOf(name);
+            return new Valuator() {
+                @Override
+                public boolean evalBool(final IndexValues iv) {
+                    return ((Boolean) iv.get(index)).booleanValue();
+                }
+
+                @Override
+                public Object evalObject(final IndexValues iv) {
+                    return iv.get(index);
+                }
+            };
+        }
+    }
+
+    /**
+     * @return the constraint {@code a != b}.
+     */
+    static Expression ne(final String a, final String b) {
+        return new Dyadic(new Var(a), NS + "ne", new Var(b)) {
+            @Override
+            public boolean evalBool(final Object l, final Object r) {
+                return !l.equals(r);
+            }
+        };
+    }
+}
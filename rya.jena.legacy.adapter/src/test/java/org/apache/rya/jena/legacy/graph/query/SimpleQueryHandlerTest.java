@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.KNOWS;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.person;
+import static org.apache.rya.jena.legacy.graph.query.QueryFixtures.people;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.apache.jena.util.iterator.NullIterator;
+import org.apache.rya.jena.legacy.sparql.graph.GraphBase2;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SimpleQueryHandlerTest {
+    private int maxDistinctNodes;
+    private int spillPartitions;
+
+    @Before
+    public void setUp() {
+        maxDistinctNodes = SimpleQueryHandler.maxDistinctNodes;
+        spillPartitions = HashJoinStage.spillPartitions;
+    }
+
+    @After
+    public void tearDown() {
+        SimpleQueryHandler.maxDistinctNodes = maxDistinctNodes;
+        HashJoinStage.spillPartitions = spillPartitions;
+    }
+
+    @Test
+    public void testDistinctNodesMatchTheSetOfMatches() {
+        final Graph graph = people(500);
+        // 5 remembered nodes spill; 1 reaches the deepest split.
+        for (final int max : new int[] {maxDistinctNodes, 5, 1}) {
+            SimpleQueryHandler.maxDistinctNodes = max;
+            HashJoinStage.spillPartitions = 2;
+            final String label = "maxDistinctNodes=" + max;
+            assertDistinct(label, expected(graph, Node.ANY, KNOWS, Node.ANY, 2), SimpleQueryHandler.objectsFor(graph, Node.ANY, KNOWS));
+            assertDistinct(label, expected(graph, Node.ANY, KNOWS, Node.ANY, 0), SimpleQueryHandler.subjectsFor(graph, KNOWS, Node.ANY));
+            assertDistinct(label, expected(graph, Node.ANY, Node.ANY, Node.ANY, 1), SimpleQueryHandler.predicatesFor(graph, Node.ANY, Node.ANY));
+            assertDistinct(label, expected(graph, person(7), KNOWS, Node.ANY, 2), SimpleQueryHandler.objectsFor(graph, person(7), KNOWS));
+        }
+    }
+
+    @Test
+    public void testDistinctNodesAreStreamed() {
+        final int[] read = {0};
+        final ExtendedIterator<Node> source = new NiceIterator<Node>() {
+            @Override
+            public boolean hasNext() {
+                return read[0] < 10000;
+            }
+
+            @Override
+            public Node next() {
+                return person(read[0]++ % 100);
+            }
+        };
+        final DistinctNodeIterator it = new DistinctNodeIterator(source);
+        assertEquals(person(0), it.next());
+        assertEquals(1, read[0]);
+        for (int i = 1; i < 100; i += 1) {
+            it.next();
+        }
+        assertEquals(100, read[0]);
+        assertFalse(it.hasNext());
+        assertEquals(10000, read[0]);
+    }
+
+    @Test
+    public void testClosingASpilledIteratorDeletesItsFiles() {
+        SimpleQueryHandler.maxDistinctNodes = 5;
+        HashJoinStage.spillPartitions = 4;
+        final File tmp = new File(System.getProperty("java.io.tmpdir"));
+        final int before = spillFiles(tmp);
+        final ExtendedIterator<Node> it = SimpleQueryHandler.objectsFor(people(500), Node.ANY, KNOWS);
+        for (int i = 0; i < 5; i += 1) {
+            it.next();
+        }
+        // Finding the sixth node spills every other unseen one.
+        assertTrue(it.hasNext());
+        assertEquals(before + 4, spillFiles(tmp));
+        it.close();
+        assertEquals(before, spillFiles(tmp));
+    }
+
+    @Test
+    public void testFindOrCreateSharesOneHandlerPerGraph() {
+        final Graph graph = people(3);
+        final Graph same = people(3);
+        final SimpleQueryHandler handler = SimpleQueryHandler.findOrCreate(graph);
+        assertSame(handler, SimpleQueryHandler.findOrCreate(graph));
+        assertSame(handler, SimpleQueryHandler.handlerFor(graph));
+        // Graphs are told apart by identity, not by their triples.
+        assertTrue(graph.isIsomorphicWith(same));
+        assertNotSame(handler, SimpleQueryHandler.findOrCreate(same));
+    }
+
+    @Test
+    public void testHandlerForAsksAGraphBase2() {
+        final QueryHandler own = new SimpleQueryHandler(people(3));
+        final GraphBase2 custom = new EmptyGraph() {
+            @Override
+            public QueryHandler queryHandler() {
+                return own;
+            }
+        };
+        assertSame(own, SimpleQueryHandler.handlerFor(custom));
+
+        // A graph whose handler is the registered one does not recurse.
+        final GraphBase2 delegating = new EmptyGraph() {
+            @Override
+            public QueryHandler queryHandler() {
+                return SimpleQueryHandler.findOrCreate(this);
+            }
+        };
+        final QueryHandler registered = SimpleQueryHandler.handlerFor(delegating);
+        assertSame(SimpleQueryHandler.findOrCreate(delegating), registered);
+
+        final GraphBase2 plain = new EmptyGraph();
+        assertSame(plain.queryHandler(), SimpleQueryHandler.handlerFor(plain));
+    }
+
+    @Test
+    public void testRegistryDoesNotKeepGraphsReachable() throws InterruptedException {
+        Graph graph = people(3);
+        SimpleQueryHandler handler = SimpleQueryHandler.findOrCreate(graph);
+        final WeakReference<Graph> graphRef = new WeakReference<Graph>(graph);
+        final WeakReference<SimpleQueryHandler> handlerRef = new WeakReference<SimpleQueryHandler>(handler);
+        graph = null;
+        handler = null;
+        for (int i = 0; i < 50 && (graphRef.get() != null || handlerRef.get() != null); i += 1) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(graphRef.get());
+        assertNull(handlerRef.get());
+
+        // The collected entries are dropped and the registry still answers.
+        final Graph next = people(3);
+        assertSame(SimpleQueryHandler.findOrCreate(next), SimpleQueryHandler.findOrCreate(next));
+    }
+
+    private static int spillFiles(final File dir) {
+        return dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(final File d, final String name) {
+                return name.startsWith("distinct-") && name.endsWith(".bin");
+            }
+        }).length;
+    }
+
+    /**
+     * @return the nodes at {@code position} of the triples matching
+     * {@code s p o}, as a set.
+     */
+    private static Set<Node> expected(final Graph graph, final Node s, final Node p, final Node o, final int position) {
+        final Set<Node> result = new HashSet<Node>();
+        for (final Triple t : graph.find(s, p, o).toList()) {
+            result.add(position == 0 ? t.getSubject() : position == 1 ? t.getPredicate() : t.getObject());
+        }
+        return result;
+    }
+
+    private static void assertDistinct(final String label, final Set<Node> expected, final ExtendedIterator<Node> it) {
+        final List<Node> nodes = new ArrayList<Node>();
+        try {
+            while (it.hasNext()) {
+                nodes.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        assertEquals(label, expected.size(), nodes.size());
+        assertEquals(label, expected, new HashSet<Node>(nodes));
+    }
+
+    /**
+     * A graph with no triples, using the handler {@link GraphBase2} makes.
+     */
+    private static class EmptyGraph extends GraphBase2 {
+        @Override
+        protected PrefixMapping createPrefixMapping() {
+            return PrefixMapping.Factory.create();
+        }
+
+        @Override
+        protected ExtendedIterator<Triple> graphBaseFind(final Triple m) {
+            return NullIterator.instance();
+        }
+
+        @Override
+        public void remove(final Node s, final Node p, final Node o) {
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.WrappedGraph;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NullIterator;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SimpleTreeQueryPlanTest {
+    private static final String NS = "http://example/";
+    private static final Node NAME = uri("name");
+    private static final Node KNOWS = uri("knows");
+    private static final Node EMAIL = uri("email");
+    private static final Node ALICE = uri("alice");
+    private static final Node BOB = uri("bob");
+
+    private Graph target;
+
+    @Before
+    public void setUp() {
+        target = GraphFactory.createGraphMem();
+        target.add(Triple.create(ALICE, NAME, NodeFactory.createLiteral("Alice")));
+        target.add(Triple.create(ALICE, KNOWS, BOB));
+        target.add(Triple.create(BOB, KNOWS, ALICE));
+    }
+
+    private static Node uri(final String local) {
+        return NodeFactory.createURI(NS + local);
+    }
+
+    /**
+     * The pattern {@code _:r name _:n . _:r knows _:f . _:f email _:e}: a
+     * root with a name, and a friend with an email.
+     */
+    private static Graph friendWithEmail() {
+        final Node r = NodeFactory.createBlankNode();
+        final Node f = NodeFactory.createBlankNode();
+        final Graph pattern = GraphFactory.createGraphMem();
+        pattern.add(Triple.create(r, NAME, NodeFactory.createBlankNode()));
+        pattern.add(Triple.create(r, KNOWS, f));
+        pattern.add(Triple.create(f, EMAIL, NodeFactory.createBlankNode()));
+        return pattern;
+    }
+
+    @Test
+    public void testDeadBranchIsDropped() {
+        // Nobody has an email, so the knows edge leads to no leaf.
+        final Graph result = new SimpleTreeQueryPlan(target, friendWithEmail()).executeTree();
+        assertEquals(sorted(Triple.create(ALICE, NAME, NodeFactory.createLiteral("Alice"))), sorted(result));
+    }
+
+    @Test
+    public void testLiveBranchIsKept() {
+        final Triple email = Triple.create(BOB, EMAIL, NodeFactory.createLiteral("bob@example"));
+        target.add(email);
+        final Graph result = new SimpleTreeQueryPlan(target, friendWithEmail()).executeTree();
+        assertEquals(sorted(Triple.create(ALICE, NAME, NodeFactory.createLiteral("Alice")), Triple.create(ALICE, KNOWS, BOB), Triple.create(BOB, KNOWS, ALICE), email), sorted(result));
+    }
+
+    @Test
+    public void testCyclicPatternTerminates() {
+        // _:r knows _:a . _:a knows _:b . _:b knows _:a . _:b name _:n
+        final Node r = NodeFactory.createBlankNode();
+        final Node a = NodeFactory.createBlankNode();
+        final Node b = NodeFactory.createBlankNode();
+        final Graph pattern = GraphFactory.createGraphMem();
+        pattern.add(Triple.create(r, KNOWS, a));
+        pattern.add(Triple.create(a, KNOWS, b));
+        pattern.add(Triple.create(b, KNOWS, a));
+        pattern.add(Triple.create(b, NAME, NodeFactory.createBlankNode()));
+        final Graph result = new SimpleTreeQueryPlan(target, pattern).executeTree();
+        assertEquals(sorted(target), sorted(result));
+    }
+
+    @Test
+    public void testOneFindAnyPerLevel() {
+        target.add(Triple.create(BOB, EMAIL, NodeFactory.createLiteral("bob@example")));
+        final CountingGraph counting = new CountingGraph(target);
+        final Graph result = new SimpleTreeQueryPlan(counting, friendWithEmail()).executeTree();
+        // The root level has two distinct lookups, the next level one.
+        assertEquals(1, counting.findAnyCalls);
+        assertEquals(1, counting.findCalls);
+        assertEquals(sorted(new SimpleTreeQueryPlan(target, friendWithEmail()).executeTree()), sorted(result));
+    }
+
+    private static List<String> sorted(final Triple... triples) {
+        final List<String> result = new ArrayList<String>();
+        for (final Triple t : triples) {
+            result.add(t.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<String> sorted(final Graph graph) {
+        return sorted(graph.find(Node.ANY, Node.ANY, Node.ANY).toList().toArray(new Triple[0]));
+    }
+
+    /**
+     * A {@link MultiFind} graph that answers a batch with one find per
+     * pattern, counting the calls it gets.
+     */
+    private static final class CountingGraph extends WrappedGraph implements MultiFind {
+        int findCalls;
+        int findAnyCalls;
+
+        CountingGraph(final Graph base) {
+            super(base);
+        }
+
+        @Override
+        public ExtendedIterator<Triple> find(final Triple pattern) {
+            findCalls += 1;
+            return super.find(pattern);
+        }
+
+        @Override
+        public ExtendedIterator<Triple> findAny(final List<Triple> patterns) {
+            findAnyCalls += 1;
+            ExtendedIterator<Triple> result = NullIterator.instance();
+            for (final Triple pattern : patterns) {
+                result = result.andThen(base.find(pattern));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.graph.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ValuatorSetTest {
+    private static final IndexValues NONE = new IndexValues() {
+        @Override
+        public Object get(final int index) {
+            throw new IndexOutOfBoundsException();
+        }
+    };
+
+    private boolean adaptive;
+
+    @Before
+    public void setUp() {
+        adaptive = ValuatorSet.adaptive;
+        ValuatorSet.adaptive = true;
+    }
+
+    @After
+    public void tearDown() {
+        ValuatorSet.adaptive = adaptive;
+    }
+
+    /**
+     * @return a Valuator that always answers {@code value}.
+     */
+    private static Valuator always(final boolean value) {
+        return new Valuator() {
+            @Override
+            public boolean evalBool(final IndexValues iv) {
+                return value;
+            }
+
+            @Override
+            public Object evalObject(final IndexValues iv) {
+                return Boolean.valueOf(value);
+            }
+
+            @Override
+            public String toString() {
+                return Boolean.toString(value);
+            }
+        };
+    }
+
+    /**
+     * @return a Valuator that always throws.
+     */
+    private static Valuator failing() {
+        return new Valuator() {
+            @Override
+            public boolean evalBool(final IndexValues iv) {
+                throw new IllegalStateException("fail");
+            }
+
+            @Override
+            public Object evalObject(final IndexValues iv) {
+                throw new IllegalStateException("fail");
+            }
+        };
+    }
+
+    private static List<Valuator> order(final ValuatorSet s) {
+        final List<Valuator> result = new ArrayList<Valuator>();
+        for (final ValuatorSet.Statistics statistics : s.getStatistics()) {
+            result.add(statistics.getValuator());
+        }
+        return result;
+    }
+
+    @Test
+    public void testCheapestFirstUntilMeasured() {
+        final Valuator pass = always(true);
+        final Valuator reject = always(false);
+        final ValuatorSet s = new ValuatorSet().add(reject, 5).add(pass, 1);
+        assertEquals(2, order(s).size());
+        assertSame(pass, order(s).get(0));
+    }
+
+    @Test
+    public void testRejectingValuatorMovesFirst() {
+        final Valuator pass = always(true);
+        final Valuator reject = always(false);
+        final ValuatorSet s = new ValuatorSet().add(pass, 1).add(reject, 2);
+        for (int i = 0; i < 5000; i += 1) {
+            assertFalse(s.evalBool(NONE));
+        }
+        assertSame(reject, order(s).get(0));
+        final ValuatorSet.Statistics first = s.getStatistics().get(0);
+        assertEquals(0, first.getPassed());
+        assertEquals(0, first.getPassRate(), 0);
+    }
+
+    @Test
+    public void testNoReorderingWhenNotAdaptive() {
+        ValuatorSet.adaptive = false;
+        final Valuator pass = always(true);
+        final ValuatorSet s = new ValuatorSet().add(pass, 1).add(always(false), 2);
+        for (int i = 0; i < 5000; i += 1) {
+            assertFalse(s.evalBool(NONE));
+        }
+        assertSame(pass, order(s).get(0));
+        assertEquals(0, s.getStatistics().get(0).getEvaluated());
+    }
+
+    @Test
+    public void testRejectionWinsOverExceptionInAnyOrder() {
+        for (final boolean adaptiveOrder : new boolean[] {true, false}) {
+            ValuatorSet.adaptive = adaptiveOrder;
+            // The throwing Valuator is the cheaper, so it runs first.
+            final ValuatorSet s = new ValuatorSet().add(failing(), 1).add(always(false), 2);
+            for (int i = 0; i < 5000; i += 1) {
+                assertFalse(s.evalBool(NONE));
+            }
+        }
+    }
+
+    @Test
+    public void testExceptionIsThrownWhenNothingRejects() {
+        for (final boolean adaptiveOrder : new boolean[] {true, false}) {
+            ValuatorSet.adaptive = adaptiveOrder;
+            final ValuatorSet s = new ValuatorSet().add(always(true), 1).add(failing(), 2);
+            try {
+                s.evalBool(NONE);
+                fail("the exception was lost");
+            } catch (final IllegalStateException e) {
+                assertEquals("fail", e.getMessage());
+            }
+            assertTrue(new LenientValuatorSet(s).isNonTrivial());
+            assertFalse(new LenientValuatorSet(s).evalBool(NONE));
+        }
+    }
+
+    @Test
+    public void testConcurrentCountsAreExact() throws InterruptedException {
+        final ValuatorSet s = new ValuatorSet().add(always(true), 1);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t += 1) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50000; i += 1) {
+                        s.evalBool(NONE);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final ValuatorSet.Statistics statistics = s.getStatistics().get(0);
+        assertEquals(200000, statistics.getEvaluated());
+        assertEquals(200000, statistics.getPassed());
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.sparql.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReificationIndexTest {
+    private static final String NS = "http://example/";
+    private static final Node KNOWS = uri("knows");
+
+    private int indexMaxNodes;
+    private Graph graph;
+    private Reifier2 queried;
+    private Reifier2 indexed;
+
+    @Before
+    public void setUp() {
+        indexMaxNodes = Reifier2.indexMaxNodes;
+        graph = GraphFactory.createGraphMem();
+        for (int i = 0; i < 5; i += 1) {
+            graph.add(statement(i));
+            new Reifier2(graph, false).reifyAs(reifier(i), statement(i));
+        }
+        // reifier 5 also reifies statement 0; reifier 6 is untyped.
+        new Reifier2(graph, false).reifyAs(reifier(5), statement(0));
+        graph.add(Triple.create(reifier(6), RDF.Nodes.subject, person(1)));
+        graph.add(Triple.create(reifier(6), RDF.Nodes.predicate, KNOWS));
+        graph.add(Triple.create(reifier(6), RDF.Nodes.object, person(2)));
+    }
+
+    @After
+    public void tearDown() {
+        if (indexed != null) {
+            indexed.close();
+        }
+        Reifier2.indexMaxNodes = indexMaxNodes;
+    }
+
+    private static Node uri(final String local) {
+        return NodeFactory.createURI(NS + local);
+    }
+
+    private static Node person(final int i) {
+        return uri("person" + i);
+    }
+
+    private static Node reifier(final int i) {
+        return uri("reifier" + i);
+    }
+
+    private static Triple statement(final int i) {
+        return Triple.create(person(i), KNOWS, person(i + 1));
+    }
+
+    private void open() {
+        queried = new Reifier2(graph, false);
+        indexed = new Reifier2(graph, true);
+    }
+
+    @Test
+    public void testIndexAnswersAsTheQueries() {
+        open();
+        assertSameAnswers();
+        assertEquals(statement(1), indexed.getTriple(reifier(1)));
+        // Statement 0 has two reifiers, so neither side counts it reified.
+        assertFalse(indexed.hasTriple(statement(0)));
+        assertNull(indexed.getTriple(reifier(6)));
+    }
+
+    @Test
+    public void testDirectWritesToTheGraphShow() {
+        open();
+        assertSameAnswers();
+        graph.delete(Triple.create(reifier(5), RDF.Nodes.type, RDF.Nodes.Statement));
+        graph.add(Triple.create(reifier(6), RDF.Nodes.type, RDF.Nodes.Statement));
+        GraphUtil.delete(graph, Collections.singletonList(Triple.create(reifier(2), RDF.Nodes.object, person(3))));
+        GraphUtil.add(graph, new Triple[] {
+            Triple.create(reifier(7), RDF.Nodes.type, RDF.Nodes.Statement),
+            Triple.create(reifier(7), RDF.Nodes.subject, person(3)),
+            Triple.create(reifier(7), RDF.Nodes.predicate, KNOWS),
+            Triple.create(reifier(7), RDF.Nodes.object, person(3))});
+        assertSameAnswers();
+        assertTrue(indexed.hasTriple(statement(0)));
+        assertEquals(statement(1), indexed.getTriple(reifier(6)));
+        assertNull(indexed.getTriple(reifier(2)));
+        assertEquals(Triple.create(person(3), KNOWS, person(3)), indexed.getTriple(reifier(7)));
+
+        graph.clear();
+        assertSameAnswers();
+        assertNull(indexed.getTriple(reifier(1)));
+    }
+
+    @Test
+    public void testOverMaxNodesCachesLookups() {
+        Reifier2.indexMaxNodes = 3;
+        open();
+        assertSameAnswers();
+        // A cached lookup follows a direct write.
+        assertEquals(statement(3), indexed.getTriple(reifier(3)));
+        graph.delete(Triple.create(reifier(3), RDF.Nodes.subject, person(3)));
+        assertNull(indexed.getTriple(reifier(3)));
+        graph.add(Triple.create(reifier(3), RDF.Nodes.subject, person(3)));
+        assertEquals(statement(3), indexed.getTriple(reifier(3)));
+        assertSameAnswers();
+    }
+
+    @Test
+    public void testIndexOutgrowingMaxNodesFallsBackToCaching() {
+        Reifier2.indexMaxNodes = 7;
+        open();
+        assertSameAnswers();
+        indexed.reifyAs(reifier(7), statement(4));
+        indexed.reifyAs(reifier(8), Triple.create(person(8), KNOWS, person(8)));
+        assertSameAnswers();
+        assertEquals(Triple.create(person(8), KNOWS, person(8)), indexed.getTriple(reifier(8)));
+    }
+
+    @Test
+    public void testOverSpecifiedReifiers() {
+        open();
+        assertSameAnswers();
+        graph.add(Triple.create(reifier(1), RDF.Nodes.subject, person(9)));
+        graph.add(Triple.create(reifier(4), RDF.Nodes.object, person(9)));
+        assertSameAnswers();
+        assertNull(indexed.getTriple(reifier(1)));
+        assertFalse(indexed.hasTriple(reifier(1)));
+        assertFalse(indexed.hasTriple(statement(1)));
+        assertFalse(indexed.hasTriple(Triple.create(person(9), KNOWS, person(2))));
+        // Each subject still matches the query with the other fragments.
+        assertEquals(Collections.singletonList(reifier(1)), indexed.allNodes(Triple.create(person(9), KNOWS, person(2))).toList());
+
+        graph.delete(Triple.create(reifier(1), RDF.Nodes.subject, person(9)));
+        assertSameAnswers();
+        assertEquals(statement(1), indexed.getTriple(reifier(1)));
+    }
+
+    /**
+     * Check that the indexed reifier answers every lookup about the
+     * reifiers and statements of the test graph as the queries do.
+     */
+    private void assertSameAnswers() {
+        assertEquals(sorted(queried.allNodes().toList()), sorted(indexed.allNodes().toList()));
+        for (int i = 0; i < 10; i += 1) {
+            final String label = "reifier" + i;
+            assertEquals(label, queried.getTriple(reifier(i)), indexed.getTriple(reifier(i)));
+            assertEquals(label, queried.hasTriple(reifier(i)), indexed.hasTriple(reifier(i)));
+            for (final Triple t : new Triple[] {statement(i), Triple.create(person(i), KNOWS, person(i)), Triple.create(person(9), KNOWS, person(i))}) {
+                assertEquals(label + " " + t, queried.hasTriple(t), indexed.hasTriple(t));
+                assertEquals(label + " " + t, sorted(queried.allNodes(t).toList()), sorted(indexed.allNodes(t).toList()));
+            }
+        }
+    }
+
+    private static List<String> sorted(final List<Node> nodes) {
+        final List<String> result = new ArrayList<String>();
+        for (final Node n : nodes) {
+            result.add(n.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.sparql.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphListener;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Reifier2Test {
+    private static final Node S = NodeFactory.createURI("http://example/s");
+    private static final Node P = NodeFactory.createURI("http://example/p");
+    private static final Node O = NodeFactory.createURI("http://example/o");
+    private static final Node R = NodeFactory.createURI("http://example/r");
+    private static final Triple STATEMENT = Triple.create(S, P, O);
+
+    private Graph graph;
+    private final List<String> events = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        graph = GraphFactory.createGraphMem();
+        graph.getEventManager().register(new GraphListener() {
+            @Override
+            public void notifyAddTriple(final Graph g, final Triple t) {
+                events.add("add 1");
+            }
+
+            @Override
+            public void notifyAddArray(final Graph g, final Triple[] triples) {
+                events.add("add " + triples.length);
+            }
+
+            @Override
+            public void notifyAddList(final Graph g, final List<Triple> triples) {
+                events.add("add " + triples.size());
+            }
+
+            @Override
+            public void notifyAddIterator(final Graph g, final Iterator<Triple> it) {
+                events.add("add iterator");
+            }
+
+            @Override
+            public void notifyAddGraph(final Graph g, final Graph added) {
+                events.add("add graph");
+            }
+
+            @Override
+            public void notifyDeleteTriple(final Graph g, final Triple t) {
+                events.add("delete 1");
+            }
+
+            @Override
+            public void notifyDeleteList(final Graph g, final List<Triple> triples) {
+                events.add("delete " + triples.size());
+            }
+
+            @Override
+            public void notifyDeleteArray(final Graph g, final Triple[] triples) {
+                events.add("delete " + triples.length);
+            }
+
+            @Override
+            public void notifyDeleteIterator(final Graph g, final Iterator<Triple> it) {
+                events.add("delete iterator");
+            }
+
+            @Override
+            public void notifyDeleteGraph(final Graph g, final Graph removed) {
+                events.add("delete graph");
+            }
+
+            @Override
+            public void notifyEvent(final Graph source, final Object value) {
+                events.add("event");
+            }
+        });
+    }
+
+    @Test
+    public void testReifyAsWritesOneBatch() {
+        for (final boolean indexed : new boolean[] {false, true}) {
+            graph.clear();
+            events.clear();
+            final Reifier2 reifier = new Reifier2(graph, indexed);
+            try {
+                assertEquals(R, reifier.reifyAs(R, STATEMENT));
+                assertEquals(Arrays.asList("add 4"), events);
+                assertEquals(4, graph.size());
+                assertEquals(STATEMENT, reifier.getTriple(R));
+
+                // Reifying again writes nothing.
+                events.clear();
+                reifier.reifyAs(R, STATEMENT);
+                assertTrue(events.isEmpty());
+
+                // Only the missing fragments are written.
+                final Node partial = NodeFactory.createURI("http://example/partial");
+                graph.add(Triple.create(partial, RDF.Nodes.subject, S));
+                graph.add(Triple.create(partial, RDF.Nodes.type, RDF.Nodes.Statement));
+                events.clear();
+                reifier.reifyAs(partial, STATEMENT);
+                assertEquals(Arrays.asList("add 2"), events);
+                assertEquals(STATEMENT, reifier.getTriple(partial));
+            } finally {
+                reifier.close();
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveDeletesOneBatch() {
+        for (final boolean indexed : new boolean[] {false, true}) {
+            graph.clear();
+            final Reifier2 reifier = new Reifier2(graph, indexed);
+            try {
+                final Node other = reifier.reifyAs(null, STATEMENT);
+                reifier.reifyAs(R, STATEMENT);
+                final Triple unrelated = Triple.create(R, P, O);
+                graph.add(unrelated);
+
+                events.clear();
+                reifier.remove(R, STATEMENT);
+                assertEquals(Arrays.asList("delete 4"), events);
+                assertFalse(reifier.hasTriple(R));
+                assertTrue(graph.contains(unrelated));
+                assertEquals(STATEMENT, reifier.getTriple(other));
+
+                // Removing every reification of the triple is one batch too.
+                reifier.reifyAs(R, STATEMENT);
+                events.clear();
+                reifier.remove(STATEMENT);
+                assertEquals(Arrays.asList("delete 8"), events);
+                assertEquals(new HashSet<Triple>(Arrays.asList(unrelated)), graph.find(Node.ANY, Node.ANY, Node.ANY).toSet());
+
+                // Nothing to remove, nothing written.
+                events.clear();
+                reifier.remove(STATEMENT);
+                assertTrue(events.isEmpty());
+            } finally {
+                reifier.close();
+            }
+        }
+    }
+}
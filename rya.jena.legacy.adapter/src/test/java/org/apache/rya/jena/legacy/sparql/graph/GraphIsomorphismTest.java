@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.sparql.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.junit.Test;
+
+public class GraphIsomorphismTest {
+    private static final Node P = NodeFactory.createURI("http://example/p");
+    private static final Node Q = NodeFactory.createURI("http://example/q");
+
+    private static Node uri(final int i) {
+        return NodeFactory.createURI("http://example/n" + i);
+    }
+
+    /**
+     * @return a graph of the triples {@code from[i] P to[i]}, over fresh
+     * blank nodes {@code 0..count-1}, added in a shuffled order; a negative
+     * index stands for the URI of its complement.
+     */
+    private static Graph graph(final int count, final int[] from, final int[] to, final long seed) {
+        final Node[] blanks = new Node[count];
+        for (int i = 0; i < count; i += 1) {
+            blanks[i] = NodeFactory.createBlankNode();
+        }
+        final List<Triple> triples = new ArrayList<Triple>();
+        for (int i = 0; i < from.length; i += 1) {
+            triples.add(Triple.create(node(blanks, from[i]), P, node(blanks, to[i])));
+        }
+        Collections.shuffle(triples, new Random(seed));
+        final Graph g = GraphFactory.createGraphMem();
+        for (final Triple t : triples) {
+            g.add(t);
+        }
+        return g;
+    }
+
+    private static Node node(final Node[] blanks, final int i) {
+        return i < 0 ? uri(~i) : blanks[i];
+    }
+
+    private static void assertIsomorphism(final boolean expected, final Graph a, final Graph b) {
+        // Jena's own matcher is the reference.
+        assertEquals(expected, a.isIsomorphicWith(b));
+        assertEquals(expected, GraphIsomorphism.isIsomorphic(a, b));
+        assertEquals(expected, GraphIsomorphism.isIsomorphic(b, a));
+    }
+
+    @Test
+    public void testRelabelledBlankNodesAreIsomorphic() {
+        // A tree of blank nodes hung from ground nodes, with ground leaves.
+        final int[] from = {~0, 0, 0, 1, 1, 2, 3, 4, ~1};
+        final int[] to = {0, 1, 2, 3, 4, ~2, ~3, 3, ~2};
+        assertIsomorphism(true, graph(5, from, to, 1), graph(5, from, to, 2));
+    }
+
+    @Test
+    public void testSymmetricBlankStructures() {
+        // Every node of a ring looks alike, so matching needs GraphMatcher.
+        final int[] ring6From = {0, 1, 2, 3, 4, 5};
+        final int[] ring6To = {1, 2, 3, 4, 5, 0};
+        assertIsomorphism(true, graph(6, ring6From, ring6To, 1), graph(6, ring6From, ring6To, 2));
+
+        // Two rings of three have the same size, degrees and colours as one
+        // ring of six.
+        final int[] rings3From = {0, 1, 2, 3, 4, 5};
+        final int[] rings3To = {1, 2, 0, 4, 5, 3};
+        assertIsomorphism(false, graph(6, ring6From, ring6To, 1), graph(6, rings3From, rings3To, 1));
+    }
+
+    @Test
+    public void testDifferentGroundTriplesAreNotIsomorphic() {
+        final int[] from = {~0, 0, 1};
+        final int[] to = {0, 1, ~1};
+        final Graph a = graph(2, from, to, 1);
+        final Graph b = graph(2, from, to, 1);
+        a.add(Triple.create(uri(5), P, uri(6)));
+        b.add(Triple.create(uri(5), Q, uri(6)));
+        assertIsomorphism(false, a, b);
+
+        b.delete(Triple.create(uri(5), Q, uri(6)));
+        b.add(Triple.create(uri(5), P, uri(6)));
+        assertIsomorphism(true, a, b);
+
+        // Ground graphs alone.
+        final Graph ground = graph(0, new int[] {~1, ~2}, new int[] {~2, ~3}, 1);
+        assertIsomorphism(true, ground, graph(0, new int[] {~1, ~2}, new int[] {~2, ~3}, 2));
+        assertIsomorphism(false, ground, graph(0, new int[] {~1, ~2}, new int[] {~2, ~4}, 2));
+    }
+
+    @Test
+    public void testSameSizeDifferentBlankTriplesAreNotIsomorphic() {
+        // A path of three blank nodes against a fork.
+        final Graph path = graph(3, new int[] {0, 1}, new int[] {1, 2}, 1);
+        final Graph fork = graph(3, new int[] {0, 0}, new int[] {1, 2}, 1);
+        assertIsomorphism(false, path, fork);
+
+        // The same shape, one blank node swapped for a ground one.
+        final Graph grounded = graph(2, new int[] {0, 1}, new int[] {1, ~0}, 1);
+        assertIsomorphism(false, path, grounded);
+    }
+
+    @Test
+    public void testDifferentSizesAreNotIsomorphic() {
+        final Graph a = graph(2, new int[] {0}, new int[] {1}, 1);
+        final Graph b = graph(2, new int[] {0, 1}, new int[] {1, 0}, 1);
+        assertFalse(GraphIsomorphism.isIsomorphic(a, b));
+        assertTrue(GraphIsomorphism.isIsomorphic(GraphFactory.createGraphMem(), GraphFactory.createGraphMem()));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.rya.jena.legacy.graph.query.BatchedBufferPipe;
+import org.apache.rya.jena.legacy.graph.query.BufferPipe;
+import org.apache.rya.jena.legacy.graph.query.Domain;
+import org.apache.rya.jena.legacy.graph.query.Pipe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the throughput of a {@link Pipe} on its own: a producer thread
+ * puts {@link #DOMAINS} domains into the pipe and closes it while the
+ * benchmark thread drains it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@OperationsPerInvocation(BufferPipeBenchmark.DOMAINS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPipeBenchmark {
+    static final int DOMAINS = 100000;
+
+    @Param({"plain", "batched"})
+    public String pipe;
+
+    private Domain[] domains;
+
+    @Setup
+    public void setUp() {
+        domains = new Domain[DOMAINS];
+        for (int i = 0; i < DOMAINS; i += 1) {
+            final Node n = NodeFactory.createURI("http://rya.apache.org/benchmark#node" + i);
+            domains[i] = new Domain(new Node[] {n, n, n});
+        }
+    }
+
+    private Pipe createPipe() {
+        if ("plain".equals(pipe)) {
+            return new BufferPipe();
+        } else if ("batched".equals(pipe)) {
+            return new BatchedBufferPipe();
+        }
+        throw new IllegalArgumentException("unknown pipe " + pipe);
+    }
+
+    @Benchmark
+    public void transfer(final Blackhole blackhole) throws InterruptedException {
+        final Pipe p = createPipe();
+        final Domain[] values = domains;
+        final Thread producer = new Thread("BufferPipeBenchmark producer") {
+            @Override
+            public void run() {
+                try {
+                    for (final Domain d : values) {
+                        p.put(d);
+                    }
+                    p.close();
+                } catch (final Exception e) {
+                    p.close(e);
+                }
+            }
+        };
+        producer.start();
+        try {
+            while (p.hasNext()) {
+                blackhole.consume(p.get());
+            }
+        } finally {
+            producer.join();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.rya.jena.legacy.graph.query.Domain;
+import org.apache.rya.jena.legacy.graph.query.GraphQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Measures {@link GraphQuery#executeBindings(Graph, Node[])} for the query
+ * shapes of {@link QueryShapes}, over an in-memory graph and over a graph
+ * backed by a Sesame {@link MemoryStore}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphQueryBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"memory", "sesame"})
+    public String store;
+
+    @Param({"star", "chain", "snowflake"})
+    public String shape;
+
+    @Param({"false", "true"})
+    public boolean constrained;
+
+    private SailRepository repository;
+    private Graph graph;
+    private GraphQuery query;
+    private Node[] results;
+
+    @Setup
+    public void setUp() throws RepositoryException {
+        if ("memory".equals(store)) {
+            graph = GraphFactory.createGraphMem();
+            QueryShapes.load(graph, size);
+        } else if ("sesame".equals(store)) {
+            repository = new SailRepository(new MemoryStore());
+            repository.initialize();
+            final RepositoryConnection connection = repository.getConnection();
+            graph = new RepositoryGraph(connection);
+            connection.begin();
+            QueryShapes.load(graph, size);
+            connection.commit();
+        } else {
+            throw new IllegalArgumentException("unknown store " + store);
+        }
+        query = QueryShapes.query(shape, constrained);
+        results = QueryShapes.results(shape);
+    }
+
+    @TearDown
+    public void tearDown() throws RepositoryException {
+        graph.close();
+        if (repository != null) {
+            repository.shutDown();
+            repository = null;
+        }
+    }
+
+    @Benchmark
+    public void executeBindings(final Blackhole blackhole) {
+        final ExtendedIterator<Domain> it = query.executeBindings(graph, results);
+        try {
+            while (it.hasNext()) {
+                blackhole.consume(it.next());
+            }
+        } finally {
+            it.close();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.benchmark;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.rya.jena.legacy.graph.query.Expression;
+import org.apache.rya.jena.legacy.graph.query.GraphQuery;
+import org.apache.rya.jena.legacy.graph.query.IndexValues;
+import org.apache.rya.jena.legacy.graph.query.Rewrite;
+import org.apache.rya.jena.legacy.graph.query.Valuator;
+import org.apache.rya.jena.legacy.graph.query.VariableIndexes;
+
+/**
+ * The data and query patterns the benchmarks run.
+ * <p>
+ * The data is a social graph of {@code size} people. Each has a name, an age
+ * and an employer, and knows the next two people. There is one organisation
+ * for every ten people, each with a name and a city, and one city for every
+ * ten organisations.
+ * <p>
+ * The patterns are:
+ * <ul>
+ * <li>{@code star}: a person's name, age and employer;</li>
+ * <li>{@code chain}: people three {@code knows} steps apart, and the
+ * employer of the last;</li>
+ * <li>{@code snowflake}: a person's name and employer, and the employer's
+ * name and city, and the city's name.</li>
+ * </ul>
+ * A constrained pattern also requires the person's name to start with
+ * "Person 1", which about one person in nine (for the sizes used) passes.
+ */
+public final class QueryShapes {
+    private static final String NS = "http://rya.apache.org/benchmark#";
+
+    static final Node NAME = uri("name");
+    static final Node AGE = uri("age");
+    static final Node KNOWS = uri("knows");
+    static final Node WORKS_FOR = uri("worksFor");
+    static final Node LOCATED_IN = uri("locatedIn");
+
+    private QueryShapes() {
+    }
+
+    private static Node uri(final String local) {
+        return NodeFactory.createURI(NS + local);
+    }
+
+    private static Node var(final String name) {
+        return NodeFactory.createVariable(name);
+    }
+
+    /**
+     * Fill {@code graph} with the data for {@code size} people.
+     * @param graph the {@link Graph}.
+     * @param size the number of people.
+     */
+    public static void load(final Graph graph, final int size) {
+        final int organisations = Math.max(1, size / 10);
+        final int cities = Math.max(1, organisations / 10);
+        for (int i = 0; i < size; i += 1) {
+            final Node person = uri("person" + i);
+            graph.add(Triple.create(person, NAME, NodeFactory.createLiteral("Person " + i)));
+            graph.add(Triple.create(person, AGE, NodeFactory.createLiteral(Integer.toString(18 + i % 60), XSDDatatype.XSDint)));
+            graph.add(Triple.create(person, WORKS_FOR, uri("org" + i % organisations)));
+            graph.add(Triple.create(person, KNOWS, uri("person" + (i + 1) % size)));
+            graph.add(Triple.create(person, KNOWS, uri("person" + (i + 2) % size)));
+        }
+        for (int i = 0; i < organisations; i += 1) {
+            final Node organisation = uri("org" + i);
+            graph.add(Triple.create(organisation, NAME, NodeFactory.createLiteral("Organisation " + i)));
+            graph.add(Triple.create(organisation, LOCATED_IN, uri("city" + i % cities)));
+        }
+        for (int i = 0; i < cities; i += 1) {
+            graph.add(Triple.create(uri("city" + i), NAME, NodeFactory.createLiteral("City " + i)));
+        }
+    }
+
+    /**
+     * @param shape "star", "chain" or "snowflake".
+     * @param constrained whether to constrain the person's name.
+     * @return the query.
+     */
+    public static GraphQuery query(final String shape, final boolean constrained) {
+        final GraphQuery q = new GraphQuery();
+        if ("star".equals(shape)) {
+            q.addMatch(var("x"), NAME, var("name"));
+            q.addMatch(var("x"), AGE, var("age"));
+            q.addMatch(var("x"), WORKS_FOR, var("org"));
+        } else if ("chain".equals(shape)) {
+            q.addMatch(var("x"), KNOWS, var("y"));
+            q.addMatch(var("y"), KNOWS, var("z"));
+            q.addMatch(var("z"), KNOWS, var("w"));
+            q.addMatch(var("w"), WORKS_FOR, var("org"));
+            if (constrained) {
+                q.addMatch(var("x"), NAME, var("name"));
+            }
+        } else if ("snowflake".equals(shape)) {
+            q.addMatch(var("x"), NAME, var("name"));
+            q.addMatch(var("x"), WORKS_FOR, var("org"));
+            q.addMatch(var("org"), NAME, var("orgName"));
+            q.addMatch(var("org"), LOCATED_IN, var("city"));
+            q.addMatch(var("city"), NAME, var("cityName"));
+        } else {
+            throw new IllegalArgumentException("unknown query shape " + shape);
+        }
+        if (constrained) {
+            q.addConstraint(Rewrite.startsWith(variable("name"), "Person 1", ""));
+        }
+        return q;
+    }
+
+    /**
+     * @return the result variables of {@code shape}.
+     */
+    public static Node[] results(final String shape) {
+        if ("chain".equals(shape)) {
+            return new Node[] {var("x"), var("w"), var("org")};
+        }
+        return new Node[] {var("x"), var("org")};
+    }
+
+    private static Expression variable(final String name) {
+        return new Expression.Variable() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public Valuator prepare(final VariableIndexes vi) {
+                final int index = vi.indexOf(name);
+                return new Valuator() {
+                    @Override
+                    public boolean evalBool(final IndexValues iv) {
+                        return ((Boolean) iv.get(index)).booleanValue();
+                    }
+
+                    @Override
+                    public Object evalObject(final IndexValues iv) {
+                        return iv.get(index);
+                    }
+                };
+            }
+        };
+    }
+}
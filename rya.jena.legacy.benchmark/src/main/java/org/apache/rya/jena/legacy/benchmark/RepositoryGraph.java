@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rya.jena.legacy.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.shared.JenaException;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.apache.jena.util.iterator.NullIterator;
+import org.apache.rya.jena.legacy.graph.query.MultiFind;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.RepositoryResult;
+import org.openrdf.rio.ntriples.NTriplesUtil;
+
+/**
+ * A Jena 3 graph over a Sesame {@link RepositoryConnection}, so that the
+ * legacy query engine can be measured against a repository. It answers
+ * {@code find} with {@code getStatements} as the Jena 2 {@code
+ * GraphRepository} of rya.jena.sesame does, which cannot be used here since
+ * it is a Jena 2 graph.
+ * <p>
+ * It is also a {@link MultiFind}: a batch of find patterns is answered with
+ * one SPARQL query per pattern shape, the concrete positions of the patterns
+ * given in a {@code VALUES} block.
+ */
+public class RepositoryGraph extends GraphBase implements MultiFind {
+    private static final String[] POSITIONS = {"s", "p", "o"};
+
+
+    private final RepositoryConnection connection;
+    private final ValueFactory valueFactory;
+
+    /**
+     * Creates a new instance of {@link RepositoryGraph}.
+     * @param connection the {@link RepositoryConnection}. (not {@code null})
+     */
+    public RepositoryGraph(final RepositoryConnection connection) {
+        this.connection = connection;
+        this.valueFactory = connection.getValueFactory();
+    }
+
+    @Override
+    public void performAdd(final Triple t) {
+        try {
+            connection.add(toResource(t.getSubject()), (URI) toValue(t.getPredicate()), toValue(t.getObject()));
+        } catch (final RepositoryException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    @Override
+    public void performDelete(final Triple t) {
+        try {
+            connection.remove(toResource(t.getSubject()), (URI) toValue(t.getPredicate()), toValue(t.getObject()));
+        } catch (final RepositoryException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(final Triple m) {
+        final Node s = m.getMatchSubject();
+        final Node p = m.getMatchPredicate();
+        final Node o = m.getMatchObject();
+        if (s != null && s.isLiteral() || p != null && !p.isURI()) {
+            return NullIterator.instance();
+        }
+        try {
+            final RepositoryResult<Statement> result = connection.getStatements(s == null ? null : toResource(s), p == null ? null : (URI) toValue(p), o == null ? null : toValue(o), true);
+            return new StatementIterator(result);
+        } catch (final RepositoryException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    @Override
+    public ExtendedIterator<Triple> findAny(final List<Triple> patterns) {
+        if (patterns.size() == 1) {
+            return find(patterns.get(0));
+        }
+        ExtendedIterator<Triple> result = NullIterator.instance();
+        final Map<List<Boolean>, List<Triple>> byShape = new LinkedHashMap<List<Boolean>, List<Triple>>();
+        for (final Triple pattern : patterns) {
+            final Node[] nodes = nodesOf(pattern);
+            if (nodes[0].isLiteral() || nodes[1].isConcrete() && !nodes[1].isURI()) {
+                continue;
+            }
+            final List<Boolean> shape = new ArrayList<Boolean>(3);
+            boolean blank = false;
+            for (final Node n : nodes) {
+                shape.add(Boolean.valueOf(n.isConcrete()));
+                blank |= n.isBlank();
+            }
+            if (blank || !shape.contains(Boolean.TRUE)) {
+                // Blank nodes cannot be written in a query, and a pattern
+                // with no concrete position matches the whole graph anyway.
+                result = result.andThen(find(pattern));
+                continue;
+            }
+            List<Triple> sameShape = byShape.get(shape);
+            if (sameShape == null) {
+                sameShape = new ArrayList<Triple>();
+                byShape.put(shape, sameShape);
+            }
+            sameShape.add(pattern);
+        }
+        for (final Map.Entry<List<Boolean>, List<Triple>> entry : byShape.entrySet()) {
+            result = result.andThen(findValues(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Answer every triple matching one of {@code patterns}, which share the
+     * concrete positions {@code shape}, with a single query.
+     */
+    private ExtendedIterator<Triple> findValues(final List<Boolean> shape, final List<Triple> patterns) {
+        final StringBuilder query = new StringBuilder("SELECT ?s ?p ?o WHERE { VALUES (");
+        for (int i = 0; i < 3; i += 1) {
+            if (shape.get(i).booleanValue()) {
+                query.append(" ?").append(POSITIONS[i]);
+            }
+        }
+        query.append(" ) {");
+        for (final Triple pattern : patterns) {
+            query.append(" (");
+            for (final Node n : nodesOf(pattern)) {
+                if (n.isConcrete()) {
+                    query.append(' ').append(NTriplesUtil.toNTriplesString(toValue(n)));
+                }
+            }
+            query.append(" )");
+        }
+        query.append(" } ?s ?p ?o }");
+        try {
+            return new BindingSetIterator(connection.prepareTupleQuery(QueryLanguage.SPARQL, query.toString()).evaluate());
+        } catch (final RepositoryException e) {
+            throw new JenaException(e);
+        } catch (final MalformedQueryException e) {
+            throw new JenaException(e);
+        } catch (final QueryEvaluationException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    private static Node[] nodesOf(final Triple pattern) {
+        return new Node[] {pattern.getSubject(), pattern.getPredicate(), pattern.getObject()};
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        try {
+            return (int) Math.min(Integer.MAX_VALUE, connection.size());
+        } catch (final RepositoryException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        } catch (final RepositoryException e) {
+            throw new JenaException(e);
+        }
+        super.close();
+    }
+
+    private Resource toResource(final Node n) {
+        return (Resource) toValue(n);
+    }
+
+    private Value toValue(final Node n) {
+        if (n.isURI()) {
+            return valueFactory.createURI(n.getURI());
+        }
+        if (n.isBlank()) {
+            return valueFactory.createBNode(n.getBlankNodeLabel());
+        }
+        final String lang = n.getLiteralLanguage();
+        if (lang != null && !lang.isEmpty()) {
+            return valueFactory.createLiteral(n.getLiteralLexicalForm(), lang);
+        }
+        final String datatype = n.getLiteralDatatypeURI();
+        if (datatype != null) {
+            return valueFactory.createLiteral(n.getLiteralLexicalForm(), valueFactory.createURI(datatype));
+        }
+        return valueFactory.createLiteral(n.getLiteralLexicalForm());
+    }
+
+    private static Node toNode(final Value v) {
+        if (v instanceof URI) {
+            return NodeFactory.createURI(v.stringValue());
+        }
+        if (v instanceof BNode) {
+            return NodeFactory.createBlankNode(((BNode) v).getID());
+        }
+        final Literal l = (Literal) v;
+        if (l.getLanguage() != null) {
+            return NodeFactory.createLiteral(l.getLabel(), l.getLanguage());
+        }
+        if (l.getDatatype() != null) {
+            return NodeFactory.createLiteral(l.getLabel(), TypeMapper.getInstance().getSafeTypeByName(l.getDatatype().stringValue()));
+        }
+        return NodeFactory.createLiteral(l.getLabel());
+    }
+
+    private static class BindingSetIterator extends NiceIterator<Triple> {
+        private final TupleQueryResult result;
+
+        /**
+         * Creates a new instance of {@link BindingSetIterator}.
+         * @param result the {@link TupleQueryResult} binding {@code ?s},
+         * {@code ?p} and {@code ?o}.
+         */
+        BindingSetIterator(final TupleQueryResult result) {
+            this.result = result;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return result.hasNext();
+            } catch (final QueryEvaluationException e) {
+                throw new JenaException(e);
+            }
+        }
+
+        @Override
+        public Triple next() {
+            try {
+                final BindingSet bs = result.next();
+                return Triple.create(toNode(bs.getValue("s")), toNode(bs.getValue("p")), toNode(bs.getValue("o")));
+            } catch (final QueryEvaluationException e) {
+                throw new JenaException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                result.close();
+            } catch (final QueryEvaluationException e) {
+                throw new JenaException(e);
+            }
+        }
+    }
+
+    private static class StatementIterator extends NiceIterator<Triple> {
+        private final RepositoryResult<Statement> result;
+
+        /**
+         * Creates a new instance of {@link StatementIterator}.
+         * @param result the {@link RepositoryResult} of {@link Statement}s.
+         */
+        StatementIterator(final RepositoryResult<Statement> result) {
+            this.result = result;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return result.hasNext();
+            } catch (final RepositoryException e) {
+                throw new JenaException(e);
+            }
+        }
+
+        @Override
+        public Triple next() {
+            try {
+                final Statement stmt = result.next();
+                return Triple.create(toNode(stmt.getSubject()), toNode(stmt.getPredicate()), toNode(stmt.getObject()));
+            } catch (final RepositoryException e) {
+                throw new JenaException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                result.close();
+            } catch (final RepositoryException e) {
+                throw new JenaException(e);
+            }
+        }
+    }
+}
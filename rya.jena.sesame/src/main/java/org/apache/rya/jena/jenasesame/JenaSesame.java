@@ -38,11 +38,34 @@ import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.sparql.core.DatasetGraph;
 import com.hp.hpl.jena.sparql.engine.QueryEngineFactory;
 import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
+import com.hp.hpl.jena.sparql.util.Symbol;
 
 /**
  * Jena API over Sesame repository
  */
 public class JenaSesame {
+    private static final String SYMBOL_PREFIX = "http://rya.apache.org/jena/sesame#";
+
+    /**
+     * Context symbol that enables parallel evaluation of independent parts of
+     * a query (top-level UNION branches and {@code GRAPH ?g} patterns split
+     * per context) on pooled connections. Off by default.
+     */
+    public static final Symbol PARALLEL_EXECUTION = Symbol.create(SYMBOL_PREFIX + "parallelExecution");
+
+    /**
+     * Context symbol that makes parallel evaluation return the results of
+     * each sub-query in query order instead of as soon as they arrive.
+     * Off by default.
+     */
+    public static final Symbol PRESERVE_ORDER = Symbol.create(SYMBOL_PREFIX + "preserveOrder");
+
+    /**
+     * Context symbol holding the maximum number of sub-queries evaluated at
+     * once. Defaults to the number of available processors.
+     */
+    public static final Symbol PARALLELISM = Symbol.create(SYMBOL_PREFIX + "parallelism");
+
     private static boolean isInitialized = false;
     private static QueryEngineFactory factory = new JenaSesameQueryEngineFactory();
     static {
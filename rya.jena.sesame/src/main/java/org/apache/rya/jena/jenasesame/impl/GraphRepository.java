@@ -33,6 +33,10 @@ import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.impl.DatasetImpl;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
 import org.openrdf.repository.RepositoryResult;
@@ -43,7 +47,6 @@ import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.graph.TripleMatch;
 import com.hp.hpl.jena.graph.query.QueryHandler;
-import com.hp.hpl.jena.graph.query.SimpleQueryHandler;
 import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.shared.PrefixMapping;
 import com.hp.hpl.jena.sparql.core.DatasetPrefixStorage;
@@ -134,7 +137,7 @@ public class GraphRepository extends GraphBase2 {
         final Node p = m.getMatchPredicate();
         final Node o = m.getMatchObject();
 
-        if (connection instanceof SailRepositoryConnection && ((SailRepositoryConnection)connection).getSailConnection() instanceof RdfCloudTripleStoreConnection) {
+        if (isRyaConnection()) {
             if (s == null && p == null && o == null) {
                 s = Node.createAnon();
             }
@@ -222,7 +225,59 @@ public class GraphRepository extends GraphBase2 {
 
     @Override
     public QueryHandler queryHandler() {
-        return new SimpleQueryHandler(this);
+        return new GraphRepositoryQueryHandler(this);
+    }
+
+    /**
+     * @return the {@link RepositoryConnection} this graph reads and writes.
+     */
+    RepositoryConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return the {@link ValueFactory} of the connection.
+     */
+    ValueFactory getValueFactory() {
+        return valueFactory;
+    }
+
+    /**
+     * Prepares a SPARQL query over this graph: its default graph is the
+     * graph's contexts, or all of the repository if it has none. Only call
+     * this when the contexts are all URIs.
+     * @param query the SPARQL query.
+     * @return the {@link TupleQuery}.
+     */
+    TupleQuery prepareTupleQuery(final String query) {
+        try {
+            final TupleQuery tupleQuery = connection.prepareTupleQuery(QueryLanguage.SPARQL, query);
+            if (contexts.length > 0) {
+                final DatasetImpl dataset = new DatasetImpl();
+                for (final Resource context : contexts) {
+                    dataset.addDefaultGraph((URI) context);
+                }
+                tupleQuery.setDataset(dataset);
+            }
+            return tupleQuery;
+        } catch (final RepositoryException | MalformedQueryException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    /**
+     * @return the contexts this graph is restricted to; empty for all of
+     * them.
+     */
+    Resource[] getContexts() {
+        return contexts;
+    }
+
+    /**
+     * @return {@code true} if the connection is to a Rya triple store.
+     */
+    boolean isRyaConnection() {
+        return connection instanceof SailRepositoryConnection && ((SailRepositoryConnection)connection).getSailConnection() instanceof RdfCloudTripleStoreConnection;
     }
 }
 
@@ -0,0 +1,434 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.apache.rya.api.domain.RangeURI;
+import org.apache.rya.api.domain.RangeValue;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.DatasetImpl;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.RepositoryResult;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.query.Applyer;
+import com.hp.hpl.jena.graph.query.Domain;
+import com.hp.hpl.jena.graph.query.ExpressionSet;
+import com.hp.hpl.jena.graph.query.Mapping;
+import com.hp.hpl.jena.graph.query.Matcher;
+import com.hp.hpl.jena.graph.query.PatternStageBase;
+import com.hp.hpl.jena.graph.query.QueryNode;
+import com.hp.hpl.jena.graph.query.QueryTriple;
+import com.hp.hpl.jena.graph.query.StageElement;
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * A pattern stage over a {@link GraphRepository} that pushes string-match
+ * constraints down to the repository. For a pattern whose object is first
+ * bound by that pattern and constrained by a case-sensitive prefix match,
+ * and a Rya-backed repository, the pattern is answered by range scans of
+ * Rya's object index over the URIs and the plain literals with that prefix.
+ * Failing that, a prefix match on a subject first bound by the pattern is
+ * answered by a range scan of Rya's subject index over the URIs with that
+ * prefix. Any other string match on a variable first bound by a pattern (in
+ * its subject or object) is sent with that pattern as a SPARQL
+ * {@code FILTER}.
+ * <p>
+ * The constraints are still evaluated by the stage's guards as usual; the
+ * pushdown only narrows what is fetched. Typed literals other than
+ * {@code xsd:string} are outside the range scanned for a prefix.
+ */
+public class GraphRepositoryPatternStage extends PatternStageBase {
+    private static final Logger log = Logger.getLogger(GraphRepositoryPatternStage.class);
+
+    /**
+     * Appended to a prefix to give the (inclusive) end of its range: the
+     * greatest code point, which sorts after any continuation of the prefix.
+     */
+    private static final String RANGE_END = new String(Character.toChars(Character.MAX_CODE_POINT));
+
+    private final GraphRepository repository;
+
+    /**
+     * For each pattern, the prefix to range-scan its object on, or
+     * {@code null}.
+     */
+    private final String[] prefixes;
+
+    /**
+     * For each pattern without an object prefix, the prefix to range-scan
+     * its subject on, or {@code null}.
+     */
+    private final String[] subjectPrefixes;
+
+    /**
+     * For each pattern, the SPARQL query to find its triples with, or
+     * {@code null}.
+     */
+    private final String[] queries;
+
+    /**
+     * Creates a new instance of {@link GraphRepositoryPatternStage}.
+     * @param graph the {@link GraphRepository}.
+     * @param map the {@link Mapping}.
+     * @param constraints the {@link ExpressionSet} of constraints.
+     * @param triples the {@link Triple}s.
+     * @param matches the string matches among {@code constraints}.
+     */
+    public GraphRepositoryPatternStage(final GraphRepository graph, final Mapping map, final ExpressionSet constraints, final Triple[] triples, final List<StringMatch> matches) {
+        super(QueryNode.factory, graph, map, constraints, triples);
+        this.repository = graph;
+        this.prefixes = new String[classified.length];
+        this.subjectPrefixes = new String[classified.length];
+        this.queries = new String[classified.length];
+        final boolean rya = graph.isRyaConnection();
+        final boolean sparql = hasUriContexts(graph.getContexts());
+        for (int i = 0; i < classified.length; i += 1) {
+            final List<StringMatch> onSubject = matchesOn(classified[i].S, matches);
+            final List<StringMatch> onObject = matchesOn(classified[i].O, matches);
+            final String prefix = rya ? prefixOf(onObject) : null;
+            final String subjectPrefix = rya && prefix == null ? prefixOf(onSubject) : null;
+            if (prefix != null) {
+                prefixes[i] = prefix;
+            } else if (subjectPrefix != null) {
+                subjectPrefixes[i] = subjectPrefix;
+            } else if (sparql && (!onSubject.isEmpty() || !onObject.isEmpty())) {
+                queries[i] = toQuery(onSubject, onObject);
+            }
+        }
+    }
+
+    /**
+     * @param graph the {@link GraphRepository}.
+     * @param map the {@link Mapping}, before the patterns are classified.
+     * @param triples the {@link Triple}s.
+     * @param matches the string matches among the constraints.
+     * @return {@code true} if the stage for {@code triples} would answer some
+     * pattern by a range scan: the repository is Rya-backed, and a subject
+     * or object variable first bound by its pattern has a non-empty
+     * case-sensitive prefix match.
+     */
+    static boolean hasRangeScan(final GraphRepository graph, final Mapping map, final Triple[] triples, final List<StringMatch> matches) {
+        if (matches.isEmpty() || !graph.isRyaConnection()) {
+            return false;
+        }
+        final Set<String> prefixed = new HashSet<String>();
+        for (final StringMatch match : matches) {
+            if (match.isPrefix() && match.getText().length() > 0) {
+                prefixed.add(match.getVariable());
+            }
+        }
+        // The patterns bind their variables in order, as classifying them
+        // does; a variable already bound is not range-scanned.
+        final Set<Node> bound = new HashSet<Node>();
+        for (final Triple t : triples) {
+            final Node[] nodes = {t.getSubject(), t.getPredicate(), t.getObject()};
+            for (int i = 0; i < nodes.length; i += 1) {
+                final Node n = nodes[i];
+                if (n.isVariable() && !map.hasBound(n) && bound.add(n) && i != 1 && prefixed.contains(n.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasUriContexts(final Resource[] contexts) {
+        for (final Resource context : contexts) {
+            if (!(context instanceof URI)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the matches on the variable that {@code node} binds, if it is
+     * the binding occurrence of a variable.
+     */
+    private static List<StringMatch> matchesOn(final QueryNode node, final List<StringMatch> matches) {
+        final List<StringMatch> result = new ArrayList<StringMatch>();
+        if (node instanceof QueryNode.Bind) {
+            for (final StringMatch match : matches) {
+                if (match.getVariable().equals(node.node.getName())) {
+                    result.add(match);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String prefixOf(final List<StringMatch> matches) {
+        for (final StringMatch match : matches) {
+            if (match.isPrefix() && match.getText().length() > 0) {
+                return match.getText();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param vf the {@link ValueFactory}.
+     * @param prefix the case-sensitive prefix.
+     * @param onSubject whether the ranges are for a subject, which can only
+     * be a URI, rather than an object.
+     * @return the ranges to scan for the values starting with
+     * {@code prefix}: the URIs, and for an object also the plain literals.
+     */
+    static List<Value> rangesFor(final ValueFactory vf, final String prefix, final boolean onSubject) {
+        final List<Value> result = new ArrayList<Value>(2);
+        result.add(new RangeURI(new PrefixURI(prefix), new PrefixURI(prefix + RANGE_END)));
+        if (!onSubject) {
+            result.add(new RangeValue<Literal>(vf.createLiteral(prefix), vf.createLiteral(prefix + RANGE_END)));
+        }
+        return result;
+    }
+
+    private static String toQuery(final List<StringMatch> onSubject, final List<StringMatch> onObject) {
+        final StringBuilder filter = new StringBuilder();
+        for (final StringMatch match : onSubject) {
+            filter.append(filter.length() == 0 ? "" : " && ").append(match.toSparql("?s"));
+        }
+        for (final StringMatch match : onObject) {
+            filter.append(filter.length() == 0 ? "" : " && ").append(match.toSparql("?o"));
+        }
+        return "SELECT ?s ?p ?o WHERE { ?s ?p ?o . FILTER (" + filter + ") }";
+    }
+
+    @Override
+    protected StageElement makeFindStageElement(final int index, final StageElement next) {
+        final Applyer applyer;
+        if (prefixes[index] != null) {
+            applyer = new RangeApplyer(classified[index], prefixes[index], false);
+        } else if (subjectPrefixes[index] != null) {
+            applyer = new RangeApplyer(classified[index], subjectPrefixes[index], true);
+        } else if (queries[index] != null) {
+            applyer = new FilterApplyer(classified[index], queries[index]);
+        } else {
+            return super.makeFindStageElement(index, next);
+        }
+        return new StageElement.FindTriples(this, classified[index].createMatcher(), applyer, next);
+    }
+
+    /**
+     * @return the value of {@code n} in the current domain, or {@code null}
+     * if it is unbound.
+     */
+    private static Node concrete(final Node n) {
+        return n.equals(Node.ANY) ? null : n;
+    }
+
+    /**
+     * Answers a pattern by range scans of its object (one over URIs, one over
+     * plain literals) or of its subject (over URIs); see {@link #rangesFor}.
+     */
+    private final class RangeApplyer extends Applyer {
+        private final QueryTriple pattern;
+        private final boolean onSubject;
+        private final List<Value> ranges;
+
+        RangeApplyer(final QueryTriple pattern, final String prefix, final boolean onSubject) {
+            this.pattern = pattern;
+            this.onSubject = onSubject;
+            this.ranges = rangesFor(repository.getValueFactory(), prefix, onSubject);
+        }
+
+        @Override
+        public void applyToTriples(final Domain d, final Matcher m, final StageElement next) {
+            final Node s = concrete(pattern.S.finder(d));
+            final Node p = concrete(pattern.P.finder(d));
+            final Node o = concrete(pattern.O.finder(d));
+            if (s != null && s.isLiteral() || p != null && !p.isURI()) {
+                return;
+            }
+            final ValueFactory vf = repository.getValueFactory();
+            final URI pred = p == null ? null : Convert.nodeToURI(vf, p);
+            if (onSubject) {
+                final Value obj = o == null ? null : Convert.nodeToValue(vf, o);
+                for (final Value range : ranges) {
+                    scan((Resource) range, pred, obj, d, m, next);
+                }
+            } else {
+                final Resource subj = s == null ? null : Convert.nodeToResource(vf, s);
+                for (final Value range : ranges) {
+                    scan(subj, pred, range, d, m, next);
+                }
+            }
+        }
+
+        private void scan(final Resource subj, final URI pred, final Value obj, final Domain d, final Matcher m, final StageElement next) {
+            RepositoryResult<Statement> it = null;
+            try {
+                it = repository.getConnection().getStatements(subj, pred, obj, true, repository.getContexts());
+                while (stillOpen && it.hasNext()) {
+                    if (m.match(d, Convert.statementToTriple(it.next()))) {
+                        next.run(d);
+                    }
+                }
+            } catch (final RepositoryException e) {
+                throw new JenaException(e);
+            } finally {
+                closeQuietly(it);
+            }
+        }
+    }
+
+    /**
+     * Answers a pattern with a SPARQL query carrying its string matches as a
+     * {@code FILTER}; the values already bound are passed as bindings.
+     */
+    private final class FilterApplyer extends Applyer {
+        private final QueryTriple pattern;
+        private final TupleQuery query;
+
+        FilterApplyer(final QueryTriple pattern, final String queryString) {
+            this.pattern = pattern;
+            try {
+                this.query = repository.getConnection().prepareTupleQuery(QueryLanguage.SPARQL, queryString);
+            } catch (final RepositoryException | MalformedQueryException e) {
+                throw new JenaException(e);
+            }
+            final Resource[] contexts = repository.getContexts();
+            if (contexts.length > 0) {
+                final DatasetImpl dataset = new DatasetImpl();
+                for (final Resource context : contexts) {
+                    dataset.addDefaultGraph((URI) context);
+                }
+                query.setDataset(dataset);
+            }
+        }
+
+        @Override
+        public void applyToTriples(final Domain d, final Matcher m, final StageElement next) {
+            final Node s = concrete(pattern.S.finder(d));
+            final Node p = concrete(pattern.P.finder(d));
+            final Node o = concrete(pattern.O.finder(d));
+            if (s != null && s.isLiteral() || p != null && !p.isURI()) {
+                return;
+            }
+            final ValueFactory vf = repository.getValueFactory();
+            query.clearBindings();
+            if (s != null) {
+                query.setBinding("s", Convert.nodeToResource(vf, s));
+            }
+            if (p != null) {
+                query.setBinding("p", Convert.nodeToURI(vf, p));
+            }
+            if (o != null) {
+                query.setBinding("o", Convert.nodeToValue(vf, o));
+            }
+            TupleQueryResult result = null;
+            try {
+                result = query.evaluate();
+                while (stillOpen && result.hasNext()) {
+                    final BindingSet bs = result.next();
+                    final Triple t = new Triple(
+                        s != null ? s : Convert.valueToNode(bs.getValue("s")),
+                        p != null ? p : Convert.valueToNode(bs.getValue("p")),
+                        o != null ? o : Convert.valueToNode(bs.getValue("o")));
+                    if (m.match(d, t)) {
+                        next.run(d);
+                    }
+                }
+            } catch (final QueryEvaluationException e) {
+                throw new JenaException(e);
+            } finally {
+                if (result != null) {
+                    try {
+                        result.close();
+                    } catch (final QueryEvaluationException e) {
+                        log.debug("Failed to close query result.", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(final RepositoryResult<Statement> it) {
+        if (it != null) {
+            try {
+                it.close();
+            } catch (final RepositoryException e) {
+                log.debug("Failed to close statements.", e);
+            }
+        }
+    }
+
+    /**
+     * A bound of a URI range. It is only ever compared lexically by Rya, so
+     * unlike the repository's own URIs it need not be an absolute URI (a
+     * prefix such as {@code "ht"} is not).
+     */
+    private static final class PrefixURI implements URI {
+        private static final long serialVersionUID = 1L;
+
+        private final String value;
+
+        PrefixURI(final String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String stringValue() {
+            return value;
+        }
+
+        @Override
+        public String getNamespace() {
+            return "";
+        }
+
+        @Override
+        public String getLocalName() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof URI && value.equals(((URI) o).stringValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.query.ExpressionSet;
+import com.hp.hpl.jena.graph.query.Mapping;
+import com.hp.hpl.jena.graph.query.SimpleQueryHandler;
+import com.hp.hpl.jena.graph.query.Stage;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+/**
+ * The {@link SimpleQueryHandler} of a {@link GraphRepository}. A pattern
+ * stage that a Rya-backed repository can answer in part by a range scan on a
+ * prefix is answered pattern by pattern (see
+ * {@link GraphRepositoryPatternStage}). Other pattern stages are answered by
+ * one SPARQL query each where the patterns can be written in SPARQL (see
+ * {@link GraphRepositoryQueryStage}); otherwise, string-match constraints on
+ * pattern variables are pushed down to the repository pattern by pattern.
+ * The distinct objects, subjects or predicates of a pattern are asked of the
+ * repository with a {@code SELECT DISTINCT} and streamed from its result.
+ */
+public class GraphRepositoryQueryHandler extends SimpleQueryHandler {
+    private static final Logger log = Logger.getLogger(GraphRepositoryQueryHandler.class);
+
+    /**
+     * Whether string-match constraints are pushed down to the repository;
+     * set by the system property {@code rya.jena.sesame.pushdown} ("true" by
+     * default).
+     */
+    public static boolean pushDownStringMatches = Boolean.parseBoolean(System.getProperty("rya.jena.sesame.pushdown", "true"));
+
+    /**
+     * Whether a whole pattern stage is answered by one SPARQL query; set by
+     * the system property {@code rya.jena.sesame.translate} ("true" by
+     * default).
+     */
+    public static boolean translateStages = Boolean.parseBoolean(System.getProperty("rya.jena.sesame.translate", "true"));
+
+    /**
+     * Whether {@link #objectsFor}, {@link #subjectsFor} and
+     * {@link #predicatesFor} are answered by a {@code SELECT DISTINCT}; set
+     * by the system property {@code rya.jena.sesame.distinct} ("true" by
+     * default).
+     */
+    public static boolean pushDownDistinct = Boolean.parseBoolean(System.getProperty("rya.jena.sesame.distinct", "true"));
+
+    private final GraphRepository graphRepository;
+
+    /**
+     * Creates a new instance of {@link GraphRepositoryQueryHandler}.
+     * @param graph the {@link GraphRepository}. (not {@code null})
+     */
+    public GraphRepositoryQueryHandler(final GraphRepository graph) {
+        super(graph);
+        this.graphRepository = graph;
+    }
+
+    @Override
+    public Stage patternStage(final Mapping map, final ExpressionSet constraints, final Triple[] t) {
+        // Collected before the stage plants its guards, which takes them out
+        // of the constraint set.
+        final List<StringMatch> matches = pushDownStringMatches ? StringMatch.allOf(constraints) : Collections.<StringMatch>emptyList();
+        // A Rya range scan beats a FILTER in a translated query, which Rya
+        // cannot use to narrow its index scan.
+        if (GraphRepositoryPatternStage.hasRangeScan(graphRepository, map, t, matches)) {
+            return new GraphRepositoryPatternStage(graphRepository, map, constraints, t, matches);
+        }
+        if (translateStages && GraphRepositoryQueryStage.canTranslate(graphRepository, t)) {
+            return new GraphRepositoryQueryStage(graphRepository, map, constraints, t, matches);
+        }
+        if (!matches.isEmpty()) {
+            return new GraphRepositoryPatternStage(graphRepository, map, constraints, t, matches);
+        }
+        return super.patternStage(map, constraints, t);
+    }
+
+    @Override
+    public ExtendedIterator<Node> objectsFor(final Node s, final Node p) {
+        final ExtendedIterator<Node> result = selectDistinct(s, p, null);
+        return result == null ? super.objectsFor(s, p) : result;
+    }
+
+    @Override
+    public ExtendedIterator<Node> subjectsFor(final Node p, final Node o) {
+        final ExtendedIterator<Node> result = selectDistinct(null, p, o);
+        return result == null ? super.subjectsFor(p, o) : result;
+    }
+
+    @Override
+    public ExtendedIterator<Node> predicatesFor(final Node s, final Node o) {
+        final ExtendedIterator<Node> result = selectDistinct(s, null, o);
+        return result == null ? super.predicatesFor(s, o) : result;
+    }
+
+    /**
+     * Select the distinct values of the {@code null} position of a pattern.
+     * @return the values, streamed from the query result, or {@code null}
+     * if the pattern is not pushed down: pushing down is switched off, the
+     * pattern cannot be written in SPARQL, or neither other position is
+     * concrete (a scan of the whole store).
+     */
+    private ExtendedIterator<Node> selectDistinct(final Node s, final Node p, final Node o) {
+        final Node[] nodes = {s, p, o};
+        boolean concrete = false;
+        for (int i = 0; i < nodes.length; i += 1) {
+            if (nodes[i] != null && nodes[i].isConcrete()) {
+                concrete = true;
+            } else if (nodes[i] != null) {
+                nodes[i] = Node.ANY;
+            }
+        }
+        if (!pushDownDistinct || !concrete) {
+            return null;
+        }
+        final Triple pattern = Triple.create(nodes[0] == null ? Node.ANY : nodes[0], nodes[1] == null ? Node.ANY : nodes[1], nodes[2] == null ? Node.ANY : nodes[2]);
+        if (!GraphRepositoryQueryStage.canTranslate(graphRepository, new Triple[] {pattern})) {
+            return null;
+        }
+        final StringBuilder b = new StringBuilder("SELECT DISTINCT ?x WHERE {");
+        int any = 0;
+        for (final Node n : nodes) {
+            b.append(' ');
+            if (n == null) {
+                b.append("?x");
+            } else if (n.equals(Node.ANY)) {
+                b.append("?_any").append(any++);
+            } else {
+                b.append(GraphRepositoryQueryStage.toSparql(n));
+            }
+        }
+        b.append(" }");
+        try {
+            return new DistinctValueIterator(graphRepository.prepareTupleQuery(b.toString()).evaluate(), "x");
+        } catch (final QueryEvaluationException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    /**
+     * The values of one binding of a query result, read as they are asked
+     * for. The result is closed once exhausted, or when the iterator is.
+     */
+    private static class DistinctValueIterator extends NiceIterator<Node> {
+        private final TupleQueryResult result;
+        private final String name;
+        private boolean open = true;
+
+        /**
+         * Creates a new instance of {@link DistinctValueIterator}.
+         * @param result the {@link TupleQueryResult}. (not {@code null})
+         * @param name the name of the binding to read.
+         */
+        public DistinctValueIterator(final TupleQueryResult result, final String name) {
+            this.result = result;
+            this.name = name;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!open) {
+                return false;
+            }
+            try {
+                if (result.hasNext()) {
+                    return true;
+                }
+            } catch (final QueryEvaluationException e) {
+                close();
+                throw new JenaException(e);
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("DistinctValueIterator");
+            }
+            try {
+                return Convert.valueToNode(result.next().getValue(name));
+            } catch (final QueryEvaluationException e) {
+                close();
+                throw new JenaException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                try {
+                    result.close();
+                } catch (final QueryEvaluationException e) {
+                    log.debug("Failed to close query result.", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.query.BufferPipe;
+import com.hp.hpl.jena.graph.query.Domain;
+import com.hp.hpl.jena.graph.query.ExpressionSet;
+import com.hp.hpl.jena.graph.query.GuardArranger;
+import com.hp.hpl.jena.graph.query.Mapping;
+import com.hp.hpl.jena.graph.query.Pipe;
+import com.hp.hpl.jena.graph.query.Stage;
+import com.hp.hpl.jena.graph.query.ValuatorSet;
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * A pattern stage over a {@link GraphRepository} that is answered by a
+ * single SPARQL query, so that the repository joins the whole group of
+ * patterns itself instead of the stage walking it one {@code find} at a
+ * time.
+ * <p>
+ * The variables already bound by earlier stages are passed in a
+ * {@code VALUES} block, {@link #batchSize} incoming domains per query; a
+ * domain binding a blank node is queried on its own with the blank node set
+ * as a query binding. String-match constraints go into the query as a
+ * {@code FILTER}. All constraints that the patterns bind every variable of
+ * are also evaluated on each result, as the guards of a pattern stage would
+ * be, since most cannot be expressed in SPARQL.
+ */
+public class GraphRepositoryQueryStage extends Stage {
+    private static final Logger log = Logger.getLogger(GraphRepositoryQueryStage.class);
+
+    /**
+     * How many incoming domains are answered by one query; taken from the
+     * system property {@code rya.jena.sesame.stage.batchsize} (100).
+     */
+    public static int batchSize = Integer.parseInt(System.getProperty("rya.jena.sesame.stage.batchsize", "100"));
+
+    private static int count = 0;
+
+    private final GraphRepository repository;
+    private final ValuatorSet[] guards;
+
+    /**
+     * The query's variables (by SPARQL name) bound by earlier stages, with
+     * their domain indexes.
+     */
+    private final Map<String, Integer> inputs = new LinkedHashMap<String, Integer>();
+
+    /**
+     * The query's variables (by SPARQL name) that this stage binds, with
+     * their domain indexes.
+     */
+    private final Map<String, Integer> outputs = new LinkedHashMap<String, Integer>();
+
+    /**
+     * The query's graph pattern, without its {@code VALUES} block.
+     */
+    private final String pattern;
+
+    /**
+     * Creates a new instance of {@link GraphRepositoryQueryStage}. Check
+     * {@link #canTranslate} first.
+     * @param graph the {@link GraphRepository}.
+     * @param map the {@link Mapping}.
+     * @param constraints the {@link ExpressionSet} of constraints.
+     * @param triples the {@link Triple}s.
+     * @param matches the string matches among {@code constraints}.
+     */
+    public GraphRepositoryQueryStage(final GraphRepository graph, final Mapping map, final ExpressionSet constraints, final Triple[] triples, final List<StringMatch> matches) {
+        this.repository = graph;
+        final Map<Node, String> names = new HashMap<Node, String>();
+        final StringBuilder b = new StringBuilder("{");
+        int any = 0;
+        for (final Triple t : triples) {
+            for (final Node n : new Node[] {t.getSubject(), t.getPredicate(), t.getObject()}) {
+                b.append(' ');
+                if (n.equals(Node.ANY)) {
+                    b.append("?_any").append(any++);
+                } else if (n.isVariable()) {
+                    b.append('?').append(nameOf(map, names, n));
+                } else {
+                    b.append(toSparql(n));
+                }
+            }
+            b.append(" .");
+        }
+        for (final StringMatch match : matches) {
+            final String name = names.get(Node.createVariable(match.getVariable()));
+            if (name != null && outputs.containsKey(name)) {
+                b.append(" FILTER ").append(match.toSparql("?" + name));
+            }
+        }
+        this.pattern = b.append(" }").toString();
+        this.guards = new GuardArranger(triples).makeGuards(map, constraints);
+    }
+
+    /**
+     * @return the SPARQL name of variable {@code v}, giving it a domain index
+     * (if it is not bound yet) and a name on first sight.
+     */
+    private String nameOf(final Mapping map, final Map<Node, String> names, final Node v) {
+        String name = names.get(v);
+        if (name == null) {
+            if (map.hasBound(v)) {
+                name = "v" + map.indexOf(v);
+                inputs.put(name, Integer.valueOf(map.indexOf(v)));
+            } else {
+                final int index = map.newIndex(v);
+                name = "v" + index;
+                outputs.put(name, Integer.valueOf(index));
+            }
+            names.put(v, name);
+        }
+        return name;
+    }
+
+    /**
+     * @param graph the {@link GraphRepository}.
+     * @param triples the {@link Triple} patterns.
+     * @return {@code true} if the patterns can be sent as SPARQL: they hold
+     * no blank nodes or unusable URIs, and the graph's contexts are URIs.
+     */
+    public static boolean canTranslate(final GraphRepository graph, final Triple[] triples) {
+        for (final Resource context : graph.getContexts()) {
+            if (!(context instanceof URI)) {
+                return false;
+            }
+        }
+        for (final Triple t : triples) {
+            for (final Node n : new Node[] {t.getSubject(), t.getPredicate(), t.getObject()}) {
+                if (n.isConcrete() && toSparql(n) == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code n} as a SPARQL term, or {@code null} if it cannot be
+     * written as one.
+     */
+    static String toSparql(final Node n) {
+        if (n.isURI()) {
+            final String uri = n.getURI();
+            for (int i = 0; i < uri.length(); i += 1) {
+                final char c = uri.charAt(i);
+                if (c <= ' ' || "<>\"{}|^`\\".indexOf(c) >= 0) {
+                    return null;
+                }
+            }
+            return "<" + uri + ">";
+        }
+        if (n.isLiteral()) {
+            final String lexical = StringMatch.quote(n.getLiteralLexicalForm());
+            final String lang = n.getLiteralLanguage();
+            final String datatype = n.getLiteralDatatypeURI();
+            if (lang != null && lang.length() > 0) {
+                return lexical + "@" + lang;
+            }
+            if (datatype != null) {
+                final String type = toSparql(Node.createURI(datatype));
+                return type == null ? null : lexical + "^^" + type;
+            }
+            return lexical;
+        }
+        return null;
+    }
+
+    @Override
+    public Pipe deliver(final Pipe sink) {
+        final Pipe source = previous.deliver(new BufferPipe());
+        final Thread thread = new Thread("GraphRepositoryQueryStage-" + ++count) {
+            @Override
+            public void run() {
+                GraphRepositoryQueryStage.this.run(source, sink);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return sink;
+    }
+
+    private void run(final Pipe source, final Pipe sink) {
+        try {
+            final List<Domain> batch = new ArrayList<Domain>();
+            while (stillOpen && source.hasNext()) {
+                final Domain d = source.get();
+                if (inputs.isEmpty() || !hasValuesRow(d)) {
+                    answer(d, sink);
+                } else {
+                    batch.add(d);
+                    if (batch.size() >= Math.max(1, batchSize)) {
+                        answer(batch, sink);
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                answer(batch, sink);
+            }
+        } catch (final Exception e) {
+            log.debug("GraphRepositoryQueryStage has caught and forwarded an exception", e);
+            sink.close(e);
+            return;
+        }
+        sink.close();
+    }
+
+    /**
+     * @return {@code true} if every input value of {@code d} can be written
+     * in a {@code VALUES} block.
+     */
+    private boolean hasValuesRow(final Domain d) {
+        for (final Integer index : inputs.values()) {
+            if (toSparql(d.getElement(index.intValue())) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Answer a single domain, passing its input values as query bindings.
+     */
+    private void answer(final Domain d, final Pipe sink) {
+        final TupleQuery query = prepare(pattern);
+        for (final Map.Entry<String, Integer> input : inputs.entrySet()) {
+            query.setBinding(input.getKey(), Convert.nodeToValue(repository.getValueFactory(), d.getElement(input.getValue().intValue())));
+        }
+        evaluate(query, sink, new Origin() {
+            @Override
+            public List<Domain> of(final BindingSet bs) {
+                final List<Domain> result = new ArrayList<Domain>(1);
+                result.add(d);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Answer a batch of domains with one query, their input values in a
+     * {@code VALUES} block.
+     */
+    private void answer(final List<Domain> batch, final Pipe sink) {
+        final Map<List<Node>, List<Domain>> byInputs = new HashMap<List<Node>, List<Domain>>();
+        final StringBuilder values = new StringBuilder(" VALUES (");
+        for (final String name : inputs.keySet()) {
+            values.append(" ?").append(name);
+        }
+        values.append(" ) {");
+        for (final Domain d : batch) {
+            final List<Node> key = inputsOf(d);
+            List<Domain> domains = byInputs.get(key);
+            if (domains == null) {
+                domains = new ArrayList<Domain>(1);
+                byInputs.put(key, domains);
+                values.append(" (");
+                for (final Node n : key) {
+                    values.append(' ').append(toSparql(n));
+                }
+                values.append(" )");
+            }
+            domains.add(d);
+        }
+        values.append(" }");
+        evaluate(prepare(pattern + values), sink, new Origin() {
+            @Override
+            public List<Domain> of(final BindingSet bs) {
+                final List<Node> key = new ArrayList<Node>(inputs.size());
+                for (final String name : inputs.keySet()) {
+                    key.add(Convert.valueToNode(bs.getValue(name)));
+                }
+                return byInputs.get(key);
+            }
+        });
+    }
+
+    private List<Node> inputsOf(final Domain d) {
+        final List<Node> result = new ArrayList<Node>(inputs.size());
+        for (final Integer index : inputs.values()) {
+            result.add(d.getElement(index.intValue()));
+        }
+        return result;
+    }
+
+    private TupleQuery prepare(final String where) {
+        final StringBuilder select = new StringBuilder("SELECT");
+        for (final String name : inputs.keySet()) {
+            select.append(" ?").append(name);
+        }
+        for (final String name : outputs.keySet()) {
+            select.append(" ?").append(name);
+        }
+        if (inputs.isEmpty() && outputs.isEmpty()) {
+            select.append(" *");
+        }
+        return repository.prepareTupleQuery(select + " WHERE " + where);
+    }
+
+    /**
+     * Finds the incoming domains a result row extends.
+     */
+    private interface Origin {
+        List<Domain> of(BindingSet bs);
+    }
+
+    private void evaluate(final TupleQuery query, final Pipe sink, final Origin origin) {
+        TupleQueryResult result = null;
+        try {
+            result = query.evaluate();
+            while (stillOpen && result.hasNext()) {
+                final BindingSet bs = result.next();
+                final List<Domain> domains = origin.of(bs);
+                if (domains == null) {
+                    continue;
+                }
+                for (final Domain d : domains) {
+                    final Domain extended = d.copy();
+                    for (final Map.Entry<String, Integer> output : outputs.entrySet()) {
+                        final Value value = bs.getValue(output.getKey());
+                        extended.setElement(output.getValue().intValue(), value == null ? null : Convert.valueToNode(value));
+                    }
+                    if (passesGuards(extended)) {
+                        sink.put(extended);
+                    }
+                }
+            }
+        } catch (final QueryEvaluationException e) {
+            throw new JenaException(e);
+        } finally {
+            if (result != null) {
+                try {
+                    result.close();
+                } catch (final QueryEvaluationException e) {
+                    log.debug("Failed to close query result.", e);
+                }
+            }
+        }
+    }
+
+    private boolean passesGuards(final Domain d) {
+        for (final ValuatorSet guard : guards) {
+            if (guard.isNonTrivial() && !guard.evalBool(d)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -51,6 +51,7 @@ public class JenaSesameDatasetGraph implements DatasetGraph {
 
     private final Lock lock = new LockMRSW();
     private final RepositoryConnection connection;
+    private ParallelQueryExecutor parallelQueryExecutor = null;
 
     /**
      * Creates a new instance of {@link JenaSesameDatasetGraph}.
@@ -67,8 +68,30 @@ public class JenaSesameDatasetGraph implements DatasetGraph {
         return connection;
     }
 
+    /**
+     * Returns the executor used to evaluate independent sub-queries
+     * concurrently, creating it on first use.
+     * @param parallelism the maximum number of sub-queries one execution
+     * evaluates at once; the executor is changed to it if it differs.
+     * @return the {@link ParallelQueryExecutor}.
+     */
+    public synchronized ParallelQueryExecutor getParallelQueryExecutor(final int parallelism) {
+        if (parallelQueryExecutor == null) {
+            parallelQueryExecutor = new ParallelQueryExecutor(connection, parallelism);
+        } else if (parallelQueryExecutor.getParallelism() != parallelism) {
+            parallelQueryExecutor.setParallelism(parallelism);
+        }
+        return parallelQueryExecutor;
+    }
+
     @Override
     public void close() {
+        synchronized (this) {
+            if (parallelQueryExecutor != null) {
+                parallelQueryExecutor.close();
+                parallelQueryExecutor = null;
+            }
+        }
         try {
             connection.close();
         } catch (final RepositoryException e) {
@@ -26,6 +26,10 @@ package org.apache.rya.jena.jenasesame.impl;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.List;
+
+import org.apache.rya.jena.jenasesame.JenaSesame;
+import org.apache.rya.jena.jenasesame.impl.ParallelQueryExecutor.SubQuery;
 import org.openjena.atlas.lib.Closeable;
 import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryEvaluationException;
@@ -81,6 +85,13 @@ public class JenaSesameQueryEngine extends QueryEngineBase {
     // This is the one that matters!
     @Override
     public Plan getPlan() {
+        if (context != null && context.isTrue(JenaSesame.PARALLEL_EXECUTION)) {
+            final Plan plan = getParallelPlan();
+            if (plan != null) {
+                return plan;
+            }
+        }
+
         // Create query execution.
         try {
             final TupleQuery tupleQuery = jsdg.getConnection().prepareTupleQuery(QueryLanguage.SPARQL, query.toString());
@@ -107,6 +118,54 @@ public class JenaSesameQueryEngine extends QueryEngineBase {
             throw new ARQException(e);
         }
     }
+
+    /**
+     * Creates a plan that evaluates the independent parts of the query
+     * concurrently.
+     * @return the {@link Plan}, or {@code null} if the query can not be split.
+     */
+    private Plan getParallelPlan() {
+        final List<SubQuery> subQueries;
+        try {
+            subQueries = ParallelQueryExecutor.split(query, jsdg.getConnection());
+        } catch (final RepositoryException e) {
+            throw new ARQException(e);
+        }
+        if (subQueries.isEmpty()) {
+            return null;
+        }
+
+        final ParallelQueryExecutor executor = jsdg.getParallelQueryExecutor(getParallelism());
+        final boolean preserveOrder = context.isTrue(JenaSesame.PRESERVE_ORDER);
+        final QueryIterator queryIter = executor.execute(subQueries, preserveOrder);
+        final Closeable closeable = new Closeable() {
+            @Override
+            public void close() {
+                queryIter.close();
+            }
+        };
+
+        return new PlanBase(null, closeable) {
+            @Override
+            protected QueryIterator iteratorOnce() {
+                return queryIter;
+            }
+        };
+    }
+
+    private int getParallelism() {
+        final Object value = context.get(JenaSesame.PARALLELISM);
+        if (value instanceof Number) {
+            return Math.max(1, ((Number) value).intValue());
+        } else if (value != null) {
+            try {
+                return Math.max(1, Integer.parseInt(value.toString().trim()));
+            } catch (final NumberFormatException e) {
+                throw new ARQException("Invalid parallelism: " + value, e);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
 }
 
 /*
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.impl.DatasetImpl;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.RepositoryResult;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.syntax.ElementNamedGraph;
+import com.hp.hpl.jena.sparql.syntax.ElementUnion;
+
+/**
+ * Evaluates the independent parts of a query concurrently. A SELECT query
+ * whose pattern is a UNION is split into one sub-query per branch, and a
+ * query whose pattern is a single {@code GRAPH ?g} block is split into one
+ * sub-query per context in the repository. Each sub-query runs on its own
+ * pooled connection and the result streams are merged by a
+ * {@link QueryIteratorParallel}.
+ * <p>
+ * Every execution gets its own slots: it runs at most
+ * {@link #getParallelism()} sub-queries at once, on threads and connections
+ * that no other execution waits for. An execution that is only partly read
+ * holds its slots, blocked on its full buffers, until it is closed, but a
+ * second execution on the same dataset (a nested query per row, say) still
+ * gets slots of its own. Threads and connections are reused across
+ * executions once released.
+ * <p>
+ * Only queries whose solution sequence is the plain concatenation of the
+ * sub-query solutions are split, so anything with DISTINCT, REDUCED,
+ * ORDER BY, LIMIT, OFFSET, grouping or projected expressions is left for the
+ * single connection path. Pooled connections are separate from the
+ * connection the dataset was created with, so uncommitted changes on that
+ * connection are not visible to the sub-queries.
+ */
+public class ParallelQueryExecutor {
+    private static final int DEFAULT_BUFFER_SIZE = 1000;
+
+    private final RepositoryConnectionPool pool;
+    private final ExecutorService executor;
+    private final int bufferSize;
+    private volatile int parallelism;
+
+    /**
+     * Creates a new instance of {@link ParallelQueryExecutor}.
+     * @param connection the {@link RepositoryConnection} whose repository
+     * the pooled connections are opened on. (not {@code null})
+     * @param parallelism the maximum number of sub-queries one execution
+     * evaluates at once. (must be positive)
+     */
+    public ParallelQueryExecutor(final RepositoryConnection connection, final int parallelism) {
+        this(connection, parallelism, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new instance of {@link ParallelQueryExecutor}.
+     * @param connection the {@link RepositoryConnection} whose repository
+     * the pooled connections are opened on. (not {@code null})
+     * @param parallelism the maximum number of sub-queries one execution
+     * evaluates at once. (must be positive)
+     * @param bufferSize the number of solutions each sub-query may read ahead
+     * of the consumer. (must be positive)
+     */
+    public ParallelQueryExecutor(final RepositoryConnection connection, final int parallelism, final int bufferSize) {
+        checkNotNull(connection);
+        checkArgument(parallelism > 0, "parallelism must be positive");
+        checkArgument(bufferSize > 0, "bufferSize must be positive");
+        this.pool = new RepositoryConnectionPool(connection.getRepository(), parallelism);
+        this.executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+        this.bufferSize = bufferSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the maximum number of sub-queries one execution evaluates at
+     * once.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the maximum number of sub-queries one execution evaluates at once;
+     * executions started afterwards use it.
+     * @param parallelism the maximum number. (must be positive)
+     */
+    public void setParallelism(final int parallelism) {
+        checkArgument(parallelism > 0, "parallelism must be positive");
+        this.parallelism = parallelism;
+        pool.setMaxIdle(parallelism);
+    }
+
+    /**
+     * Splits a query into independent sub-queries.
+     * @param query the {@link Query} to split. (not {@code null})
+     * @param connection the {@link RepositoryConnection} used to list the
+     * contexts of the repository. (not {@code null})
+     * @return the sub-queries, or an empty list if the query can not be split
+     * into at least two parts.
+     * @throws RepositoryException if the contexts could not be listed.
+     */
+    public static List<SubQuery> split(final Query query, final RepositoryConnection connection) throws RepositoryException {
+        checkNotNull(query);
+        checkNotNull(connection);
+        if (!isSplittable(query)) {
+            return Collections.emptyList();
+        }
+
+        final Element pattern = unwrap(query.getQueryPattern());
+        final List<SubQuery> subQueries = new ArrayList<>();
+        if (pattern instanceof ElementUnion) {
+            final List<Element> branches = new ArrayList<>();
+            flattenUnion((ElementUnion) pattern, branches);
+            for (final Element branch : branches) {
+                final Query subQuery = query.cloneQuery();
+                subQuery.setQueryPattern(asGroup(branch));
+                subQueries.add(new SubQuery(subQuery.toString(), null));
+            }
+        } else if (pattern instanceof ElementNamedGraph && ((ElementNamedGraph) pattern).getGraphNameNode().isVariable()) {
+            final String queryString = query.toString();
+            final RepositoryResult<Resource> contexts = connection.getContextIDs();
+            try {
+                while (contexts.hasNext()) {
+                    final Resource context = contexts.next();
+                    if (!(context instanceof URI)) {
+                        // A dataset can only name graphs by URI.
+                        return Collections.emptyList();
+                    }
+                    final DatasetImpl dataset = new DatasetImpl();
+                    dataset.addNamedGraph((URI) context);
+                    subQueries.add(new SubQuery(queryString, dataset));
+                }
+            } finally {
+                contexts.close();
+            }
+        }
+
+        if (subQueries.size() < 2) {
+            return Collections.emptyList();
+        }
+        return subQueries;
+    }
+
+    /**
+     * Starts evaluating the sub-queries and returns an iterator over their
+     * merged results.
+     * @param subQueries the sub-queries from {@link #split(Query, RepositoryConnection)}.
+     * (not {@code null})
+     * @param preserveOrder {@code true} to return the results of each
+     * sub-query in order, {@code false} to return results as they arrive.
+     * @return the {@link QueryIterator} over the merged results.
+     */
+    public QueryIterator execute(final List<SubQuery> subQueries, final boolean preserveOrder) {
+        checkNotNull(subQueries);
+        final QueryIteratorParallel iterator = new QueryIteratorParallel(pool, subQueries, preserveOrder, bufferSize);
+        iterator.start(executor, parallelism);
+        return iterator;
+    }
+
+    /**
+     * Stops the worker threads and closes the pooled connections.
+     */
+    public void close() {
+        executor.shutdownNow();
+        pool.close();
+    }
+
+    private static boolean isSplittable(final Query query) {
+        return query.isSelectType()
+            && !query.isDistinct()
+            && !query.isReduced()
+            && !query.hasOrderBy()
+            && !query.hasLimit()
+            && !query.hasOffset()
+            && !query.hasGroupBy()
+            && !query.hasHaving()
+            && !query.hasAggregators()
+            && !query.hasBindings()
+            && !query.hasDatasetDescription()
+            && query.getProject().getExprs().isEmpty();
+    }
+
+    private static Element unwrap(final Element element) {
+        Element current = element;
+        while (current instanceof ElementGroup && ((ElementGroup) current).getElements().size() == 1) {
+            current = ((ElementGroup) current).getElements().get(0);
+        }
+        return current;
+    }
+
+    private static void flattenUnion(final ElementUnion union, final List<Element> branches) {
+        for (final Element element : union.getElements()) {
+            final Element branch = unwrap(element);
+            if (branch instanceof ElementUnion) {
+                flattenUnion((ElementUnion) branch, branches);
+            } else {
+                branches.add(element);
+            }
+        }
+    }
+
+    private static ElementGroup asGroup(final Element element) {
+        if (element instanceof ElementGroup) {
+            return (ElementGroup) element;
+        }
+        final ElementGroup group = new ElementGroup();
+        group.addElement(element);
+        return group;
+    }
+
+    /**
+     * One independent part of a split query.
+     */
+    public static final class SubQuery {
+        private final String queryString;
+        private final Dataset dataset;
+
+        /**
+         * Creates a new instance of {@link SubQuery}.
+         * @param queryString the SPARQL query string. (not {@code null})
+         * @param dataset the {@link Dataset} the query is restricted to, or
+         * {@code null} to query the whole repository.
+         */
+        public SubQuery(final String queryString, final Dataset dataset) {
+            this.queryString = checkNotNull(queryString);
+            this.dataset = dataset;
+        }
+
+        /**
+         * @return the SPARQL query string.
+         */
+        public String getQueryString() {
+            return queryString;
+        }
+
+        /**
+         * @return the {@link Dataset} the query is restricted to, or
+         * {@code null} to query the whole repository.
+         */
+        public Dataset getDataset() {
+            return dataset;
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+        private final int poolNumber = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "jena-sesame-parallel-" + poolNumber + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
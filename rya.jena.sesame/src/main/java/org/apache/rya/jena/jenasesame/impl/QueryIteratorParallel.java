@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.rya.jena.jenasesame.impl.ParallelQueryExecutor.SubQuery;
+import org.openjena.atlas.io.IndentedWriter;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryConnection;
+
+import com.hp.hpl.jena.sparql.ARQException;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorBase;
+import com.hp.hpl.jena.sparql.serializer.SerializationContext;
+
+/**
+ * Query Iterator that merges the results of sub-queries evaluated
+ * concurrently. Each sub-query is read by a worker into a bounded buffer,
+ * so a slow consumer holds the workers back rather than letting the buffers
+ * grow. The workers, and the connections they borrow, belong to this
+ * iterator alone until it is closed or they run out of sub-queries. In ordered mode every sub-query has its own buffer and the buffers
+ * are drained one after another; otherwise all sub-queries share one buffer
+ * and results are returned as they arrive.
+ */
+public class QueryIteratorParallel extends QueryIteratorBase {
+    private static final Logger log = Logger.getLogger(QueryIteratorParallel.class);
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private static final Object END = new Object();
+
+    private final RepositoryConnectionPool pool;
+    private final List<SubQuery> subQueries;
+    private final boolean preserveOrder;
+    private final List<BlockingQueue<Object>> buffers = new ArrayList<>();
+    private final List<Future<?>> futures = new ArrayList<>();
+
+    private volatile boolean cancelled = false;
+    private int finished = 0;
+    private Binding nextBinding = null;
+
+    /**
+     * Creates a new instance of {@link QueryIteratorParallel}.
+     * @param pool the {@link RepositoryConnectionPool} the sub-queries run
+     * on. (not {@code null})
+     * @param subQueries the sub-queries to evaluate. (not {@code null})
+     * @param preserveOrder {@code true} to return the results of each
+     * sub-query in order.
+     * @param bufferSize the number of solutions each sub-query may read ahead
+     * of the consumer.
+     */
+    public QueryIteratorParallel(final RepositoryConnectionPool pool, final List<SubQuery> subQueries, final boolean preserveOrder, final int bufferSize) {
+        this.pool = checkNotNull(pool);
+        this.subQueries = new ArrayList<>(checkNotNull(subQueries));
+        this.preserveOrder = preserveOrder;
+        if (preserveOrder) {
+            for (int i = 0; i < this.subQueries.size(); i++) {
+                buffers.add(new ArrayBlockingQueue<>(bufferSize));
+            }
+        } else {
+            buffers.add(new ArrayBlockingQueue<>(bufferSize * Math.max(1, this.subQueries.size())));
+        }
+    }
+
+    /**
+     * Starts up to {@code parallelism} workers, each of which evaluates the
+     * next sub-query not yet taken until none are left. Sub-queries are taken
+     * in query order so that, in ordered mode, the sub-query being drained is
+     * always running.
+     * @param executor the {@link ExecutorService} that runs the workers.
+     * (not {@code null})
+     * @param parallelism the maximum number of sub-queries evaluated at once.
+     */
+    void start(final ExecutorService executor, final int parallelism) {
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while (!cancelled && (index = next.getAndIncrement()) < subQueries.size()) {
+                    evaluate(subQueries.get(index), preserveOrder ? buffers.get(index) : buffers.get(0));
+                }
+            }
+        };
+        final int workers = Math.min(Math.max(1, parallelism), subQueries.size());
+        for (int i = 0; i < workers; i++) {
+            try {
+                futures.add(executor.submit(worker));
+            } catch (final RejectedExecutionException e) {
+                if (i == 0) {
+                    // Nothing will run; fail every sub-query the consumer may wait on.
+                    for (final BlockingQueue<Object> buffer : buffers) {
+                        put(buffer, e);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void evaluate(final SubQuery subQuery, final BlockingQueue<Object> buffer) {
+        RepositoryConnection connection = null;
+        TupleQueryResult result = null;
+        try {
+            connection = pool.borrow();
+            final TupleQuery tupleQuery = connection.prepareTupleQuery(QueryLanguage.SPARQL, subQuery.getQueryString());
+            if (subQuery.getDataset() != null) {
+                tupleQuery.setDataset(subQuery.getDataset());
+            }
+            result = tupleQuery.evaluate();
+            final QueryIteratorSesame iterator = new QueryIteratorSesame(result);
+            while (!cancelled && iterator.hasNext()) {
+                if (!put(buffer, iterator.nextBinding())) {
+                    return;
+                }
+            }
+            put(buffer, END);
+        } catch (final Exception e) {
+            put(buffer, e);
+        } finally {
+            if (result != null) {
+                try {
+                    result.close();
+                } catch (final Exception e) {
+                    log.warn("Encountered an error closing a sub-query result.", e);
+                }
+            }
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Adds an item to a buffer, waiting for space unless the iterator has been
+     * closed.
+     * @return {@code true} if the item was added.
+     */
+    private boolean put(final BlockingQueue<Object> buffer, final Object item) {
+        try {
+            while (!cancelled) {
+                if (buffer.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        if (nextBinding != null) {
+            return true;
+        }
+        while (finished < subQueries.size()) {
+            final BlockingQueue<Object> buffer = preserveOrder ? buffers.get(finished) : buffers.get(0);
+            final Object item;
+            try {
+                item = buffer.take();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ARQException("Interrupted while waiting for sub-query results", e);
+            }
+            if (item == END) {
+                finished++;
+            } else if (item instanceof Throwable) {
+                throw new ARQException("Sub-query evaluation failed", (Throwable) item);
+            } else {
+                nextBinding = (Binding) item;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!hasNextBinding()) {
+            throw new NoSuchElementException();
+        }
+        final Binding binding = nextBinding;
+        nextBinding = null;
+        return binding;
+    }
+
+    @Override
+    protected void closeIterator() {
+        cancelled = true;
+        for (final Future<?> future : futures) {
+            future.cancel(false);
+        }
+        for (final BlockingQueue<Object> buffer : buffers) {
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void output(final IndentedWriter out, final SerializationContext sCxt) {
+        out.print("QueryIteratorParallel[" + subQueries.size() + (preserveOrder ? " ordered" : "") + "]");
+    }
+}
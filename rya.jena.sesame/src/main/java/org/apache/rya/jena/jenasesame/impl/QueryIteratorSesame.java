@@ -81,8 +81,11 @@ public class QueryIteratorSesame extends QueryIteratorBase {
 
             for (final String bindingName : result.getBindingNames()) {
                 final Value value = bindingSet.getValue(bindingName);
-                final Node node = Convert.valueToNode(value);
-                arqBinding.add(Var.alloc(bindingName), node);
+                if (value != null) {
+                    // Variables that are unbound in this solution are left out.
+                    final Node node = Convert.valueToNode(value);
+                    arqBinding.add(Var.alloc(bindingName), node);
+                }
             }
             return arqBinding;
         } catch (final QueryEvaluationException e) {
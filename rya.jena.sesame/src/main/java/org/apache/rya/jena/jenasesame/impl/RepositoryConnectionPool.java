@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+
+/**
+ * A cache of {@link RepositoryConnection}s on one {@link Repository}.
+ * Connections are opened on demand, so a borrower never waits for another to
+ * release one, and up to a maximum number of released connections are kept
+ * open for reuse until the pool is closed. Each borrower bounds how many
+ * connections it holds at once.
+ */
+public class RepositoryConnectionPool {
+    private static final Logger log = Logger.getLogger(RepositoryConnectionPool.class);
+
+    private final Repository repository;
+    private volatile int maxIdle;
+    private final LinkedBlockingQueue<RepositoryConnection> idle = new LinkedBlockingQueue<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new instance of {@link RepositoryConnectionPool}.
+     * @param repository the {@link Repository} to open connections on.
+     * (not {@code null})
+     * @param maxIdle the maximum number of released connections kept open.
+     * (must be positive)
+     */
+    public RepositoryConnectionPool(final Repository repository, final int maxIdle) {
+        this.repository = checkNotNull(repository);
+        setMaxIdle(maxIdle);
+    }
+
+    /**
+     * @return the maximum number of released connections kept open.
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Sets the maximum number of released connections kept open; surplus
+     * idle connections are closed as they are released.
+     * @param maxIdle the maximum number. (must be positive)
+     */
+    public void setMaxIdle(final int maxIdle) {
+        checkArgument(maxIdle > 0, "maxIdle must be positive");
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Takes an idle connection from the pool, or opens a new one if there is
+     * none.
+     * @return an open {@link RepositoryConnection}.
+     * @throws RepositoryException if the pool is closed or a connection could
+     * not be opened.
+     */
+    public RepositoryConnection borrow() throws RepositoryException {
+        while (true) {
+            if (closed) {
+                throw new RepositoryException("Connection pool is closed");
+            }
+            final RepositoryConnection pooled = idle.poll();
+            if (pooled == null) {
+                return repository.getConnection();
+            }
+            if (pooled.isOpen()) {
+                return pooled;
+            }
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Connections released after the pool
+     * has been closed, or while it already keeps as many idle connections as
+     * it may, are closed immediately.
+     * @param connection the {@link RepositoryConnection} taken from
+     * {@link #borrow()}. ({@code null} is ignored)
+     */
+    public void release(final RepositoryConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        if (closed || idle.size() >= maxIdle) {
+            closeQuietly(connection);
+            return;
+        }
+        idle.offer(connection);
+        if (closed && idle.remove(connection)) {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Closes every idle connection. Connections still borrowed are closed as
+     * they are released.
+     */
+    public void close() {
+        closed = true;
+        RepositoryConnection connection;
+        while ((connection = idle.poll()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    private static void closeQuietly(final RepositoryConnection connection) {
+        try {
+            connection.close();
+        } catch (final RepositoryException e) {
+            log.warn("Encountered an error closing a pooled connection.", e);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.query.Expression;
+import com.hp.hpl.jena.graph.query.ExpressionFunctionURIs;
+import com.hp.hpl.jena.graph.query.ExpressionSet;
+import com.hp.hpl.jena.graph.query.Rewrite;
+
+/**
+ * A string-match constraint on a single variable, as produced by
+ * {@link Rewrite#rewriteStringMatch}: the variable's lexical form starts
+ * with, ends with or contains some text, optionally ignoring case. It can be
+ * pushed down to the repository as a range scan (for a case-sensitive
+ * prefix) or a SPARQL {@code FILTER}.
+ */
+final class StringMatch {
+    /**
+     * How the text is matched.
+     */
+    enum Kind {
+        STARTS_WITH("STRSTARTS"),
+        ENDS_WITH("STRENDS"),
+        CONTAINS("CONTAINS");
+
+        private final String sparqlFunction;
+
+        private Kind(final String sparqlFunction) {
+            this.sparqlFunction = sparqlFunction;
+        }
+    }
+
+    private final String variable;
+    private final Kind kind;
+    private final String text;
+    private final boolean caseInsensitive;
+
+    private StringMatch(final String variable, final Kind kind, final String text, final boolean caseInsensitive) {
+        this.variable = variable;
+        this.kind = kind;
+        this.text = text;
+        this.caseInsensitive = caseInsensitive;
+    }
+
+    /**
+     * @param e the {@link Expression}.
+     * @return the {@link StringMatch} that {@code e} is, or {@code null} if it
+     * is not a string match on a variable.
+     */
+    static StringMatch of(final Expression e) {
+        if (!e.isApply() || e.argCount() != 2 || !e.getArg(0).isVariable() || !e.getArg(1).isConstant()) {
+            return null;
+        }
+        final Object value = e.getArg(1).getValue();
+        if (!(value instanceof String)) {
+            return null;
+        }
+        final String name = e.getArg(0).getName();
+        final String text = (String) value;
+        final String f = e.getFun();
+        if (ExpressionFunctionURIs.J_startsWith.equals(f)) {
+            return new StringMatch(name, Kind.STARTS_WITH, text, false);
+        } else if (ExpressionFunctionURIs.J_startsWithInsensitive.equals(f)) {
+            return new StringMatch(name, Kind.STARTS_WITH, text, true);
+        } else if (ExpressionFunctionURIs.J_EndsWith.equals(f)) {
+            return new StringMatch(name, Kind.ENDS_WITH, text, false);
+        } else if (ExpressionFunctionURIs.J_endsWithInsensitive.equals(f)) {
+            return new StringMatch(name, Kind.ENDS_WITH, text, true);
+        } else if (ExpressionFunctionURIs.J_contains.equals(f)) {
+            return new StringMatch(name, Kind.CONTAINS, text, false);
+        } else if (ExpressionFunctionURIs.J_containsInsensitive.equals(f)) {
+            return new StringMatch(name, Kind.CONTAINS, text, true);
+        }
+        return null;
+    }
+
+    /**
+     * @param constraints the {@link ExpressionSet}.
+     * @return the string matches among {@code constraints}.
+     */
+    static List<StringMatch> allOf(final ExpressionSet constraints) {
+        final List<StringMatch> result = new ArrayList<StringMatch>();
+        final Iterator<Expression> it = constraints.iterator();
+        while (it.hasNext()) {
+            final StringMatch match = of(it.next());
+            if (match != null) {
+                result.add(match);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the name of the constrained variable.
+     */
+    String getVariable() {
+        return variable;
+    }
+
+    /**
+     * @return {@code true} if this is a case-sensitive prefix match, which a
+     * Rya range scan can answer.
+     */
+    boolean isPrefix() {
+        return kind == Kind.STARTS_WITH && !caseInsensitive;
+    }
+
+    /**
+     * @return the text matched against.
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * @param sparqlVariable the SPARQL variable (with its {@code ?}) holding
+     * the constrained value.
+     * @return a SPARQL expression that is true for every value this match
+     * accepts. Blank nodes are let through, since their lexical form (the
+     * label) cannot be tested in SPARQL.
+     */
+    String toSparql(final String sparqlVariable) {
+        final String value = caseInsensitive ? "LCASE(STR(" + sparqlVariable + "))" : "STR(" + sparqlVariable + ")";
+        final String matched = caseInsensitive ? text.toLowerCase() : text;
+        return "(isBlank(" + sparqlVariable + ") || " + kind.sparqlFunction + "(" + value + ", " + quote(matched) + "))";
+    }
+
+    /**
+     * @param s the text.
+     * @return {@code s} as a SPARQL string literal.
+     */
+    static String quote(final String s) {
+        final StringBuilder b = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i += 1) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                b.append("\\\"");
+                break;
+            case '\\':
+                b.append("\\\\");
+                break;
+            case '\n':
+                b.append("\\n");
+                break;
+            case '\r':
+                b.append("\\r");
+                break;
+            case '\t':
+                b.append("\\t");
+                break;
+            default:
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toSparql("?" + variable);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.rya.jena.jenasesame.impl.JenaSesameDatasetGraph;
+import org.apache.rya.jena.jenasesame.impl.ParallelQueryExecutor;
+import org.apache.rya.jena.jenasesame.impl.ParallelQueryExecutor.SubQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+
+/**
+ * Tests parallel evaluation of independent sub-queries through {@link JenaSesame}.
+ */
+public class JenaSesameParallelTest {
+    private static final String NS = "http://example/";
+
+    private Repository repo;
+
+    @Before
+    public void setUp() throws Exception {
+        repo = new SailRepository(new MemoryStore());
+        repo.initialize();
+
+        final RepositoryConnection addConnection = repo.getConnection();
+        try {
+            final ValueFactory vf = addConnection.getValueFactory();
+            final URI name = vf.createURI(NS + "name");
+            final URI email = vf.createURI(NS + "email");
+            for (int i = 0; i < 50; i++) {
+                final URI context = vf.createURI(NS + "graph" + (i % 5));
+                final URI person = vf.createURI(NS + "person" + i);
+                addConnection.add(person, name, vf.createLiteral("Person " + i), context);
+                addConnection.add(person, email, vf.createLiteral("person" + i + "@example.com"), context);
+            }
+        } finally {
+            addConnection.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (repo != null) {
+            repo.shutDown();
+        }
+    }
+
+    @Test
+    public void testUnionBranchesInParallel() throws Exception {
+        final String queryString = "PREFIX : <" + NS + "> SELECT ?s ?v { { ?s :name ?v } UNION { ?s :email ?v } }";
+        final Set<String> expected = toSet(select(queryString, false, false));
+        final List<String> actual = select(queryString, true, false);
+
+        assertEquals(100, expected.size());
+        assertEquals(100, actual.size());
+        assertEquals(expected, toSet(actual));
+    }
+
+    @Test
+    public void testUnionBranchesInParallelPreservesOrder() throws Exception {
+        final String queryString = "PREFIX : <" + NS + "> SELECT ?s ?n ?e { { ?s :name ?n } UNION { ?s :email ?e } UNION { ?s :name ?n . ?s :email ?e } }";
+        final List<String> actual = select(queryString, true, true);
+
+        assertEquals(150, actual.size());
+        // Solutions of each branch come out before those of the next branch.
+        for (int i = 0; i < 150; i++) {
+            final String solution = actual.get(i);
+            final boolean hasName = solution.contains("n=");
+            final boolean hasEmail = solution.contains("e=");
+            if (i < 50) {
+                assertEquals(true, hasName && !hasEmail);
+            } else if (i < 100) {
+                assertEquals(true, !hasName && hasEmail);
+            } else {
+                assertEquals(true, hasName && hasEmail);
+            }
+        }
+    }
+
+    @Test
+    public void testNamedGraphsInParallel() throws Exception {
+        final String queryString = "PREFIX : <" + NS + "> SELECT ?g ?s { GRAPH ?g { ?s :name ?n } }";
+        final Set<String> expected = toSet(select(queryString, false, false));
+        final List<String> actual = select(queryString, true, false);
+
+        assertEquals(50, expected.size());
+        assertEquals(50, actual.size());
+        assertEquals(expected, toSet(actual));
+    }
+
+    @Test(timeout = 30000)
+    public void testInterleavedExecutionsDoNotWaitForEachOther() throws Exception {
+        final RepositoryConnection connection = repo.getConnection();
+        // One sub-query at a time and two solutions of read-ahead, so the
+        // first execution's worker blocks on its full buffer.
+        final ParallelQueryExecutor executor = new ParallelQueryExecutor(connection, 1, 2);
+        try {
+            final Query query = QueryFactory.create("PREFIX : <" + NS + "> SELECT ?s ?v { { ?s :name ?v } UNION { ?s :email ?v } }");
+            final List<SubQuery> subQueries = ParallelQueryExecutor.split(query, connection);
+            assertEquals(2, subQueries.size());
+
+            final QueryIterator outer = executor.execute(subQueries, false);
+            try {
+                assertTrue(outer.hasNext());
+                outer.next();
+                // A nested execution on the same executor still runs.
+                final QueryIterator inner = executor.execute(subQueries, true);
+                int count = 0;
+                try {
+                    while (inner.hasNext()) {
+                        inner.next();
+                        count++;
+                    }
+                } finally {
+                    inner.close();
+                }
+                assertEquals(100, count);
+            } finally {
+                outer.close();
+            }
+        } finally {
+            executor.close();
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testParallelismFollowsTheSetting() throws Exception {
+        final JenaSesameDatasetGraph datasetGraph = new JenaSesameDatasetGraph(repo.getConnection());
+        try {
+            final ParallelQueryExecutor executor = datasetGraph.getParallelQueryExecutor(2);
+            assertEquals(2, executor.getParallelism());
+            assertSame(executor, datasetGraph.getParallelQueryExecutor(4));
+            assertEquals(4, executor.getParallelism());
+        } finally {
+            datasetGraph.close();
+        }
+    }
+
+    private List<String> select(final String queryString, final boolean parallel, final boolean preserveOrder) throws RepositoryException {
+        // Closing the dataset closes its connection and any pooled connections.
+        final Dataset dataset = JenaSesame.createDataset(repo.getConnection());
+        final QueryExecution queryExecution = QueryExecutionFactory.create(queryString, dataset);
+        try {
+            if (parallel) {
+                queryExecution.getContext().setTrue(JenaSesame.PARALLEL_EXECUTION);
+                queryExecution.getContext().set(JenaSesame.PRESERVE_ORDER, preserveOrder);
+                queryExecution.getContext().set(JenaSesame.PARALLELISM, 2);
+            }
+            final ResultSet results = queryExecution.execSelect();
+            final List<String> solutions = new ArrayList<>();
+            while (results.hasNext()) {
+                final QuerySolution solution = results.nextSolution();
+                final StringBuilder builder = new StringBuilder();
+                for (final String var : results.getResultVars()) {
+                    if (solution.contains(var)) {
+                        builder.append(var).append('=').append(solution.get(var)).append(' ');
+                    }
+                }
+                solutions.add(builder.toString());
+            }
+            return solutions;
+        } finally {
+            queryExecution.close();
+            dataset.close();
+        }
+    }
+
+    private static Set<String> toSet(final List<String> solutions) {
+        final Set<String> set = new HashSet<>(solutions);
+        assertEquals(solutions.size(), set.size());
+        return set;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.rya.jena.jenasesame.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.apache.rya.api.domain.RangeURI;
+import org.apache.rya.api.domain.RangeValue;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.query.BufferPipe;
+import com.hp.hpl.jena.graph.query.Domain;
+import com.hp.hpl.jena.graph.query.Expression;
+import com.hp.hpl.jena.graph.query.ExpressionSet;
+import com.hp.hpl.jena.graph.query.IndexValues;
+import com.hp.hpl.jena.graph.query.Mapping;
+import com.hp.hpl.jena.graph.query.Pipe;
+import com.hp.hpl.jena.graph.query.Query;
+import com.hp.hpl.jena.graph.query.Rewrite;
+import com.hp.hpl.jena.graph.query.Stage;
+import com.hp.hpl.jena.graph.query.Valuator;
+import com.hp.hpl.jena.graph.query.VariableIndexes;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+public class GraphRepositoryQueryHandlerTest {
+    private static final String NS = "http://example/";
+
+    private Repository repo;
+    private RepositoryConnection connection;
+    private GraphRepository graph;
+
+    @Before
+    public void setUp() throws Exception {
+        repo = new SailRepository(new MemoryStore());
+        repo.initialize();
+        connection = repo.getConnection();
+        final ValueFactory vf = connection.getValueFactory();
+        final URI name = vf.createURI(NS + "name");
+        final URI knows = vf.createURI(NS + "knows");
+        for (int i = 0; i < 30; i++) {
+            final URI person = vf.createURI(NS + (i % 2 == 0 ? "person" : "robot") + i);
+            connection.add(person, name, vf.createLiteral((i % 3 == 0 ? "Smith " : "Jones ") + i));
+            if (i % 2 == 0 && i < 26) {
+                connection.add(person, knows, vf.createURI(NS + "person" + (i + 2)));
+                connection.add(person, knows, vf.createURI(NS + "person" + (i + 4)));
+            }
+        }
+        graph = new GraphRepository(connection);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        GraphRepositoryQueryHandler.pushDownStringMatches = true;
+        GraphRepositoryQueryHandler.translateStages = true;
+        GraphRepositoryQueryStage.batchSize = 100;
+        GraphRepositoryQueryHandler.pushDownDistinct = true;
+        connection.close();
+        repo.shutDown();
+    }
+
+    private static Expression variable(final String name) {
+        return new Expression.Variable() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public Valuator prepare(final VariableIndexes vi) {
+                final int index = vi.indexOf(name);
+                return new Valuator() {
+                    @Override
+                    public boolean evalBool(final IndexValues iv) {
+                        return ((Boolean) iv.get(index)).booleanValue();
+                    }
+
+                    @Override
+                    public Object evalObject(final IndexValues iv) {
+                        return iv.get(index);
+                    }
+                };
+            }
+        };
+    }
+
+    private List<List<Node>> run(final Expression constraint, final List<Stage> stages) {
+        return run(new Query().addMatch(Query.X, Node.createURI(NS + "name"), Query.Y).addConstraint(constraint), stages, Query.X, Query.Y);
+    }
+
+    /**
+     * @return the rows of {@code q}, sorted but with any duplicates kept.
+     */
+    private List<List<Node>> run(final Query q, final List<Stage> stages, final Node... results) {
+        final List<List<Node>> result = new ArrayList<List<Node>>();
+        final ExtendedIterator<Domain> it = q.executeBindings(graph, stages, results);
+        try {
+            while (it.hasNext()) {
+                result.add(new ArrayList<Node>(it.next().subList(0, results.length)));
+            }
+        } finally {
+            it.close();
+        }
+        Collections.sort(result, new Comparator<List<Node>>() {
+            @Override
+            public int compare(final List<Node> a, final List<Node> b) {
+                return a.toString().compareTo(b.toString());
+            }
+        });
+        return result;
+    }
+
+    private void assertSameAsUnpushed(final Expression constraint, final int expected) {
+        final List<Stage> stages = new ArrayList<Stage>();
+        final List<List<Node>> translated = run(constraint, stages);
+        assertTrue(stages.get(0) instanceof GraphRepositoryQueryStage);
+        GraphRepositoryQueryHandler.translateStages = false;
+        stages.clear();
+        final List<List<Node>> withPushdown = run(constraint, stages);
+        assertTrue(stages.get(0) instanceof GraphRepositoryPatternStage);
+        GraphRepositoryQueryHandler.pushDownStringMatches = false;
+        final List<List<Node>> withoutPushdown = run(constraint, new ArrayList<Stage>());
+        assertEquals(withoutPushdown, withPushdown);
+        assertEquals(withoutPushdown, translated);
+        assertEquals(expected, withPushdown.size());
+    }
+
+    @Test
+    public void testObjectPrefix() {
+        assertSameAsUnpushed(Rewrite.startsWith(variable("Y"), "Smith", ""), 10);
+    }
+
+    @Test
+    public void testObjectContainsIgnoringCase() {
+        assertSameAsUnpushed(Rewrite.contains(variable("Y"), "ONES 1", "i"), 8);
+    }
+
+    @Test
+    public void testSubjectSuffix() {
+        assertSameAsUnpushed(Rewrite.endsWith(variable("X"), "t7", ""), 1);
+    }
+
+    @Test
+    public void testPrefixRanges() {
+        final ValueFactory vf = connection.getValueFactory();
+        final List<Value> objectRanges = GraphRepositoryPatternStage.rangesFor(vf, "Smith", false);
+        assertEquals(2, objectRanges.size());
+        assertTrue(objectRanges.get(0) instanceof RangeURI);
+        assertTrue(((RangeValue<?>) objectRanges.get(1)).getStart() instanceof Literal);
+        for (final Value range : objectRanges) {
+            assertInRange(range, "Smith", true);
+            assertInRange(range, "Smith 0", true);
+            assertInRange(range, "Smith\uFFFD", true);
+            assertInRange(range, "Smith" + new String(Character.toChars(0x10000)), true);
+            assertInRange(range, "Smit", false);
+            assertInRange(range, "Smiti", false);
+            assertInRange(range, "Jones 1", false);
+        }
+        final List<Value> subjectRanges = GraphRepositoryPatternStage.rangesFor(vf, NS + "robot", true);
+        assertEquals(1, subjectRanges.size());
+        assertTrue(subjectRanges.get(0) instanceof RangeURI);
+        assertInRange(subjectRanges.get(0), NS + "robot7", true);
+        assertInRange(subjectRanges.get(0), NS + "person8", false);
+    }
+
+    /**
+     * Check whether {@code value} lies in {@code range} in the order Rya
+     * scans its index, that of the UTF-8 bytes.
+     */
+    private static void assertInRange(final Value range, final String value, final boolean expected) {
+        final RangeValue<?> r = (RangeValue<?>) range;
+        final byte[] v = utf8(value);
+        final boolean in = compare(utf8(r.getStart().stringValue()), v) <= 0 && compare(v, utf8(r.getEnd().stringValue())) <= 0;
+        assertEquals(value, expected, in);
+    }
+
+    private static byte[] utf8(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int compare(final byte[] a, final byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            final int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @return the stage the handler of a Rya-backed {@link GraphRepository}
+     * builds for {@code triples} under {@code constraint}.
+     */
+    private Stage ryaStage(final Expression constraint, final Triple... triples) {
+        return ryaStage(new Mapping(new Node[] {Query.X, Query.Y}), constraint, triples);
+    }
+
+    private Stage ryaStage(final Mapping map, final Expression constraint, final Triple... triples) {
+        final GraphRepository rya = new GraphRepository(connection) {
+            @Override
+            boolean isRyaConnection() {
+                return true;
+            }
+        };
+        return rya.queryHandler().patternStage(map, new ExpressionSet().add(constraint), triples);
+    }
+
+    @Test
+    public void testRyaPrefixIsRangeScanned() {
+        final Node name = Node.createURI(NS + "name");
+        final Node knows = Node.createURI(NS + "knows");
+        assertTrue(ryaStage(Rewrite.startsWith(variable("Y"), "Smith", ""), Triple.create(Query.X, name, Query.Y)) instanceof GraphRepositoryPatternStage);
+        assertTrue(ryaStage(Rewrite.startsWith(variable("X"), NS + "robot", ""), Triple.create(Query.X, name, Query.Y)) instanceof GraphRepositoryPatternStage);
+        assertTrue(ryaStage(Rewrite.startsWith(variable("Y"), "Smith", ""), Triple.create(Query.Z, knows, Query.X), Triple.create(Query.X, name, Query.Y)) instanceof GraphRepositoryPatternStage);
+        // Not a case-sensitive prefix, or on a variable already bound: the
+        // stage is still translated.
+        assertTrue(ryaStage(Rewrite.contains(variable("Y"), "Smith", ""), Triple.create(Query.X, name, Query.Y)) instanceof GraphRepositoryQueryStage);
+        assertTrue(ryaStage(Rewrite.startsWith(variable("Y"), "Smith", "i"), Triple.create(Query.X, name, Query.Y)) instanceof GraphRepositoryQueryStage);
+        final Mapping bound = new Mapping(new Node[] {Query.X, Query.Y});
+        bound.newIndex(Query.X);
+        assertTrue(ryaStage(bound, Rewrite.startsWith(variable("X"), NS + "person", ""), Triple.create(Query.X, name, Query.Y)) instanceof GraphRepositoryQueryStage);
+        assertTrue(ryaStage(Rewrite.startsWith(variable("X"), NS + "person", ""), Triple.create(Query.Z, knows, Query.Y), Triple.create(Query.Y, knows, Query.X)) instanceof GraphRepositoryPatternStage);
+        // Without Rya, a prefix goes into the translated query.
+        final Mapping map = new Mapping(new Node[] {Query.X, Query.Y});
+        assertTrue(graph.queryHandler().patternStage(map, new ExpressionSet().add(Rewrite.startsWith(variable("Y"), "Smith", "")), new Triple[] {Triple.create(Query.X, name, Query.Y)}) instanceof GraphRepositoryQueryStage);
+    }
+
+    private static Query knowsSmith() {
+        return new Query()
+            .addMatch(Query.X, Node.createURI(NS + "knows"), Query.Z)
+            .addMatch(Query.Z, Node.createURI(NS + "name"), Query.Y)
+            .addConstraint(Rewrite.startsWith(variable("Y"), "Smith", ""));
+    }
+
+    @Test
+    public void testTranslatedJoin() {
+        final List<Stage> stages = new ArrayList<Stage>();
+        final List<List<Node>> translated = run(knowsSmith(), stages, Query.X, Query.Z, Query.Y);
+        assertTrue(stages.get(0) instanceof GraphRepositoryQueryStage);
+        GraphRepositoryQueryHandler.translateStages = false;
+        final List<List<Node>> untranslated = run(knowsSmith(), new ArrayList<Stage>(), Query.X, Query.Z, Query.Y);
+        assertEquals(untranslated, translated);
+        assertEquals(8, translated.size());
+    }
+
+    @Test
+    public void testBoundInputs() {
+        GraphRepositoryQueryStage.batchSize = 2;
+        final Mapping map = new Mapping(new Node[0]);
+        map.newIndex(Query.X);
+        final Node[] inputs = {
+            Node.createURI(NS + "person0"), Node.createURI(NS + "person2"), Node.createURI(NS + "person2"),
+            Node.createURI(NS + "robot1"), Node.createURI(NS + "nobody"), Node.createAnon()
+        };
+        final Stage previous = new Stage() {
+            @Override
+            public Pipe deliver(final Pipe sink) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        for (final Node input : inputs) {
+                            sink.put(new Domain(new Node[] {input, null}));
+                        }
+                        sink.close();
+                    }
+                }.start();
+                return sink;
+            }
+        };
+        final Triple[] triples = {Triple.create(Query.X, Node.createURI(NS + "name"), Query.Y)};
+        final Stage stage = new GraphRepositoryQueryStage(graph, map, new ExpressionSet(), triples, new ArrayList<StringMatch>());
+        stage.connectFrom(previous);
+        final Pipe result = stage.deliver(new BufferPipe());
+        final List<Node> names = new ArrayList<Node>();
+        while (result.hasNext()) {
+            names.add(result.get().get(1));
+        }
+        assertEquals(4, names.size());
+        assertTrue(names.contains(Node.createLiteral("Smith 0")));
+        assertTrue(names.contains(Node.createLiteral("Jones 1")));
+    }
+
+    @Test
+    public void testQuotedText() {
+        assertEquals("(isBlank(?o) || CONTAINS(STR(?o), \"a\\\"b\\\\c\"))", StringMatch.of(Rewrite.contains(variable("Y"), "a\"b\\c", "")).toSparql("?o"));
+    }
+
+    private static List<Node> distinct(final ExtendedIterator<Node> it, final int expected) {
+        final List<Node> nodes = it.toList();
+        assertEquals(expected, nodes.size());
+        assertEquals(expected, new HashSet<Node>(nodes).size());
+        return nodes;
+    }
+
+    @Test
+    public void testDistinctPushdown() {
+        final Node knows = Node.createURI(NS + "knows");
+        final Node person0 = Node.createURI(NS + "person0");
+        final List<Node> objects = distinct(graph.queryHandler().objectsFor(Node.ANY, knows), 14);
+        final List<Node> subjects = distinct(graph.queryHandler().subjectsFor(knows, Node.ANY), 13);
+        final List<Node> predicates = distinct(graph.queryHandler().predicatesFor(person0, Node.ANY), 2);
+        distinct(graph.queryHandler().objectsFor(person0, knows), 2);
+        GraphRepositoryQueryHandler.pushDownDistinct = false;
+        assertEquals(new HashSet<Node>(objects), new HashSet<Node>(distinct(graph.queryHandler().objectsFor(Node.ANY, knows), 14)));
+        assertEquals(new HashSet<Node>(subjects), new HashSet<Node>(distinct(graph.queryHandler().subjectsFor(knows, Node.ANY), 13)));
+        assertEquals(new HashSet<Node>(predicates), new HashSet<Node>(distinct(graph.queryHandler().predicatesFor(person0, Node.ANY), 2)));
+    }
+}